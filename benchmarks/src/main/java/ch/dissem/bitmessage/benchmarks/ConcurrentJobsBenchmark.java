@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.dissem.bitmessage.benchmarks;
+
+import ch.dissem.bitmessage.ports.ProofOfWorkEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time until all of several objects submitted at the same time have their nonce, e.g. when sending a message to
+ * many recipients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConcurrentJobsBenchmark {
+    @Param({"multithreaded", "pooled"})
+    public String engine;
+
+    @Param({"1", "8", "32"})
+    public int jobs;
+
+    @Param({"16"})
+    public int difficulty;
+
+    private ProofOfWorkEngine powEngine;
+    private byte[] target;
+    private byte[][] initialHashes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        powEngine = Engines.create(engine, Runtime.getRuntime().availableProcessors());
+        target = Engines.target(difficulty);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextObjects() {
+        initialHashes = new byte[jobs][];
+        for (int i = 0; i < jobs; i++) {
+            initialHashes[i] = Engines.randomInitialHash();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Engines.shutdown(powEngine);
+    }
+
+    @Benchmark
+    public void calculateNonces() throws InterruptedException {
+        Engines.calculate(powEngine, target, initialHashes);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.dissem.bitmessage.benchmarks;
+
+import ch.dissem.bitmessage.cryptography.bc.BouncyCryptography;
+import ch.dissem.bitmessage.cryptography.secp256k1.Secp256k1Cryptography;
+import ch.dissem.bitmessage.entity.payload.CryptoBox;
+import ch.dissem.bitmessage.exception.DecryptionFailedException;
+import ch.dissem.bitmessage.ports.Cryptography;
+import ch.dissem.bitmessage.utils.Singleton;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypting a message, and trying to decrypt a received object, which fails for almost all of them. The scores are
+ * operations per second and thread.
+ * <p>
+ * As the ephemeral key pairs are generated in advance and the recipient's key is cached, <code>encrypt</code>
+ * should cost about one <code>multiply</code>, provided the key generator keeps up.
+ * </p>
+ * <p>
+ * Both <code>reject</code> and <code>decrypt</code> include an EC point multiplication, which is measured alone by
+ * <code>multiply</code>. What a failed attempt costs on top of it is the difference between <code>reject</code>
+ * and <code>multiply</code>.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBoxBenchmark {
+    @Param({"bc", "secp256k1"})
+    private String implementation;
+
+    @Param({"256"})
+    private int size;
+
+    private Cryptography cryptography;
+    private CryptoBox cryptoBox;
+    private byte[] privateKey;
+    private byte[] wrongKey;
+    private byte[] publicKey;
+    private byte[] data;
+    private byte[] buffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        switch (implementation) {
+            case "bc":
+                cryptography = new BouncyCryptography();
+                break;
+            case "secp256k1":
+                cryptography = new Secp256k1Cryptography();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + implementation);
+        }
+        // Each parameter runs in its own fork, so the singleton is only set to this implementation
+        Singleton.initialize(cryptography);
+        privateKey = cryptography.randomBytes(32);
+        wrongKey = cryptography.randomBytes(32);
+        publicKey = cryptography.createPublicKey(privateKey);
+        data = cryptography.randomBytes(size);
+        cryptoBox = new CryptoBox(data, publicKey);
+        buffer = new byte[size];
+    }
+
+    @Benchmark
+    public CryptoBox encrypt() throws IOException {
+        return new CryptoBox(data, publicKey);
+    }
+
+    @Benchmark
+    public int decrypt() throws IOException, DecryptionFailedException {
+        InputStream in = cryptoBox.decrypt(privateKey);
+        int length = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            length += read;
+        }
+        return length;
+    }
+
+    @Benchmark
+    public boolean reject() {
+        try {
+            cryptoBox.decrypt(wrongKey);
+            return true;
+        } catch (DecryptionFailedException e) {
+            return false;
+        }
+    }
+
+    @Benchmark
+    public byte[] multiply() {
+        return cryptography.multiply(publicKey, wrongKey);
+    }
+
+    /**
+     * A failure the way it was reported before {@link DecryptionFailedException} became stackless, for comparison.
+     */
+    @Benchmark
+    public boolean exceptionWithStackTrace() {
+        try {
+            throw new Exception();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
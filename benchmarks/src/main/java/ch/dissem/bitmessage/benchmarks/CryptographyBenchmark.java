@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.dissem.bitmessage.benchmarks;
+
+import ch.dissem.bitmessage.cryptography.bc.BouncyCryptography;
+import ch.dissem.bitmessage.cryptography.secp256k1.Secp256k1Cryptography;
+import ch.dissem.bitmessage.entity.payload.Pubkey;
+import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
+import ch.dissem.bitmessage.ports.Cryptography;
+import ch.dissem.bitmessage.utils.Singleton;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Elliptic curve operations of the cryptography implementations. The scores are operations per second and thread.
+ * <p>
+ * <code>multiply</code> uses the same public key every time, as it happens when encrypting for or checking the
+ * signatures of a contact. <code>multiplyEphemeral</code> uses it as well, but it's meant for keys that are only used
+ * once, like the ephemeral key of a received message, so the implementations don't keep anything for it.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptographyBenchmark {
+    @Param({"bc", "secp256k1"})
+    private String implementation;
+
+    private Cryptography cryptography;
+    private byte[] privateKey;
+    private byte[] publicKey;
+    private PrivateKey identity;
+    private Pubkey pubkey;
+    private byte[] data;
+    private byte[] signature;
+
+    @Setup
+    public void setUp() {
+        switch (implementation) {
+            case "bc":
+                cryptography = new BouncyCryptography();
+                break;
+            case "secp256k1":
+                cryptography = new Secp256k1Cryptography();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + implementation);
+        }
+        privateKey = cryptography.randomBytes(32);
+        publicKey = cryptography.createPublicKey(cryptography.randomBytes(32));
+        // Each parameter runs in its own fork, so the singleton is only set to this implementation
+        Singleton.initialize(cryptography);
+        byte[] privateSigningKey = cryptography.randomBytes(32);
+        byte[] privateEncryptionKey = cryptography.randomBytes(32);
+        pubkey = cryptography.createPubkey(4, 1, privateSigningKey, privateEncryptionKey, 1000, 1000);
+        identity = new PrivateKey(privateSigningKey, privateEncryptionKey, pubkey);
+        data = cryptography.randomBytes(256);
+        signature = cryptography.getSignature(data, identity);
+    }
+
+    @Benchmark
+    public byte[] createPublicKey() {
+        return cryptography.createPublicKey(privateKey);
+    }
+
+    @Benchmark
+    public byte[] multiply() {
+        return cryptography.multiply(publicKey, privateKey);
+    }
+
+    @Benchmark
+    public byte[] multiplyEphemeral() {
+        return cryptography.multiplyEphemeral(publicKey, privateKey);
+    }
+
+    @Benchmark
+    public byte[] sign() {
+        return cryptography.getSignature(data, identity);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return cryptography.isSignatureValid(data, signature, pubkey);
+    }
+}
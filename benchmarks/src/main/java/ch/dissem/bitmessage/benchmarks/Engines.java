@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.dissem.bitmessage.benchmarks;
+
+import ch.dissem.bitmessage.ports.*;
+import ch.dissem.bitmessage.utils.ProofOfWorkHasher;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers shared by the proof of work benchmarks.
+ */
+class Engines {
+    private static final Random RANDOM = new Random();
+
+    /**
+     * @param name one of <code>simple</code>, <code>multithreaded</code> or <code>pooled</code>
+     * @param threads number of worker threads, only used by the pooled engine
+     */
+    static ProofOfWorkEngine create(String name, int threads) {
+        switch (name) {
+            case "simple":
+                return new SimplePOWEngine();
+            case "multithreaded":
+                return new MultiThreadedPOWEngine();
+            case "pooled":
+                return new PooledPOWEngine(threads);
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + name);
+        }
+    }
+
+    static void shutdown(ProofOfWorkEngine engine) {
+        if (engine instanceof PooledPOWEngine) {
+            ((PooledPOWEngine) engine).shutdown();
+        }
+    }
+
+    /**
+     * @return a target that needs about 2^bits trials to reach
+     */
+    static byte[] target(int bits) {
+        return ProofOfWorkHasher.toBytes(-1L >>> bits);
+    }
+
+    static byte[] randomInitialHash() {
+        byte[] initialHash = new byte[64];
+        RANDOM.nextBytes(initialHash);
+        return initialHash;
+    }
+
+    /**
+     * Starts one calculation per initial hash and waits until all of them are done.
+     */
+    static void calculate(ProofOfWorkEngine engine, byte[] target, byte[]... initialHashes)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(initialHashes.length);
+        ProofOfWorkEngine.Callback callback = new ProofOfWorkEngine.Callback() {
+            @Override
+            public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                latch.countDown();
+            }
+        };
+        for (byte[] initialHash : initialHashes) {
+            engine.calculateNonce(initialHash, target, callback);
+        }
+        if (!latch.await(10, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Nonce calculation timed out");
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.dissem.bitmessage.benchmarks;
+
+import ch.dissem.bitmessage.utils.Bytes;
+import ch.dissem.bitmessage.utils.ProofOfWorkHasher;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single proof of work trial, i.e. sha512(sha512(nonce||initialHash)) and the comparison with the target.
+ * The scores are trials per second and thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+    private final byte[] initialHash = Engines.randomInitialHash();
+    private final byte[] target = Engines.target(32);
+    private final long targetValue = ProofOfWorkHasher.toLong(target);
+    private final byte[] nonceBytes = new byte[8];
+    private long nonce;
+    private ProofOfWorkHasher hasher;
+    private MessageDigest mda;
+
+    @Setup
+    public void setUp() throws Exception {
+        hasher = new ProofOfWorkHasher(initialHash);
+        mda = MessageDigest.getInstance("SHA-512");
+    }
+
+    @Benchmark
+    public boolean proofOfWorkHasher() {
+        return hasher.isValid(nonce++, targetValue);
+    }
+
+    /**
+     * The way nonces were calculated before {@link ProofOfWorkHasher} existed, for comparison.
+     */
+    @Benchmark
+    public boolean messageDigest() {
+        Bytes.inc(nonceBytes);
+        mda.update(nonceBytes);
+        mda.update(initialHash);
+        return !Bytes.lt(target, mda.digest(mda.digest()), 8);
+    }
+}
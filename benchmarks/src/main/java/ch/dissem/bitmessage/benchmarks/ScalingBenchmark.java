@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.dissem.bitmessage.benchmarks;
+
+import ch.dissem.bitmessage.ports.ProofOfWorkEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the time to find a nonce scales with the number of worker threads of the pooled engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ScalingBenchmark {
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"20"})
+    public int difficulty;
+
+    private ProofOfWorkEngine powEngine;
+    private byte[] target;
+    private byte[] initialHash;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        powEngine = Engines.create("pooled", threads);
+        target = Engines.target(difficulty);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextObject() {
+        initialHash = Engines.randomInitialHash();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Engines.shutdown(powEngine);
+    }
+
+    @Benchmark
+    public void calculateNonce() throws InterruptedException {
+        Engines.calculate(powEngine, target, initialHash);
+    }
+}
@@ -24,7 +24,6 @@ import ch.dissem.bitmessage.entity.payload.ObjectType;
 import ch.dissem.bitmessage.entity.payload.Pubkey.Feature;
 import ch.dissem.bitmessage.entity.valueobject.InventoryVector;
 import ch.dissem.bitmessage.entity.valueobject.Label;
-import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
 import ch.dissem.bitmessage.exception.DecryptionFailedException;
 import ch.dissem.bitmessage.ports.*;
 import ch.dissem.bitmessage.utils.Property;
@@ -33,6 +32,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.*;
@@ -65,7 +66,8 @@ public class BitmessageContext {
     private final InternalContext ctx;
 
     private final Listener listener;
-    private final NetworkHandler.MessageListener networkListener;
+    private final DefaultMessageListener networkListener;
+    private final IdentityGenerator identityGenerator = new IdentityGenerator();
 
     private final boolean sendPubkeyOnIdentityCreation;
 
@@ -75,7 +77,8 @@ public class BitmessageContext {
         networkListener = new DefaultMessageListener(ctx, listener);
 
         // As this thread is used for parts that do POW, which itself uses parallel threads, only
-        // one should be executed at any time.
+        // one should be executed at any time. (The POW itself is queued in the engine, so this thread
+        // doesn't wait for it to finish.)
         pool = Executors.newFixedThreadPool(1);
 
         sendPubkeyOnIdentityCreation = builder.sendPubkeyOnIdentityCreation;
@@ -96,8 +99,12 @@ public class BitmessageContext {
         return ctx.getMessageRepository();
     }
 
+    /**
+     * Creates a new identity, trying key pairs on all CPU cores. Use {@link #identityGenerator()} to see its progress
+     * or cancel it, in which case a {@link java.util.concurrent.CancellationException} is thrown.
+     */
     public BitmessageAddress createIdentity(boolean shorter, Feature... features) {
-        final BitmessageAddress identity = new BitmessageAddress(new PrivateKey(
+        final BitmessageAddress identity = new BitmessageAddress(identityGenerator.generate(
                 shorter,
                 ctx.getStreams()[0],
                 ctx.getNetworkNonceTrialsPerByte(),
@@ -116,6 +123,19 @@ public class BitmessageContext {
         return identity;
     }
 
+    public IdentityGenerator identityGenerator() {
+        return identityGenerator;
+    }
+
+    /**
+     * Estimates how long the proof of work for an object will take. It's calibrated at {@link #startup()}, until
+     * then the expected time is unknown. If the message callback is a {@link ProofOfWorkProgressCallback}, it gets
+     * the estimate for every object the proof of work is started for.
+     */
+    public ProofOfWorkEstimator proofOfWorkEstimator() {
+        return ctx.getProofOfWorkService().getEstimator();
+    }
+
     public void addDistributedMailingList(String address, String alias) {
         // TODO
         throw new RuntimeException("not implemented");
@@ -179,8 +199,13 @@ public class BitmessageContext {
         });
     }
 
+    /**
+     * Starts the network handler and measures the speed of the proof of work engine in the background, so the
+     * {@link #proofOfWorkEstimator()} can tell how long the proof of work will take.
+     */
     public void startup() {
         ctx.getNetworkHandler().start(networkListener);
+        ctx.getProofOfWorkService().getEstimator().calibrateInBackground();
     }
 
     public void shutdown() {
@@ -242,22 +267,38 @@ public class BitmessageContext {
         tryToFindBroadcastsForAddress(address);
     }
 
-    private void tryToFindBroadcastsForAddress(BitmessageAddress address) {
-        for (ObjectMessage object : ctx.getInventory().getObjects(address.getStream(), Broadcast.getVersion(address), ObjectType.BROADCAST)) {
-            try {
-                Broadcast broadcast = (Broadcast) object.getPayload();
-                broadcast.decrypt(address);
-                listener.receive(broadcast.getPlaintext());
-            } catch (DecryptionFailedException ignore) {
-            } catch (Exception e) {
-                LOG.debug(e.getMessage(), e);
+    private void tryToFindBroadcastsForAddress(final BitmessageAddress address) {
+        final List<ObjectMessage> broadcasts = new ArrayList<>();
+        Inventory.ObjectCallback callback = new Inventory.ObjectCallback() {
+            @Override
+            public boolean onObject(ObjectMessage object) {
+                try {
+                    Broadcast broadcast = (Broadcast) object.getPayload();
+                    broadcast.decrypt(address);
+                    broadcasts.add(object);
+                } catch (DecryptionFailedException ignore) {
+                } catch (Exception e) {
+                    LOG.debug(e.getMessage(), e);
+                }
+                return true;
+            }
+        };
+        if (address.getVersion() >= 4) {
+            for (ObjectMessage object : ctx.getInventory().getObjectsByTag(address.getTag(), ObjectType.BROADCAST)) {
+                callback.onObject(object);
             }
+        } else {
+            ctx.getInventory().getObjects(address.getStream(), Broadcast.getVersion(address), callback,
+                    ObjectType.BROADCAST);
         }
+        networkListener.receiveDecryptedBroadcasts(broadcasts);
     }
 
     public Property status() {
         return new Property("status", null,
-                ctx.getNetworkHandler().getNetworkStatus()
+                ctx.getNetworkHandler().getNetworkStatus(),
+                ctx.getProofOfWorkService().getStatus(),
+                ctx.getDecryptionDispatcher().getStatus()
         );
     }
 
@@ -288,6 +329,7 @@ public class BitmessageContext {
         Listener listener;
         int connectionLimit = 150;
         long connectionTTL = 30 * MINUTE;
+        int proofOfWorkJobs;
         boolean sendPubkeyOnIdentityCreation = true;
 
         public Builder() {
@@ -353,6 +395,16 @@ public class BitmessageContext {
             return this;
         }
 
+        /**
+         * The number of objects the proof of work engine works on at the same time. By default, it's twice the
+         * number of processors for engines that can prioritize their jobs, and two for other ones.
+         */
+        public Builder proofOfWorkJobs(int jobs) {
+            if (jobs < 1) throw new IllegalArgumentException("At least one job must be allowed");
+            this.proofOfWorkJobs = jobs;
+            return this;
+        }
+
         public Builder connectionLimit(int connectionLimit) {
             this.connectionLimit = connectionLimit;
             return this;
@@ -395,7 +447,7 @@ public class BitmessageContext {
             nonNull("messageRepo", messageRepo);
             nonNull("proofOfWorkRepo", proofOfWorkRepository);
             if (proofOfWorkEngine == null) {
-                proofOfWorkEngine = new MultiThreadedPOWEngine();
+                proofOfWorkEngine = new PooledPOWEngine();
             }
             if (messageCallback == null) {
                 messageCallback = new MessageCallback() {
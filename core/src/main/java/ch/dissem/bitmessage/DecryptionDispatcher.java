@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage;
+
+import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.entity.Encrypted;
+import ch.dissem.bitmessage.entity.ObjectMessage;
+import ch.dissem.bitmessage.entity.payload.Broadcast;
+import ch.dissem.bitmessage.entity.payload.Msg;
+import ch.dissem.bitmessage.entity.payload.V5Broadcast;
+import ch.dissem.bitmessage.exception.DecryptionFailedException;
+import ch.dissem.bitmessage.utils.Property;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Finds the identity a msg was sent to, or the subscription a broadcast came from, by trying to decrypt it with
+ * each of their keys. As every attempt needs an EC point multiplication, this gets expensive with many identities
+ * or subscriptions, so the keys are kept in memory and the attempts are spread over all CPU cores, stopping as soon
+ * as one of them succeeds.
+ * <p>
+ * The identities and subscriptions are reloaded from the address repository after {@link #invalidate()} was called,
+ * which happens whenever an address is saved or removed through the context's address repository, or when they were
+ * cached for more than a minute, in case the repository was changed directly.
+ * </p>
+ */
+public class DecryptionDispatcher implements InternalContext.ContextHolder {
+    private static final Logger LOG = LoggerFactory.getLogger(DecryptionDispatcher.class);
+    private static final long MAX_CACHE_AGE = 60_000;
+    /**
+     * With only a few keys, starting parallel tasks costs more than it saves.
+     */
+    private static final int MIN_PARALLEL_KEYS = 4;
+
+    private final int threads;
+    private InternalContext ctx;
+    private ExecutorService pool;
+
+    // Guarded by this
+    private List<BitmessageAddress> identities;
+    private long identitiesCachedAt;
+    private final Map<Long, List<BitmessageAddress>> subscriptions = new HashMap<>();
+    private long subscriptionsCachedAt;
+    private long objects;
+    private long decrypted;
+    private long attempts;
+    private long totalTime;
+    private long maxTime;
+
+    public DecryptionDispatcher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of threads trying to decrypt an object at the same time
+     */
+    public DecryptionDispatcher(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("At least one thread is needed");
+        this.threads = threads;
+    }
+
+    /**
+     * Tries to decrypt the msg with the private keys of all identities. If it succeeds, the plaintext of the msg
+     * is available afterwards.
+     *
+     * @return the identity the msg was sent to, or null if it isn't for any of our identities
+     */
+    public BitmessageAddress decrypt(ObjectMessage object, Msg msg) throws IOException {
+        return decrypt(object, msg, getIdentities());
+    }
+
+    /**
+     * Tries to decrypt the broadcast with the keys of all subscriptions. If it succeeds, the plaintext of the
+     * broadcast is available afterwards.
+     *
+     * @return the subscription the broadcast came from, or null if we aren't subscribed to its sender
+     */
+    public BitmessageAddress decrypt(ObjectMessage object, Broadcast broadcast) throws IOException {
+        List<BitmessageAddress> candidates = getSubscriptions(broadcast.getVersion());
+        if (broadcast instanceof V5Broadcast) {
+            // There's only one subscription with the broadcast's tag, so no parallel attempts are necessary
+            byte[] tag = ((V5Broadcast) broadcast).getTag();
+            List<BitmessageAddress> matching = new ArrayList<>(1);
+            for (BitmessageAddress subscription : candidates) {
+                if (Arrays.equals(tag, subscription.getTag())) matching.add(subscription);
+            }
+            candidates = matching;
+        }
+        return decrypt(object, broadcast, candidates);
+    }
+
+    private BitmessageAddress decrypt(ObjectMessage object, final Encrypted encrypted,
+                                      final List<BitmessageAddress> candidates) throws IOException {
+        long start = System.nanoTime();
+        BitmessageAddress result;
+        int tries;
+        if (threads == 1 || candidates.size() < MIN_PARALLEL_KEYS) {
+            tries = 0;
+            result = null;
+            for (BitmessageAddress candidate : candidates) {
+                tries++;
+                if (tryDecrypt(encrypted, candidate)) {
+                    result = candidate;
+                    break;
+                }
+            }
+        } else {
+            final int tasks = Math.min(threads, candidates.size());
+            final AtomicReference<BitmessageAddress> found = new AtomicReference<>();
+            final CountDownLatch done = new CountDownLatch(tasks);
+            final ConcurrentLinkedQueue<IOException> failures = new ConcurrentLinkedQueue<>();
+            final int[] taskTries = new int[tasks];
+            for (int t = 0; t < tasks; t++) {
+                final int task = t;
+                getPool().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = task; i < candidates.size() && found.get() == null; i += tasks) {
+                                taskTries[task]++;
+                                if (tryDecrypt(encrypted, candidates.get(i))) {
+                                    found.set(candidates.get(i));
+                                }
+                            }
+                        } catch (IOException e) {
+                            failures.add(e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            try {
+                // Once a key matched, the other tasks stop after their current attempt
+                done.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (!failures.isEmpty()) throw failures.peek();
+            tries = 0;
+            for (int taskTry : taskTries) {
+                tries += taskTry;
+            }
+            result = found.get();
+        }
+        long time = System.nanoTime() - start;
+        LOG.debug("Tried " + tries + " of " + candidates.size() + " keys in " + time / 1000
+                + " microseconds to decrypt object " + object.getInventoryVector());
+        synchronized (this) {
+            objects++;
+            if (result != null) decrypted++;
+            attempts += tries;
+            totalTime += time;
+            if (time > maxTime) maxTime = time;
+        }
+        return result;
+    }
+
+    private static boolean tryDecrypt(Encrypted encrypted, BitmessageAddress address) throws IOException {
+        try {
+            // The plaintext is only set if the MAC matched, so concurrent attempts don't interfere
+            if (encrypted instanceof Msg) {
+                encrypted.decrypt(address.getPrivateKey().getPrivateEncryptionKey());
+            } else {
+                encrypted.decrypt(address.getPublicDecryptionKey());
+            }
+            return true;
+        } catch (DecryptionFailedException ignore) {
+            return false;
+        }
+    }
+
+    private synchronized List<BitmessageAddress> getIdentities() {
+        long now = System.currentTimeMillis();
+        if (identities == null || now - identitiesCachedAt > MAX_CACHE_AGE) {
+            identities = ctx.getAddressRepository().getIdentities();
+            identitiesCachedAt = now;
+        }
+        return identities;
+    }
+
+    private synchronized List<BitmessageAddress> getSubscriptions(long broadcastVersion) {
+        long now = System.currentTimeMillis();
+        if (now - subscriptionsCachedAt > MAX_CACHE_AGE) {
+            subscriptions.clear();
+            subscriptionsCachedAt = now;
+        }
+        List<BitmessageAddress> result = subscriptions.get(broadcastVersion);
+        if (result == null) {
+            result = ctx.getAddressRepository().getSubscriptions(broadcastVersion);
+            subscriptions.put(broadcastVersion, result);
+        }
+        return result;
+    }
+
+    private synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = Executors.defaultThreadFactory().newThread(r);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Makes sure the identities and subscriptions are reloaded before the next object is decrypted. The context's
+     * address repository calls this whenever an address is saved or removed.
+     */
+    public synchronized void invalidate() {
+        identities = null;
+        subscriptions.clear();
+    }
+
+    /**
+     * @return number of processed msgs and broadcasts and the time needed to decrypt them (in microseconds)
+     */
+    public synchronized Property getStatus() {
+        int subscriptionCount = 0;
+        for (List<BitmessageAddress> list : subscriptions.values()) {
+            subscriptionCount += list.size();
+        }
+        return new Property("decryption", null,
+                new Property("identities", identities == null ? 0 : identities.size()),
+                new Property("subscriptions", subscriptionCount),
+                new Property("objects", objects),
+                new Property("decrypted", decrypted),
+                new Property("averageAttempts", objects == 0 ? 0 : attempts / objects),
+                new Property("averageTime", objects == 0 ? 0 : totalTime / objects / 1000),
+                new Property("maxTime", maxTime / 1000)
+        );
+    }
+
+    @Override
+    public void setContext(InternalContext context) {
+        this.ctx = context;
+    }
+}
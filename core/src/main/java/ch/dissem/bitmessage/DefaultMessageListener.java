@@ -22,12 +22,13 @@ import ch.dissem.bitmessage.entity.Plaintext;
 import ch.dissem.bitmessage.entity.payload.*;
 import ch.dissem.bitmessage.entity.valueobject.Label;
 import ch.dissem.bitmessage.exception.DecryptionFailedException;
+import ch.dissem.bitmessage.ports.Cryptography;
 import ch.dissem.bitmessage.ports.NetworkHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.List;
 
 import static ch.dissem.bitmessage.entity.Plaintext.Status.*;
@@ -117,45 +118,56 @@ class DefaultMessageListener implements NetworkHandler.MessageListener {
     }
 
     protected void receive(ObjectMessage object, Msg msg) throws IOException {
-        for (BitmessageAddress identity : ctx.getAddressRepository().getIdentities()) {
-            try {
-                msg.decrypt(identity.getPrivateKey().getPrivateEncryptionKey());
-                msg.getPlaintext().setTo(identity);
-                if (!object.isSignatureValid(msg.getPlaintext().getFrom().getPubkey())) {
-                    LOG.warn("Msg with IV " + object.getInventoryVector() + " was successfully decrypted, but signature check failed. Ignoring.");
-                } else {
-                    msg.getPlaintext().setStatus(RECEIVED);
-                    msg.getPlaintext().addLabels(ctx.getMessageRepository().getLabels(Label.Type.INBOX, Label.Type.UNREAD));
-                    msg.getPlaintext().setInventoryVector(object.getInventoryVector());
-                    ctx.getMessageRepository().save(msg.getPlaintext());
-                    listener.receive(msg.getPlaintext());
-                    updatePubkey(msg.getPlaintext().getFrom(), msg.getPlaintext().getFrom().getPubkey());
-                }
-                break;
-            } catch (DecryptionFailedException ignore) {
-            }
+        BitmessageAddress identity = ctx.getDecryptionDispatcher().decrypt(object, msg);
+        if (identity == null) return;
+
+        msg.getPlaintext().setTo(identity);
+        if (!object.isSignatureValid(msg.getPlaintext().getFrom().getPubkey())) {
+            LOG.warn("Msg with IV " + object.getInventoryVector() + " was successfully decrypted, but signature check failed. Ignoring.");
+        } else {
+            msg.getPlaintext().setStatus(RECEIVED);
+            msg.getPlaintext().addLabels(ctx.getMessageRepository().getLabels(Label.Type.INBOX, Label.Type.UNREAD));
+            msg.getPlaintext().setInventoryVector(object.getInventoryVector());
+            ctx.getMessageRepository().save(msg.getPlaintext());
+            listener.receive(msg.getPlaintext());
+            updatePubkey(msg.getPlaintext().getFrom(), msg.getPlaintext().getFrom().getPubkey());
         }
     }
 
     protected void receive(ObjectMessage object, Broadcast broadcast) throws IOException {
-        byte[] tag = broadcast instanceof V5Broadcast ? ((V5Broadcast) broadcast).getTag() : null;
-        for (BitmessageAddress subscription : ctx.getAddressRepository().getSubscriptions(broadcast.getVersion())) {
-            if (tag != null && !Arrays.equals(tag, subscription.getTag())) {
-                continue;
-            }
-            try {
-                broadcast.decrypt(subscription.getPublicDecryptionKey());
-                if (!object.isSignatureValid(broadcast.getPlaintext().getFrom().getPubkey())) {
-                    LOG.warn("Broadcast with IV " + object.getInventoryVector() + " was successfully decrypted, but signature check failed. Ignoring.");
-                } else {
-                    broadcast.getPlaintext().setStatus(RECEIVED);
-                    broadcast.getPlaintext().addLabels(ctx.getMessageRepository().getLabels(Label.Type.INBOX, Label.Type.BROADCAST, Label.Type.UNREAD));
-                    broadcast.getPlaintext().setInventoryVector(object.getInventoryVector());
-                    ctx.getMessageRepository().save(broadcast.getPlaintext());
-                    listener.receive(broadcast.getPlaintext());
-                    updatePubkey(broadcast.getPlaintext().getFrom(), broadcast.getPlaintext().getFrom().getPubkey());
-                }
-            } catch (DecryptionFailedException ignore) {
+        BitmessageAddress subscription = ctx.getDecryptionDispatcher().decrypt(object, broadcast);
+        if (subscription == null) return;
+
+        if (!object.isSignatureValid(broadcast.getPlaintext().getFrom().getPubkey())) {
+            LOG.warn("Broadcast with IV " + object.getInventoryVector() + " was successfully decrypted, but signature check failed. Ignoring.");
+        } else {
+            broadcast.getPlaintext().setStatus(RECEIVED);
+            broadcast.getPlaintext().addLabels(ctx.getMessageRepository().getLabels(Label.Type.INBOX, Label.Type.BROADCAST, Label.Type.UNREAD));
+            broadcast.getPlaintext().setInventoryVector(object.getInventoryVector());
+            ctx.getMessageRepository().save(broadcast.getPlaintext());
+            listener.receive(broadcast.getPlaintext());
+            updatePubkey(broadcast.getPlaintext().getFrom(), broadcast.getPlaintext().getFrom().getPubkey());
+        }
+    }
+
+    /**
+     * Hands broadcasts that were already decrypted to the listener, e.g. the ones found in the inventory after
+     * subscribing to an address. Their signatures are checked together, so a large backlog is verified on all
+     * cores.
+     */
+    void receiveDecryptedBroadcasts(List<ObjectMessage> objects) {
+        List<Cryptography.SignedData> signatures = new ArrayList<>(objects.size());
+        for (ObjectMessage object : objects) {
+            Broadcast broadcast = (Broadcast) object.getPayload();
+            signatures.add(object.getSignedData(broadcast.getPlaintext().getFrom().getPubkey()));
+        }
+        boolean[] valid = ctx.getCryptography().verifyBatch(signatures);
+        for (int i = 0; i < valid.length; i++) {
+            ObjectMessage object = objects.get(i);
+            if (valid[i]) {
+                listener.receive(((Broadcast) object.getPayload()).getPlaintext());
+            } else {
+                LOG.warn("Broadcast with IV " + object.getInventoryVector() + " was successfully decrypted, but signature check failed. Ignoring.");
             }
         }
     }
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage;
+
+import ch.dissem.bitmessage.entity.payload.Pubkey;
+import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
+import ch.dissem.bitmessage.utils.Bytes;
+import ch.dissem.bitmessage.utils.Threads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static ch.dissem.bitmessage.entity.valueobject.PrivateKey.PRIVATE_KEY_SIZE;
+import static ch.dissem.bitmessage.utils.Singleton.security;
+
+/**
+ * Creates the keys for new identities. An address needs a ripe starting with a zero byte, or with two of them
+ * for a shorter address, so on average 256 or 65536 key pairs must be tried.
+ * <p>
+ * The attempts are spread over several threads. Each of them keeps its signing key and only advances the encryption
+ * key by one for every attempt, so the new public encryption key is found by adding the generator point to the
+ * last one instead of doing a full multiplication. The threads are kept for the next generation, and stop after a few
+ * seconds without work.
+ * </p>
+ */
+public class IdentityGenerator {
+    private static final Logger LOG = LoggerFactory.getLogger(IdentityGenerator.class);
+    /**
+     * Attempts are only added to the shared counter every now and then, so the threads don't compete for it.
+     */
+    private static final int REPORT_INTERVAL = 256;
+
+    private final int threads;
+    private final ExecutorService executor;
+    private final Set<Search> running = Collections.newSetFromMap(new ConcurrentHashMap<Search, Boolean>());
+    private volatile Search last;
+
+    public IdentityGenerator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of threads trying key pairs at the same time
+     */
+    public IdentityGenerator(int threads) {
+        if (threads < 1) throw new IllegalArgumentException("At least one thread is needed");
+        this.threads = threads;
+        this.executor = Threads.idleExecutor("Identity generator", threads);
+    }
+
+    /**
+     * Blocks until a fitting key pair is found. Several identities may be generated at the same time, but they share
+     * the threads.
+     *
+     * @param shorter if true, the ripe must start with two zero bytes, resulting in a shorter address
+     * @return the private key for a new identity
+     * @throws CancellationException if {@link #cancel()} was called or the calling thread was interrupted
+     */
+    public PrivateKey generate(boolean shorter, long stream, long nonceTrialsPerByte, long extraBytes,
+                               Pubkey.Feature... features) {
+        byte[] one = new byte[PRIVATE_KEY_SIZE];
+        one[PRIVATE_KEY_SIZE - 1] = 1;
+        Search search = new Search(shorter, security().createPublicKey(one));
+        running.add(search);
+        last = search;
+        try {
+            for (int i = 0; i < threads; i++) {
+                executor.execute(search);
+            }
+            search.finished.await();
+        } catch (InterruptedException e) {
+            search.cancelled = true;
+            Thread.currentThread().interrupt();
+        } finally {
+            search.endTime = System.nanoTime();
+            running.remove(search);
+        }
+        if (search.failure.get() != null) throw search.failure.get();
+
+        byte[][] keys = search.result.get();
+        if (keys == null) throw new CancellationException("Identity generation was cancelled");
+        LOG.info("Found key pair after " + search.attempts.get() + " attempts, "
+                + (long) search.getAttemptsPerSecond() + " attempts per second");
+        return new PrivateKey(keys[0], keys[1], security().createPubkey(Pubkey.LATEST_VERSION, stream,
+                keys[0], keys[1], nonceTrialsPerByte, extraBytes, features));
+    }
+
+    /**
+     * Stops the running generations, which then throw a {@link CancellationException}.
+     */
+    public void cancel() {
+        for (Search search : running) {
+            search.cancelled = true;
+        }
+    }
+
+    /**
+     * @return the number of key pairs tried by the running or last generation
+     */
+    public long getAttempts() {
+        Search search = last;
+        return search == null ? 0 : search.attempts.get();
+    }
+
+    /**
+     * @return the number of key pairs tried per second by the running or last generation, or 0 if there was none
+     */
+    public double getAttemptsPerSecond() {
+        Search search = last;
+        return search == null ? 0 : search.getAttemptsPerSecond();
+    }
+
+    /**
+     * The state of one generation, which is run by several threads at the same time.
+     */
+    private static class Search implements Runnable {
+        private final boolean shorter;
+        private final byte[] generator;
+        private final AtomicReference<byte[][]> result = new AtomicReference<>();
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private final AtomicLong attempts = new AtomicLong();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final long startTime = System.nanoTime();
+        private volatile long endTime;
+        private volatile boolean cancelled;
+
+        private Search(boolean shorter, byte[] generator) {
+            this.shorter = shorter;
+            this.generator = generator;
+        }
+
+        @Override
+        public void run() {
+            try {
+                search();
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+                cancelled = true;
+            } finally {
+                // The search only ends when a key pair was found or it was cancelled, either way it's finished
+                finished.countDown();
+            }
+        }
+
+        private void search() {
+            if (result.get() != null || cancelled) return;
+            byte[] privSK = security().randomBytes(PRIVATE_KEY_SIZE);
+            byte[] pubSK = security().createPublicKey(privSK);
+            byte[] privEK = security().randomBytes(PRIVATE_KEY_SIZE);
+            byte[] pubEK = security().createPublicKey(privEK);
+            int count = 0;
+            try {
+                while (result.get() == null && !cancelled) {
+                    byte[] ripe = Pubkey.getRipe(pubSK, pubEK);
+                    count++;
+                    if (ripe[0] == 0 && (!shorter || ripe[1] == 0)) {
+                        result.compareAndSet(null, new byte[][]{privSK, privEK});
+                        return;
+                    }
+                    // (k + 1) * G = k * G + G
+                    Bytes.inc(privEK);
+                    pubEK = security().addPoints(pubEK, generator);
+                    if (count == REPORT_INTERVAL) {
+                        attempts.addAndGet(count);
+                        count = 0;
+                    }
+                }
+            } finally {
+                attempts.addAndGet(count);
+            }
+        }
+
+        private double getAttemptsPerSecond() {
+            long end = endTime;
+            long time = (end == 0 ? System.nanoTime() : end) - startTime;
+            return time <= 0 ? 0 : attempts.get() * 1_000_000_000.0 / time;
+        }
+    }
+}
@@ -28,7 +28,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.TreeSet;
 
 /**
@@ -53,6 +55,7 @@ public class InternalContext {
     private final MessageCallback messageCallback;
     private final CustomCommandHandler customCommandHandler;
     private final ProofOfWorkService proofOfWorkService;
+    private final DecryptionDispatcher decryptionDispatcher;
 
     private final TreeSet<Long> streams = new TreeSet<>();
     private final int port;
@@ -67,10 +70,11 @@ public class InternalContext {
         this.inventory = builder.inventory;
         this.nodeRegistry = builder.nodeRegistry;
         this.networkHandler = builder.networkHandler;
-        this.addressRepository = builder.addressRepo;
+        this.decryptionDispatcher = new DecryptionDispatcher();
+        this.addressRepository = new InvalidatingAddressRepository(builder.addressRepo, decryptionDispatcher);
         this.messageRepository = builder.messageRepo;
         this.proofOfWorkRepository = builder.proofOfWorkRepository;
-        this.proofOfWorkService = new ProofOfWorkService();
+        this.proofOfWorkService = new ProofOfWorkService(builder.proofOfWorkJobs);
         this.proofOfWorkEngine = builder.proofOfWorkEngine;
         this.clientNonce = cryptography.randomNonce();
         this.messageCallback = builder.messageCallback;
@@ -92,8 +96,8 @@ public class InternalContext {
             streams.add(1L);
         }
 
-        init(cryptography, inventory, nodeRegistry, networkHandler, addressRepository, messageRepository,
-                proofOfWorkRepository, proofOfWorkService, proofOfWorkEngine,
+        init(cryptography, inventory, nodeRegistry, networkHandler, builder.addressRepo, messageRepository,
+                proofOfWorkRepository, proofOfWorkService, proofOfWorkEngine, decryptionDispatcher,
                 messageCallback, customCommandHandler);
         for (BitmessageAddress identity : addressRepository.getIdentities()) {
             streams.add(identity.getStream());
@@ -140,10 +144,18 @@ public class InternalContext {
         return proofOfWorkEngine;
     }
 
+    public MessageCallback getMessageCallback() {
+        return messageCallback;
+    }
+
     public ProofOfWorkService getProofOfWorkService() {
         return proofOfWorkService;
     }
 
+    public DecryptionDispatcher getDecryptionDispatcher() {
+        return decryptionDispatcher;
+    }
+
     public long[] getStreams() {
         long[] result = new long[streams.size()];
         int i = 0;
@@ -179,13 +191,16 @@ public class InternalContext {
             if (object.isSigned()) {
                 object.sign(from.getPrivateKey());
             }
+            byte[] encryptionKey = null;
             if (payload instanceof Broadcast) {
-                ((Broadcast) payload).encrypt();
+                encryptionKey = cryptography.createPublicKey(from.getPublicDecryptionKey());
             } else if (payload instanceof Encrypted) {
-                object.encrypt(to.getPubkey());
+                encryptionKey = to.getPubkey().getEncryptionKey();
             }
-            messageCallback.proofOfWorkStarted(payload);
-            proofOfWorkService.doProofOfWork(to, object);
+            if (encryptionKey != null) {
+                object.encrypt(encryptionKey);
+            }
+            proofOfWorkService.doProofOfWork(to, object, timeToLive, from.getPrivateKey(), encryptionKey);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -201,10 +216,10 @@ public class InternalContext {
                     .payload(identity.getPubkey())
                     .build();
             response.sign(identity.getPrivateKey());
-            response.encrypt(cryptography.createPublicKey(identity.getPublicDecryptionKey()));
-            messageCallback.proofOfWorkStarted(identity.getPubkey());
+            byte[] encryptionKey = cryptography.createPublicKey(identity.getPublicDecryptionKey());
+            response.encrypt(encryptionKey);
             // TODO: remember that the pubkey is just about to be sent, and on which stream!
-            proofOfWorkService.doProofOfWork(response);
+            proofOfWorkService.doProofOfWork(null, response, TTL.pubkey(), identity.getPrivateKey(), encryptionKey);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -239,41 +254,58 @@ public class InternalContext {
                 .expiresTime(expires)
                 .payload(new GetPubkey(contact))
                 .build();
-        messageCallback.proofOfWorkStarted(request.getPayload());
-        proofOfWorkService.doProofOfWork(request);
+        proofOfWorkService.doProofOfWork(null, request, TTL.getpubkey(), null, null);
     }
 
-    private void tryToFindMatchingPubkey(BitmessageAddress address) {
+    private void tryToFindMatchingPubkey(final BitmessageAddress address) {
         BitmessageAddress stored = addressRepository.getAddress(address.getAddress());
         if (stored != null) {
             address.setAlias(stored.getAlias());
             address.setSubscribed(stored.isSubscribed());
         }
-        for (ObjectMessage object : inventory.getObjects(address.getStream(), address.getVersion(), ObjectType.PUBKEY)) {
-            try {
-                Pubkey pubkey = (Pubkey) object.getPayload();
-                if (address.getVersion() == 4) {
-                    V4Pubkey v4Pubkey = (V4Pubkey) pubkey;
+        if (address.getVersion() == 4) {
+            // There might be several pubkeys with this tag, so their signatures are checked at once
+            List<V4Pubkey> candidates = new ArrayList<>();
+            List<Cryptography.SignedData> signatures = new ArrayList<>();
+            for (ObjectMessage object : inventory.getObjectsByTag(address.getTag(), ObjectType.PUBKEY)) {
+                try {
+                    V4Pubkey v4Pubkey = (V4Pubkey) object.getPayload();
                     if (Arrays.equals(address.getTag(), v4Pubkey.getTag())) {
                         v4Pubkey.decrypt(address.getPublicDecryptionKey());
-                        if (object.isSignatureValid(v4Pubkey)) {
-                            address.setPubkey(v4Pubkey);
-                            addressRepository.save(address);
-                            break;
-                        } else {
-                            LOG.info("Found pubkey for " + address + " but signature is invalid");
-                        }
+                        candidates.add(v4Pubkey);
+                        signatures.add(object.getSignedData(v4Pubkey));
                     }
+                } catch (Exception e) {
+                    LOG.debug(e.getMessage(), e);
+                }
+            }
+            boolean[] valid = cryptography.verifyBatch(signatures);
+            for (int i = 0; i < valid.length; i++) {
+                if (valid[i]) {
+                    address.setPubkey(candidates.get(i));
+                    addressRepository.save(address);
+                    break;
                 } else {
-                    if (Arrays.equals(pubkey.getRipe(), address.getRipe())) {
-                        address.setPubkey(pubkey);
-                        addressRepository.save(address);
-                        break;
-                    }
+                    LOG.info("Found pubkey for " + address + " but signature is invalid");
                 }
-            } catch (Exception e) {
-                LOG.debug(e.getMessage(), e);
             }
+        } else {
+            inventory.getObjects(address.getStream(), address.getVersion(), new Inventory.ObjectCallback() {
+                @Override
+                public boolean onObject(ObjectMessage object) {
+                    try {
+                        Pubkey pubkey = (Pubkey) object.getPayload();
+                        if (Arrays.equals(pubkey.getRipe(), address.getRipe())) {
+                            address.setPubkey(pubkey);
+                            addressRepository.save(address);
+                            return false;
+                        }
+                    } catch (Exception e) {
+                        LOG.debug(e.getMessage(), e);
+                    }
+                    return true;
+                }
+            }, ObjectType.PUBKEY);
         }
     }
 
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage;
+
+import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.ports.AddressRepository;
+
+import java.util.List;
+
+/**
+ * Tells the {@link DecryptionDispatcher} to reload its identities and subscriptions whenever an address is saved or
+ * removed, as this might have added or removed an identity or subscription. All other calls go straight to the
+ * address repository.
+ */
+class InvalidatingAddressRepository implements AddressRepository {
+    private final AddressRepository repository;
+    private final DecryptionDispatcher decryptionDispatcher;
+
+    InvalidatingAddressRepository(AddressRepository repository, DecryptionDispatcher decryptionDispatcher) {
+        this.repository = repository;
+        this.decryptionDispatcher = decryptionDispatcher;
+    }
+
+    @Override
+    public BitmessageAddress findContact(byte[] ripeOrTag) {
+        return repository.findContact(ripeOrTag);
+    }
+
+    @Override
+    public BitmessageAddress findIdentity(byte[] ripeOrTag) {
+        return repository.findIdentity(ripeOrTag);
+    }
+
+    @Override
+    public List<BitmessageAddress> getIdentities() {
+        return repository.getIdentities();
+    }
+
+    @Override
+    public List<BitmessageAddress> getSubscriptions() {
+        return repository.getSubscriptions();
+    }
+
+    @Override
+    public List<BitmessageAddress> getSubscriptions(long broadcastVersion) {
+        return repository.getSubscriptions(broadcastVersion);
+    }
+
+    @Override
+    public List<BitmessageAddress> getContacts() {
+        return repository.getContacts();
+    }
+
+    @Override
+    public void save(BitmessageAddress address) {
+        try {
+            repository.save(address);
+        } finally {
+            decryptionDispatcher.invalidate();
+        }
+    }
+
+    @Override
+    public void remove(BitmessageAddress address) {
+        try {
+            repository.remove(address);
+        } finally {
+            decryptionDispatcher.invalidate();
+        }
+    }
+
+    @Override
+    public BitmessageAddress getAddress(String address) {
+        return repository.getAddress(address);
+    }
+}
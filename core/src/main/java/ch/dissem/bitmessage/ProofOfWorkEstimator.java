@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage;
+
+import ch.dissem.bitmessage.entity.ObjectMessage;
+import ch.dissem.bitmessage.ports.ProofOfWorkEngine;
+import ch.dissem.bitmessage.utils.ProofOfWorkHasher;
+import ch.dissem.bitmessage.utils.Threads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ch.dissem.bitmessage.utils.Singleton.security;
+import static java.lang.Math.max;
+
+/**
+ * Estimates how long the proof of work for an object will take. The speed of the proof of work engine has to be
+ * measured first by calling {@link #calibrate()}, preferably while it's idle, e.g. at startup.
+ * {@link BitmessageContext#startup()} does this in the background, see {@link #calibrateInBackground()}.
+ */
+public class ProofOfWorkEstimator implements InternalContext.ContextHolder {
+    private static final Logger LOG = LoggerFactory.getLogger(ProofOfWorkEstimator.class);
+    private static final int CALIBRATION_JOBS = 8;
+    private static final long CALIBRATION_TRIALS = 1 << 18;
+    private static final long CALIBRATION_TIMEOUT_SECONDS = 60;
+    private static final double TWO_POW_64 = Math.pow(2, 64);
+
+    private InternalContext ctx;
+    private volatile double trialsPerSecond;
+    private final AtomicBoolean calibrationStarted = new AtomicBoolean();
+
+    /**
+     * Lets the proof of work engine calculate a few nonces with a low difficulty and measures how long it takes.
+     * As the number of trials needed for a nonce varies a lot, this only gives a rough idea of the engine's speed.
+     *
+     * @return the number of trials per second the engine manages, or the previous value if the engine took too long
+     * to calculate a nonce
+     */
+    public double calibrate() throws InterruptedException {
+        ProofOfWorkEngine engine = ctx.getProofOfWorkEngine();
+        byte[] target = ProofOfWorkHasher.toBytes(Long.MAX_VALUE / CALIBRATION_TRIALS * 2);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < CALIBRATION_JOBS; i++) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            engine.calculateNonce(security().randomBytes(64), target, new ProofOfWorkEngine.Callback() {
+                @Override
+                public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                    latch.countDown();
+                }
+            });
+            if (!latch.await(CALIBRATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOG.warn("Proof of work engine took too long, couldn't calibrate estimator");
+                return trialsPerSecond;
+            }
+        }
+        long time = max(System.currentTimeMillis() - start, 1);
+        trialsPerSecond = 1000.0 * CALIBRATION_JOBS * CALIBRATION_TRIALS / time;
+        LOG.info("Proof of work engine does about " + (long) trialsPerSecond + " trials per second");
+        return trialsPerSecond;
+    }
+
+    /**
+     * Calibrates on a separate thread, unless the calibration was already started before. The estimates don't know
+     * the expected time until it's finished.
+     */
+    public void calibrateInBackground() {
+        if (!calibrationStarted.compareAndSet(false, true)) return;
+        Threads.daemonThreads("POW calibration").newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    calibrate();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    LOG.warn("Couldn't calibrate proof of work estimator", e);
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * @return the number of trials per second measured by the last calibration, or 0 if it wasn't calibrated yet
+     */
+    public double getTrialsPerSecond() {
+        return trialsPerSecond;
+    }
+
+    /**
+     * @return how many nonces will have to be tried on average to find one for the given object
+     */
+    public long getExpectedTrials(ObjectMessage object, long nonceTrialsPerByte, long extraBytes) {
+        nonceTrialsPerByte = max(nonceTrialsPerByte, ctx.getNetworkNonceTrialsPerByte());
+        extraBytes = max(extraBytes, ctx.getNetworkExtraBytes());
+        byte[] target = security().getProofOfWorkTarget(object, nonceTrialsPerByte, extraBytes);
+        return getExpectedTrials(target);
+    }
+
+    /**
+     * @param target as used by the proof of work engine
+     * @return how many nonces will have to be tried on average to reach the target
+     */
+    public static long getExpectedTrials(byte[] target) {
+        double value = ProofOfWorkHasher.toLong(target);
+        if (value < 0) value += TWO_POW_64;
+        return Math.round(Math.min(TWO_POW_64 / (value + 1), Long.MAX_VALUE));
+    }
+
+    public Estimate estimate(ObjectMessage object, long nonceTrialsPerByte, long extraBytes) {
+        return estimate(getExpectedTrials(object, nonceTrialsPerByte, extraBytes));
+    }
+
+    public Estimate estimate(long expectedTrials) {
+        double speed = trialsPerSecond;
+        return new Estimate(expectedTrials, speed == 0 ? -1 : (long) (expectedTrials / speed));
+    }
+
+    @Override
+    public void setContext(InternalContext context) {
+        this.ctx = context;
+    }
+
+    public static class Estimate {
+        private final long expectedTrials;
+        private final long expectedSeconds;
+
+        public Estimate(long expectedTrials, long expectedSeconds) {
+            this.expectedTrials = expectedTrials;
+            this.expectedSeconds = expectedSeconds;
+        }
+
+        /**
+         * @return the average number of nonces that have to be tried
+         */
+        public long getExpectedTrials() {
+            return expectedTrials;
+        }
+
+        /**
+         * @return the average time the calculation takes in seconds, or -1 if the engine wasn't calibrated
+         */
+        public long getExpectedSeconds() {
+            return expectedSeconds;
+        }
+
+        /**
+         * @return how far the calculation should be after the given number of trials, between 0 and 1. Please
+         * note that it might need considerably more than the expected trials, in which case this stays at 1.
+         */
+        public double getProgress(long trials) {
+            return Math.min(1.0, (double) trials / expectedTrials);
+        }
+
+        @Override
+        public String toString() {
+            return expectedTrials + " trials, " + expectedSeconds + "s";
+        }
+    }
+}
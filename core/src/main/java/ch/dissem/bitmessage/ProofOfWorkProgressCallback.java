@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage;
+
+import ch.dissem.bitmessage.entity.payload.ObjectPayload;
+
+/**
+ * A message callback that is also told how long the proof of work is expected to take, and how far it got.
+ */
+public interface ProofOfWorkProgressCallback extends MessageCallback {
+    /**
+     * Called right after {@link #proofOfWorkStarted(ObjectPayload)}. The expected time is only known if the
+     * {@link ProofOfWorkEstimator} was calibrated, which {@link BitmessageContext#startup()} does in the background.
+     */
+    void proofOfWorkEstimated(ObjectPayload message, ProofOfWorkEstimator.Estimate estimate);
+
+    /**
+     * Called every now and then during the calculation, if the proof of work engine reports its progress (which
+     * the default engine does).
+     *
+     * @param trials the number of nonces tried so far
+     */
+    void proofOfWorkProgress(ObjectPayload message, long trials, ProofOfWorkEstimator.Estimate estimate);
+}
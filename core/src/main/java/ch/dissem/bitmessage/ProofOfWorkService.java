@@ -1,31 +1,113 @@
 package ch.dissem.bitmessage;
 
 import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.entity.Encrypted;
 import ch.dissem.bitmessage.entity.ObjectMessage;
 import ch.dissem.bitmessage.entity.Plaintext;
 import ch.dissem.bitmessage.entity.PlaintextHolder;
 import ch.dissem.bitmessage.entity.payload.Pubkey;
+import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
 import ch.dissem.bitmessage.ports.MessageRepository;
-import ch.dissem.bitmessage.ports.ProofOfWorkEngine;
+import ch.dissem.bitmessage.ports.PrioritizedProofOfWorkEngine;
 import ch.dissem.bitmessage.ports.ProofOfWorkRepository;
 import ch.dissem.bitmessage.ports.Cryptography;
+import ch.dissem.bitmessage.utils.Property;
+import ch.dissem.bitmessage.utils.Threads;
+import ch.dissem.bitmessage.utils.UnixTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static ch.dissem.bitmessage.utils.Singleton.security;
+import static ch.dissem.bitmessage.utils.Strings.hex;
 
 /**
+ * Schedules the proof of work for objects to send. Jobs are handed to the proof of work engine ordered by their
+ * priority (see {@link PrioritizedProofOfWorkEngine.Priority#of(long)}) and then by their expiration time, and only
+ * a few at a time, so the ones that need to be sent first are calculated first.
+ * <p>
+ * A {@link PrioritizedProofOfWorkEngine} shares its workers between the jobs it got, so it gets about twice as many
+ * jobs as there are processors, and can itself prefer the urgent ones. Other engines only get two jobs at a time.
+ * The limit can also be set explicitly.
+ * </p>
+ * <p>
+ * If a job had to wait for more than a tenth of its time to live, the object gets a new expiration time (and is
+ * therefore signed and encrypted again) before the proof of work is started. Otherwise the object would have
+ * considerably less time to reach its recipient than intended.
+ * </p>
+ * <p>
+ * The message callback is told when the calculation for an object starts and finishes. If it is a
+ * {@link ProofOfWorkProgressCallback}, it also gets an estimate of the time needed and is told about the progress.
+ * </p>
+ * <p>
+ * Finished nonces are handed to a separate thread that stores the objects and offers them to the network, so the
+ * engine's workers never have to wait for the database. Objects finished at about the same time are removed from
+ * the proof of work repository together. Checkpoints are written by another thread as well.
+ * </p>
+ *
  * @author Christian Basler
  */
-public class ProofOfWorkService implements ProofOfWorkEngine.Callback, InternalContext.ContextHolder {
+public class ProofOfWorkService implements PrioritizedProofOfWorkEngine.CheckpointCallback, InternalContext.ContextHolder {
     private final static Logger LOG = LoggerFactory.getLogger(ProofOfWorkService.class);
+    private final static int DEFAULT_RUNNING_JOBS = 2;
 
     private Cryptography cryptography;
     private InternalContext ctx;
     private ProofOfWorkRepository powRepo;
     private MessageRepository messageRepo;
+    private MessageCallback messageCallback;
+    private final ProofOfWorkEstimator estimator = new ProofOfWorkEstimator();
+    private final int configuredRunningJobs;
+
+    private final Map<String, Job> runningJobs = new ConcurrentHashMap<>();
+    private final BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+    private volatile Thread completionThread;
+    private final ConcurrentMap<String, Checkpoint> pendingCheckpoints = new ConcurrentHashMap<>();
+    private final ExecutorService checkpointWriter = Threads.idleExecutor("POW checkpoints", 1);
+    private final Runnable writeCheckpoints = new Runnable() {
+        @Override
+        public void run() {
+            writeCheckpoints();
+        }
+    };
+
+    private final PriorityQueue<Job> queue = new PriorityQueue<>(11, new Comparator<Job>() {
+        @Override
+        public int compare(Job a, Job b) {
+            int priority = a.priority.compareTo(b.priority);
+            if (priority != 0) return priority;
+            long x = a.object.getExpiresTime();
+            long y = b.object.getExpiresTime();
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+    });
+    // All of the following are guarded by the queue
+    private boolean dispatching;
+    private int running;
+    private int maxRunningJobs = DEFAULT_RUNNING_JOBS;
+    private long startedJobs;
+    private long renewedJobs;
+    private long totalWaitTime;
+    private long maxWaitTime;
+
+    /**
+     * Creates a service that decides how many jobs the proof of work engine gets at a time, depending on the engine.
+     */
+    public ProofOfWorkService() {
+        this(0);
+    }
+
+    /**
+     * @param maxRunningJobs the number of jobs the proof of work engine gets at a time, or 0 to decide depending on
+     *                       the engine
+     */
+    public ProofOfWorkService(int maxRunningJobs) {
+        if (maxRunningJobs < 0) throw new IllegalArgumentException("The number of jobs must not be negative");
+        this.configuredRunningJobs = maxRunningJobs;
+    }
 
     public void doMissingProofOfWork() {
         List<byte[]> items = powRepo.getItems();
@@ -34,8 +116,10 @@ public class ProofOfWorkService implements ProofOfWorkEngine.Callback, InternalC
         LOG.info("Doing POW for " + items.size() + " tasks.");
         for (byte[] initialHash : items) {
             ProofOfWorkRepository.Item item = powRepo.getItem(initialHash);
-            cryptography.doProofOfWork(item.object, item.nonceTrialsPerByte, item.extraBytes, this);
+            enqueue(new Job(item.object, item.nonceTrialsPerByte, item.extraBytes, item.checkpoint, 0, null, null,
+                    null));
         }
+        dispatch();
     }
 
     public void doProofOfWork(ObjectMessage object) {
@@ -43,34 +127,280 @@ public class ProofOfWorkService implements ProofOfWorkEngine.Callback, InternalC
     }
 
     public void doProofOfWork(BitmessageAddress recipient, ObjectMessage object) {
+        doProofOfWork(recipient, object, 0, null, null);
+    }
+
+    /**
+     * Schedules the proof of work for the given object. If the signing and encryption keys are known, the object can
+     * get a new expiration time if it has to wait too long.
+     *
+     * @param recipient           to get the difficulty from, or null for the network default
+     * @param timeToLive          the intended time to live of the object in seconds, or 0 if it must not be changed
+     * @param signingKey          the key the object is signed with, if it is signed
+     * @param publicEncryptionKey the key the object is encrypted with, if it is encrypted
+     */
+    public void doProofOfWork(BitmessageAddress recipient, ObjectMessage object, long timeToLive,
+                              PrivateKey signingKey, byte[] publicEncryptionKey) {
         Pubkey pubkey = recipient == null ? null : recipient.getPubkey();
 
         long nonceTrialsPerByte = pubkey == null ? ctx.getNetworkNonceTrialsPerByte() : pubkey.getNonceTrialsPerByte();
         long extraBytes = pubkey == null ? ctx.getNetworkExtraBytes() : pubkey.getExtraBytes();
 
+        Plaintext plaintext = store(object, nonceTrialsPerByte, extraBytes);
+        enqueue(new Job(object, nonceTrialsPerByte, extraBytes, 0, timeToLive, signingKey, publicEncryptionKey,
+                plaintext));
+        dispatch();
+    }
+
+    /**
+     * @return the plaintext of the object, if it has one
+     */
+    private Plaintext store(ObjectMessage object, long nonceTrialsPerByte, long extraBytes) {
         powRepo.putObject(object, nonceTrialsPerByte, extraBytes);
         if (object.getPayload() instanceof PlaintextHolder) {
             Plaintext plaintext = ((PlaintextHolder) object.getPayload()).getPlaintext();
             plaintext.setInitialHash(cryptography.getInitialHash(object));
             messageRepo.save(plaintext);
+            return plaintext;
         }
-        cryptography.doProofOfWork(object, nonceTrialsPerByte, extraBytes, this);
+        return null;
     }
 
+    private void enqueue(Job job) {
+        synchronized (queue) {
+            queue.add(job);
+        }
+    }
+
+    /**
+     * Starts queued jobs until the maximum number of running jobs is reached. As some engines call back
+     * synchronously, a call while already dispatching just returns and leaves the work to the first call.
+     */
+    private void dispatch() {
+        synchronized (queue) {
+            if (dispatching) return;
+            dispatching = true;
+        }
+        while (true) {
+            Job job;
+            synchronized (queue) {
+                if (running >= maxRunningJobs || queue.isEmpty()) {
+                    dispatching = false;
+                    return;
+                }
+                job = queue.poll();
+                running++;
+                long waitTime = System.currentTimeMillis() - job.queuedAt;
+                startedJobs++;
+                totalWaitTime += waitTime;
+                if (waitTime > maxWaitTime) maxWaitTime = waitTime;
+            }
+            try {
+                start(job);
+            } catch (RuntimeException e) {
+                LOG.error("Couldn't start proof of work", e);
+                synchronized (queue) {
+                    running--;
+                }
+            }
+        }
+    }
+
+    private void start(Job job) {
+        if (job.isStale()) {
+            try {
+                job = renew(job);
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Couldn't renew expiration time, sending object as it is", e);
+            }
+        }
+        byte[] initialHash = cryptography.getInitialHash(job.object);
+        job.estimate = estimator.estimate(job.object, job.nonceTrialsPerByte, job.extraBytes);
+        runningJobs.put(hex(initialHash).toString(), job);
+        messageCallback.proofOfWorkStarted(job.object.getPayload());
+        if (messageCallback instanceof ProofOfWorkProgressCallback) {
+            ((ProofOfWorkProgressCallback) messageCallback).proofOfWorkEstimated(job.object.getPayload(), job.estimate);
+        }
+        cryptography.doProofOfWork(job.object, job.nonceTrialsPerByte, job.extraBytes, job.startNonce, this);
+    }
+
+    private Job renew(Job job) throws IOException {
+        byte[] oldInitialHash = cryptography.getInitialHash(job.object);
+        ObjectMessage object = new ObjectMessage.Builder()
+                .stream(job.object.getStream())
+                .expiresTime(UnixTime.now(+job.timeToLive))
+                .payload(job.object.getPayload())
+                .build();
+        if (object.isSigned()) {
+            object.sign(job.signingKey);
+        }
+        if (object.getPayload() instanceof Encrypted) {
+            object.encrypt(job.publicEncryptionKey);
+        }
+        LOG.info("Object waited too long for proof of work, now expires at " + object.getExpiresTime());
+        powRepo.removeObject(oldInitialHash);
+        Plaintext plaintext = store(object, job.nonceTrialsPerByte, job.extraBytes);
+        synchronized (queue) {
+            renewedJobs++;
+        }
+        return new Job(object, job.nonceTrialsPerByte, job.extraBytes, 0, job.timeToLive,
+                job.signingKey, job.publicEncryptionKey, plaintext);
+    }
+
+    /**
+     * Only hands the nonce to the completion thread, so the engine's worker can continue right away.
+     */
     @Override
     public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
-        ObjectMessage object = powRepo.getItem(initialHash).object;
-        object.setNonce(nonce);
-//        messageCallback.proofOfWorkCompleted(payload);
-        Plaintext plaintext = messageRepo.getMessage(initialHash);
+        String key = hex(initialHash).toString();
+        pendingCheckpoints.remove(key);
+        Job job = runningJobs.remove(key);
+        completions.add(new Completion(initialHash, nonce, job));
+        if (completionThread == null) {
+            startCompletionThread();
+        }
+    }
+
+    private synchronized void startCompletionThread() {
+        if (completionThread != null) return;
+        completionThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        List<Completion> batch = new LinkedList<>();
+                        batch.add(completions.take());
+                        completions.drainTo(batch);
+                        complete(batch);
+                    }
+                } catch (InterruptedException e) {
+                    LOG.debug("POW completion thread was interrupted", e);
+                }
+            }
+        }, "POW completion");
+        completionThread.setDaemon(true);
+        completionThread.start();
+    }
+
+    private void complete(List<Completion> batch) {
+        List<byte[]> done = new ArrayList<>(batch.size());
+        try {
+            for (Completion completion : batch) {
+                try {
+                    complete(completion);
+                    done.add(completion.initialHash);
+                } catch (RuntimeException e) {
+                    LOG.error("Couldn't store object with calculated nonce", e);
+                } finally {
+                    finished(completion);
+                }
+            }
+            if (!done.isEmpty()) {
+                powRepo.removeObjects(done);
+            }
+        } finally {
+            dispatch();
+        }
+    }
+
+    /**
+     * Only jobs started by this service are counted as running, so nonces reported for other objects, or reported
+     * twice, don't free a slot.
+     */
+    private void finished(Completion completion) {
+        if (completion.job == null) return;
+        synchronized (queue) {
+            running--;
+        }
+    }
+
+    private void complete(Completion completion) {
+        Job job = completion.job;
+        // If the job isn't known, the nonce was found for an object that wasn't started by this service
+        ObjectMessage object = job != null ? job.object : powRepo.getItem(completion.initialHash).object;
+        object.setNonce(completion.nonce);
+        messageCallback.proofOfWorkCompleted(object.getPayload());
+        Plaintext plaintext = job != null && job.plaintext != null ? job.plaintext
+                : messageRepo.getMessage(completion.initialHash);
         if (plaintext != null) {
             plaintext.setInventoryVector(object.getInventoryVector());
             messageRepo.save(plaintext);
         }
         ctx.getInventory().storeObject(object);
-        ctx.getProofOfWorkRepository().removeObject(initialHash);
         ctx.getNetworkHandler().offer(object.getInventoryVector());
-//        messageCallback.messageOffered(payload, object.getInventoryVector());
+        messageCallback.messageOffered(object.getPayload(), object.getInventoryVector());
+    }
+
+    /**
+     * Only remembers the checkpoint, it's written to the repository by a separate thread. If several checkpoints
+     * for the same object arrive before it gets to it, only the latest one is written.
+     */
+    @Override
+    public void onCheckpoint(byte[] initialHash, long nonce) {
+        String key = hex(initialHash).toString();
+        if (pendingCheckpoints.put(key, new Checkpoint(initialHash, nonce)) == null) {
+            checkpointWriter.execute(writeCheckpoints);
+        }
+        if (messageCallback instanceof ProofOfWorkProgressCallback) {
+            Job job = runningJobs.get(key);
+            if (job != null) {
+                ((ProofOfWorkProgressCallback) messageCallback).proofOfWorkProgress(job.object.getPayload(),
+                        nonce - job.startNonce, job.estimate);
+            }
+        }
+    }
+
+    private void writeCheckpoints() {
+        for (String key : pendingCheckpoints.keySet()) {
+            Checkpoint checkpoint = pendingCheckpoints.remove(key);
+            if (checkpoint == null) continue;
+            try {
+                powRepo.putCheckpoint(checkpoint.initialHash, checkpoint.nonce);
+            } catch (RuntimeException e) {
+                // Losing a checkpoint only means some nonces will be tried again
+                LOG.warn("Couldn't store checkpoint", e);
+            }
+        }
+    }
+
+    /**
+     * @return the estimator for the configured proof of work engine, which needs to be calibrated before it can
+     * estimate the time needed. {@link BitmessageContext#startup()} calibrates it in the background.
+     */
+    public ProofOfWorkEstimator getEstimator() {
+        return estimator;
+    }
+
+    /**
+     * @return the number of jobs waiting to be started
+     */
+    public int getQueueSize() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return queue depth and wait times (in seconds) of the proof of work jobs
+     */
+    public Property getStatus() {
+        synchronized (queue) {
+            long now = System.currentTimeMillis();
+            long longestWait = 0;
+            for (Job job : queue) {
+                longestWait = Math.max(longestWait, now - job.queuedAt);
+            }
+            return new Property("proofOfWork", null,
+                    new Property("queued", queue.size()),
+                    new Property("running", running),
+                    new Property("maxRunning", maxRunningJobs),
+                    new Property("longestCurrentWait", longestWait / 1000),
+                    new Property("averageWait", startedJobs == 0 ? 0 : totalWaitTime / startedJobs / 1000),
+                    new Property("maxWait", maxWaitTime / 1000),
+                    new Property("renewed", renewedJobs),
+                    new Property("trialsPerSecond", (long) estimator.getTrialsPerSecond())
+            );
+        }
     }
 
     @Override
@@ -79,5 +409,75 @@ public class ProofOfWorkService implements ProofOfWorkEngine.Callback, InternalC
         this.cryptography = security();
         this.powRepo = ctx.getProofOfWorkRepository();
         this.messageRepo = ctx.getMessageRepository();
+        this.messageCallback = ctx.getMessageCallback();
+        this.estimator.setContext(ctx);
+        synchronized (queue) {
+            if (configuredRunningJobs > 0) {
+                maxRunningJobs = configuredRunningJobs;
+            } else if (ctx.getProofOfWorkEngine() instanceof PrioritizedProofOfWorkEngine) {
+                maxRunningJobs = 2 * Runtime.getRuntime().availableProcessors();
+            } else {
+                maxRunningJobs = DEFAULT_RUNNING_JOBS;
+            }
+        }
+    }
+
+    private static class Job {
+        private final ObjectMessage object;
+        private final long nonceTrialsPerByte;
+        private final long extraBytes;
+        private final long startNonce;
+        private final long timeToLive;
+        private final PrivateKey signingKey;
+        private final byte[] publicEncryptionKey;
+        private final Plaintext plaintext;
+        private final PrioritizedProofOfWorkEngine.Priority priority;
+        private final long queuedAt = System.currentTimeMillis();
+        private ProofOfWorkEstimator.Estimate estimate;
+
+        private Job(ObjectMessage object, long nonceTrialsPerByte, long extraBytes, long startNonce,
+                    long timeToLive, PrivateKey signingKey, byte[] publicEncryptionKey, Plaintext plaintext) {
+            this.object = object;
+            this.nonceTrialsPerByte = nonceTrialsPerByte;
+            this.extraBytes = extraBytes;
+            this.startNonce = startNonce;
+            this.timeToLive = timeToLive;
+            this.signingKey = signingKey;
+            this.publicEncryptionKey = publicEncryptionKey;
+            this.plaintext = plaintext;
+            this.priority = PrioritizedProofOfWorkEngine.Priority.of(object.getType());
+        }
+
+        /**
+         * @return true if the job waited for more than a tenth of its time to live and can be renewed
+         */
+        private boolean isStale() {
+            if (timeToLive <= 0) return false;
+            if (object.isSigned() && signingKey == null) return false;
+            if (object.getPayload() instanceof Encrypted && publicEncryptionKey == null) return false;
+            return System.currentTimeMillis() - queuedAt > timeToLive * 1000 / 10;
+        }
+    }
+
+    private static class Checkpoint {
+        private final byte[] initialHash;
+        private final long nonce;
+
+        private Checkpoint(byte[] initialHash, long nonce) {
+            this.initialHash = initialHash;
+            this.nonce = nonce;
+        }
+    }
+
+    private static class Completion {
+        private final byte[] initialHash;
+        private final byte[] nonce;
+        private final Job job;
+
+        private Completion(byte[] initialHash, byte[] nonce, Job job) {
+            this.initialHash = initialHash;
+            this.nonce = nonce;
+            this.job = job;
+        }
     }
 }
@@ -22,6 +22,7 @@ import ch.dissem.bitmessage.entity.payload.Pubkey;
 import ch.dissem.bitmessage.entity.valueobject.InventoryVector;
 import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
 import ch.dissem.bitmessage.exception.DecryptionFailedException;
+import ch.dissem.bitmessage.ports.Cryptography;
 import ch.dissem.bitmessage.utils.Bytes;
 import ch.dissem.bitmessage.utils.Encode;
 
@@ -153,6 +154,15 @@ public class ObjectMessage implements MessagePayload {
         return security().isSignatureValid(getBytesToSign(), payload.getSignature(), pubkey);
     }
 
+    /**
+     * @return what's needed to check the signature, so several objects can be checked at once using
+     * {@link Cryptography#verifyBatch(java.util.List)}
+     */
+    public Cryptography.SignedData getSignedData(Pubkey pubkey) {
+        if (isEncrypted()) throw new IllegalStateException("Payload must be decrypted first");
+        return new Cryptography.SignedData(getBytesToSign(), payload.getSignature(), pubkey);
+    }
+
     @Override
     public void write(OutputStream out) throws IOException {
         if (nonce != null) {
@@ -18,19 +18,29 @@ package ch.dissem.bitmessage.entity.payload;
 
 import ch.dissem.bitmessage.entity.Streamable;
 import ch.dissem.bitmessage.exception.DecryptionFailedException;
+import ch.dissem.bitmessage.ports.Cryptography;
 import ch.dissem.bitmessage.utils.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.security.MessageDigest;
 import java.util.Arrays;
 
-import static ch.dissem.bitmessage.entity.valueobject.PrivateKey.PRIVATE_KEY_SIZE;
 import static ch.dissem.bitmessage.utils.Singleton.security;
 
 
+/**
+ * Data encrypted for a public key. Encryption and decryption are done in chunks of {@link #BUFFER_SIZE} bytes, so
+ * apart from the cipher text that's part of this object, memory usage doesn't depend on the size of the message.
+ */
 public class CryptoBox implements Streamable {
     private static final Logger LOG = LoggerFactory.getLogger(CryptoBox.class);
+    private static final int BUFFER_SIZE = 4096;
+    /**
+     * As the exception has neither a stack trace nor a cause, the same instance can be thrown every time.
+     */
+    private static final DecryptionFailedException MAC_MISMATCH = new DecryptionFailedException();
 
     private final byte[] initializationVector;
     private final int curveType;
@@ -41,11 +51,16 @@ public class CryptoBox implements Streamable {
     private long addressVersion;
 
 
-    public CryptoBox(Streamable data, byte[] K) throws IOException {
-        this(Encode.bytes(data), K);
+    public CryptoBox(final byte[] data, byte[] K) throws IOException {
+        this(new Streamable() {
+            @Override
+            public void write(OutputStream stream) throws IOException {
+                stream.write(data);
+            }
+        }, K);
     }
 
-    public CryptoBox(byte[] data, byte[] K) throws IOException {
+    public CryptoBox(Streamable data, byte[] K) throws IOException {
         curveType = 0x02CA;
 
         // 1. The destination public key is called K.
@@ -53,8 +68,10 @@ public class CryptoBox implements Streamable {
         initializationVector = security().randomBytes(16);
 
         // 3. Generate a new random EC key pair with private key called r and public key called R.
-        byte[] r = security().randomBytes(PRIVATE_KEY_SIZE);
-        R = security().createPublicKey(r);
+        //    The key pair might have been generated in advance.
+        Cryptography.KeyPair keyPair = security().createEphemeralKeyPair();
+        byte[] r = keyPair.privateKey;
+        R = keyPair.publicKey;
         // 4. Do an EC point multiply with public key K and private key r. This gives you public key P.
         byte[] P = security().multiply(K, r);
         byte[] X = Points.getX(P);
@@ -65,7 +82,14 @@ public class CryptoBox implements Streamable {
         byte[] key_m = Arrays.copyOfRange(H, 32, 64);
         // 7. Pad the input text to a multiple of 16 bytes, in accordance to PKCS7.
         // 8. Encrypt the data with AES-256-CBC, using IV as initialization vector, key_e as encryption key and the padded input text as payload. Call the output cipher text.
-        encrypted = security().crypt(true, data, key_e, initializationVector);
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        OutputStream out = new BufferedOutputStream(
+                security().crypt(true, cipherText, key_e, initializationVector),
+                BUFFER_SIZE
+        );
+        data.write(out);
+        out.close();
+        encrypted = cipherText.toByteArray();
         // 9. Calculate a 32 byte MAC with HMACSHA256, using key_m as salt and IV + R + cipher text as data. Call the output MAC.
         mac = calculateMac(key_m);
 
@@ -101,7 +125,8 @@ public class CryptoBox implements Streamable {
     public InputStream decrypt(byte[] k) throws DecryptionFailedException {
         // 1. The private key used to decrypt is called k.
         // 2. Do an EC point multiply with private key k and public key R. This gives you public key P.
-        byte[] P = security().multiply(R, k);
+        //    R is only used for this object, so it isn't worth caching.
+        byte[] P = security().multiplyEphemeral(R, k);
         // 3. Use the X component of public key P and calculate the SHA512 hash H.
         byte[] H = security().sha512(Arrays.copyOfRange(P, 1, 33));
         // 4. The first 32 bytes of H are called key_e and the last 32 bytes are called key_m.
@@ -110,31 +135,48 @@ public class CryptoBox implements Streamable {
 
         // 5. Calculate MAC' with HMACSHA256, using key_m as salt and IV + R + cipher text as data.
         // 6. Compare MAC with MAC'. If not equal, decryption will fail.
-        if (!Arrays.equals(mac, calculateMac(key_m))) {
-            throw new DecryptionFailedException();
+        //    The comparison takes the same time no matter where the first difference is.
+        if (!MessageDigest.isEqual(mac, calculateMac(key_m))) {
+            throw MAC_MISMATCH;
         }
 
         // 7. Decrypt the cipher text with AES-256-CBC, using IV as initialization vector, key_e as decryption key
         //    and the cipher text as payload. The output is the padded input text.
-        return new ByteArrayInputStream(security().crypt(false, encrypted, key_e, initializationVector));
+        //    The cipher text is decrypted chunk by chunk while the stream is read.
+        return new DecryptingInputStream(encrypted, key_e, initializationVector);
+    }
+
+    /**
+     * Like {@link #decrypt(byte[])}, but writes the decrypted data to the given stream, which is left open.
+     *
+     * @param k   a private key, typically should be 32 bytes long
+     * @param out receives the decrypted data
+     * @throws DecryptionFailedException if the payload can't be decrypted using this private key
+     */
+    public void decrypt(byte[] k, OutputStream out) throws DecryptionFailedException, IOException {
+        InputStream in = decrypt(k);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+        }
     }
 
     private byte[] calculateMac(byte[] key_m) {
         try {
-            ByteArrayOutputStream macData = new ByteArrayOutputStream();
-            writeWithoutMAC(macData);
-            return security().mac(key_m, macData.toByteArray());
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeHeader(header);
+            return security().mac(key_m, header.toByteArray(), encrypted);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void writeWithoutMAC(OutputStream out) throws IOException {
+    private void writeHeader(OutputStream out) throws IOException {
         out.write(initializationVector);
         Encode.int16(curveType, out);
         writeCoordinateComponent(out, Points.getX(R));
         writeCoordinateComponent(out, Points.getY(R));
-        out.write(encrypted);
     }
 
     private void writeCoordinateComponent(OutputStream out, byte[] x) throws IOException {
@@ -146,10 +188,83 @@ public class CryptoBox implements Streamable {
 
     @Override
     public void write(OutputStream stream) throws IOException {
-        writeWithoutMAC(stream);
+        writeHeader(stream);
+        stream.write(encrypted);
         stream.write(mac);
     }
 
+    /**
+     * Feeds the cipher text to the cipher in chunks as the decrypted data is read.
+     */
+    private static class DecryptingInputStream extends InputStream {
+        private final byte[] encrypted;
+        private final DecryptedBuffer decrypted = new DecryptedBuffer();
+        private final OutputStream cipher;
+        private int position;
+        private boolean finished;
+
+        private DecryptingInputStream(byte[] encrypted, byte[] key_e, byte[] initializationVector) {
+            this.encrypted = encrypted;
+            this.cipher = security().crypt(false, decrypted, key_e, initializationVector);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (decrypted.available() == 0) {
+                if (!decryptNextChunk()) return -1;
+            }
+            return decrypted.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return decrypted.available();
+        }
+
+        private boolean decryptNextChunk() throws IOException {
+            if (finished) return false;
+            if (position == encrypted.length) {
+                // writes the last block
+                cipher.close();
+                finished = true;
+                return true;
+            }
+            int length = Math.min(BUFFER_SIZE, encrypted.length - position);
+            cipher.write(encrypted, position, length);
+            position += length;
+            return true;
+        }
+    }
+
+    /**
+     * Holds the decrypted data until it's read, so it never gets larger than a chunk plus one block.
+     */
+    private static class DecryptedBuffer extends ByteArrayOutputStream {
+        private int position;
+
+        private int available() {
+            return count - position;
+        }
+
+        private int read(byte[] b, int off, int len) {
+            int length = Math.min(len, available());
+            System.arraycopy(buf, position, b, off, length);
+            position += length;
+            if (position == count) {
+                reset();
+                position = 0;
+            }
+            return length;
+        }
+    }
+
     public static final class Builder {
         private byte[] initializationVector;
         private int curveType;
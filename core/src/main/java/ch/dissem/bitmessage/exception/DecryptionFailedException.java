@@ -16,5 +16,12 @@
 
 package ch.dissem.bitmessage.exception;
 
+/**
+ * Thrown if data wasn't encrypted for the given key, which is the normal outcome for most objects received. The
+ * exception therefore doesn't fill in a stack trace, as that would cost more than checking the MAC.
+ */
 public class DecryptionFailedException extends Exception {
+    public DecryptionFailedException() {
+        super(null, null, false, false);
+    }
 }
@@ -22,6 +22,8 @@ import ch.dissem.bitmessage.entity.payload.Pubkey;
 import ch.dissem.bitmessage.exception.InsufficientProofOfWorkException;
 import ch.dissem.bitmessage.factory.Factory;
 import ch.dissem.bitmessage.utils.Bytes;
+import ch.dissem.bitmessage.utils.LruCache;
+import ch.dissem.bitmessage.utils.Threads;
 import ch.dissem.bitmessage.utils.UnixTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,14 +32,32 @@ import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static ch.dissem.bitmessage.entity.valueobject.PrivateKey.PRIVATE_KEY_SIZE;
 import static ch.dissem.bitmessage.utils.Numbers.max;
 
 /**
  * Implements everything that isn't directly dependent on either Spongy- or Bouncycastle.
+ * <p>
+ * Looking up JCA instances in the provider is surprisingly expensive, so each thread keeps its own message digests
+ * and MAC.
+ * </p>
+ * <p>
+ * Each time an ephemeral key pair is taken, the pool of prepared ones is refilled in the background, so a burst of
+ * outgoing messages only needs one point multiplication each. All instances share one generator thread, which
+ * stops after a few seconds without work. The prepared private keys stay in memory until they're used, which is no
+ * worse than the identities' private keys that are kept there anyway, but the pool is kept small.
+ * </p>
  */
 public abstract class AbstractCryptography implements Cryptography, InternalContext.ContextHolder {
     public static final Logger LOG = LoggerFactory.getLogger(Cryptography.class);
@@ -45,10 +65,47 @@ public abstract class AbstractCryptography implements Cryptography, InternalCont
     private static final BigInteger TWO = BigInteger.valueOf(2);
     private static final BigInteger TWO_POW_64 = TWO.pow(64);
     private static final BigInteger TWO_POW_16 = TWO.pow(16);
+    // Worker threads are only started when needed, and they're daemon threads
+    private static final ForkJoinPool VERIFICATION_POOL = new ForkJoinPool();
+    private static final ExecutorService EPHEMERAL_KEY_GENERATOR = Threads.idleExecutor("Ephemeral key generator", 1);
+    private static final int EPHEMERAL_KEY_POOL_SIZE = 16;
+    protected static final int DEFAULT_KEY_CACHE_SIZE = 1000;
 
     private final String provider;
     private InternalContext context;
 
+    private final BlockingQueue<KeyPair> ephemeralKeys = new ArrayBlockingQueue<>(EPHEMERAL_KEY_POOL_SIZE);
+    private final AtomicBoolean refillingEphemeralKeys = new AtomicBoolean();
+    private final Runnable refillEphemeralKeys = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (ephemeralKeys.remainingCapacity() > 0) {
+                    ephemeralKeys.offer(createKeyPair());
+                }
+            } finally {
+                refillingEphemeralKeys.set(false);
+            }
+        }
+    };
+
+    private final ThreadLocal<Map<String, MessageDigest>> digests = new ThreadLocal<Map<String, MessageDigest>>() {
+        @Override
+        protected Map<String, MessageDigest> initialValue() {
+            return new HashMap<>();
+        }
+    };
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance("HmacSHA256", provider);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
     protected AbstractCryptography(String provider) {
         this.provider = provider;
     }
@@ -96,8 +153,31 @@ public abstract class AbstractCryptography implements Cryptography, InternalCont
         return result;
     }
 
+    @Override
+    public KeyPair createEphemeralKeyPair() {
+        KeyPair keyPair = ephemeralKeys.poll();
+        if (refillingEphemeralKeys.compareAndSet(false, true)) {
+            EPHEMERAL_KEY_GENERATOR.execute(refillEphemeralKeys);
+        }
+        if (keyPair == null) {
+            // the generator didn't keep up, so there's no need to wait for it
+            keyPair = createKeyPair();
+        }
+        return keyPair;
+    }
+
+    private KeyPair createKeyPair() {
+        byte[] privateKey = randomBytes(PRIVATE_KEY_SIZE);
+        return new KeyPair(privateKey, createPublicKey(privateKey));
+    }
+
     public void doProofOfWork(ObjectMessage object, long nonceTrialsPerByte,
                               long extraBytes, ProofOfWorkEngine.Callback callback) {
+        doProofOfWork(object, nonceTrialsPerByte, extraBytes, 0, callback);
+    }
+
+    public void doProofOfWork(ObjectMessage object, long nonceTrialsPerByte,
+                              long extraBytes, long startNonce, ProofOfWorkEngine.Callback callback) {
         nonceTrialsPerByte = max(nonceTrialsPerByte, context.getNetworkNonceTrialsPerByte());
         extraBytes = max(extraBytes, context.getNetworkExtraBytes());
 
@@ -105,7 +185,13 @@ public abstract class AbstractCryptography implements Cryptography, InternalCont
 
         byte[] target = getProofOfWorkTarget(object, nonceTrialsPerByte, extraBytes);
 
-        context.getProofOfWorkEngine().calculateNonce(initialHash, target, callback);
+        ProofOfWorkEngine engine = context.getProofOfWorkEngine();
+        if (engine instanceof PrioritizedProofOfWorkEngine) {
+            PrioritizedProofOfWorkEngine.Priority priority = PrioritizedProofOfWorkEngine.Priority.of(object.getType());
+            ((PrioritizedProofOfWorkEngine) engine).calculateNonce(initialHash, target, priority, startNonce, callback);
+        } else {
+            engine.calculateNonce(initialHash, target, callback);
+        }
     }
 
     public void checkProofOfWork(ObjectMessage object, long nonceTrialsPerByte, long extraBytes)
@@ -148,18 +234,50 @@ public abstract class AbstractCryptography implements Cryptography, InternalCont
     }
 
     private MessageDigest md(String algorithm) {
+        Map<String, MessageDigest> threadDigests = digests.get();
+        MessageDigest md = threadDigests.get(algorithm);
+        if (md == null) {
+            try {
+                md = MessageDigest.getInstance(algorithm, provider);
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+            threadDigests.put(algorithm, md);
+        } else {
+            // In case the previous use was aborted by an exception
+            md.reset();
+        }
+        return md;
+    }
+
+    public boolean[] verifyBatch(List<SignedData> items) {
+        List<SignedData> list = new ArrayList<>(items);
+        boolean[] result = new boolean[list.size()];
+        if (list.size() == 1) {
+            result[0] = verify(list.get(0));
+        } else if (list.size() > 1) {
+            VERIFICATION_POOL.invoke(new VerificationTask(list, result, 0, list.size()));
+        }
+        return result;
+    }
+
+    private boolean verify(SignedData item) {
         try {
-            return MessageDigest.getInstance(algorithm, provider);
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException(e);
+            return isSignatureValid(item.data, item.signature, item.pubkey);
+        } catch (RuntimeException e) {
+            LOG.debug("Couldn't check signature", e);
+            return false;
         }
     }
 
-    public byte[] mac(byte[] key_m, byte[] data) {
+    public byte[] mac(byte[] key_m, byte[]... data) {
         try {
-            Mac mac = Mac.getInstance("HmacSHA256", provider);
+            Mac mac = macs.get();
             mac.init(new SecretKeySpec(key_m, "HmacSHA256"));
-            return mac.doFinal(data);
+            for (byte[] d : data) {
+                mac.update(d);
+            }
+            return mac.doFinal();
         } catch (GeneralSecurityException e) {
             throw new RuntimeException(e);
         }
@@ -180,4 +298,60 @@ public abstract class AbstractCryptography implements Cryptography, InternalCont
     public long randomNonce() {
         return RANDOM.nextLong();
     }
+
+    /**
+     * Keeps public keys of identities and contacts in whatever form the implementation needs to use them, as they're
+     * used for every signature check and every message sent. Keys that are used only once, like the ephemeral key of
+     * a received message, must be decoded without the cache, or a busy node would push the long-lived ones out.
+     */
+    protected static abstract class KeyCache<T> {
+        private final LruCache<ByteBuffer, T> cache;
+
+        /**
+         * @param size number of keys to keep, or 0 to always decode them again
+         */
+        protected KeyCache(int size) {
+            this.cache = new LruCache<>(size);
+        }
+
+        public T get(byte[] publicKey) {
+            ByteBuffer key = ByteBuffer.wrap(publicKey.clone());
+            T decoded = cache.get(key);
+            if (decoded == null) {
+                decoded = decode(publicKey);
+                cache.put(key, decoded);
+            }
+            return decoded;
+        }
+
+        protected abstract T decode(byte[] publicKey);
+    }
+
+    /**
+     * Splits the items until each task only checks one signature, as that's expensive enough to be worth it.
+     */
+    private class VerificationTask extends RecursiveAction {
+        private final List<SignedData> items;
+        private final boolean[] result;
+        private final int from;
+        private final int to;
+
+        private VerificationTask(List<SignedData> items, boolean[] result, int from, int to) {
+            this.items = items;
+            this.result = result;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                result[from] = verify(items.get(from));
+            } else {
+                int middle = (from + to) / 2;
+                invokeAll(new VerificationTask(items, result, from, middle),
+                        new VerificationTask(items, result, middle, to));
+            }
+        }
+    }
 }
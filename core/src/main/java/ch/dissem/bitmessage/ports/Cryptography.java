@@ -21,9 +21,10 @@ import ch.dissem.bitmessage.entity.payload.Pubkey;
 import ch.dissem.bitmessage.exception.InsufficientProofOfWorkException;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigInteger;
-import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.List;
 
 /**
  * Provides some methods to help with hashing and encryption. All randoms are created using {@link SecureRandom},
@@ -31,9 +32,7 @@ import java.security.SecureRandom;
  */
 public interface Cryptography {
     /**
-     * A helper method to calculate SHA-512 hashes. Please note that a new {@link MessageDigest} object is created at
-     * each call (to ensure thread safety), so you shouldn't use this if you need to do many hash calculations in
-     * success on the same thread.
+     * A helper method to calculate SHA-512 hashes.
      *
      * @param data to get hashed
      * @return SHA-512 hash of data
@@ -41,9 +40,7 @@ public interface Cryptography {
     byte[] sha512(byte[]... data);
 
     /**
-     * A helper method to calculate doubleSHA-512 hashes. Please note that a new {@link MessageDigest} object is created
-     * at each call (to ensure thread safety), so you shouldn't use this if you need to do many hash calculations in
-     * success on the same thread.
+     * A helper method to calculate doubleSHA-512 hashes.
      *
      * @param data to get hashed
      * @return SHA-512 hash of data
@@ -53,10 +50,6 @@ public interface Cryptography {
     /**
      * A helper method to calculate double SHA-512 hashes. This method allows to only use a part of the available bytes
      * to use for the hash calculation.
-     * <p>
-     * Please note that a new {@link MessageDigest} object is created at each call (to ensure thread safety), so you
-     * shouldn't use this if you need to do many hash calculations in short order on the same thread.
-     * </p>
      *
      * @param data   to get hashed
      * @param length number of bytes to be taken into account
@@ -67,11 +60,6 @@ public interface Cryptography {
     /**
      * A helper method to calculate RIPEMD-160 hashes. Supplying multiple byte arrays has the same result as a
      * concatenation of all arrays, but might perform better.
-     * <p>
-     * Please note that a new {@link MessageDigest} object is created at
-     * each call (to ensure thread safety), so you shouldn't use this if you need to do many hash calculations in short
-     * order on the same thread.
-     * </p>
      *
      * @param data to get hashed
      * @return RIPEMD-160 hash of data
@@ -81,11 +69,6 @@ public interface Cryptography {
     /**
      * A helper method to calculate double SHA-256 hashes. This method allows to only use a part of the available bytes
      * to use for the hash calculation.
-     * <p>
-     * Please note that a new {@link MessageDigest} object is created at
-     * each call (to ensure thread safety), so you shouldn't use this if you need to do many hash calculations in short
-     * order on the same thread.
-     * </p>
      *
      * @param data   to get hashed
      * @param length number of bytes to be taken into account
@@ -96,11 +79,6 @@ public interface Cryptography {
     /**
      * A helper method to calculate SHA-1 hashes. Supplying multiple byte arrays has the same result as a
      * concatenation of all arrays, but might perform better.
-     * <p>
-     * Please note that a new {@link MessageDigest} object is created at
-     * each call (to ensure thread safety), so you shouldn't use this if you need to do many hash calculations in short
-     * order on the same thread.
-     * </p>
      *
      * @param data to get hashed
      * @return SHA hash of data
@@ -125,6 +103,15 @@ public interface Cryptography {
     void doProofOfWork(ObjectMessage object, long nonceTrialsPerByte,
                        long extraBytes, ProofOfWorkEngine.Callback callback);
 
+    /**
+     * Same as {@link #doProofOfWork(ObjectMessage, long, long, ProofOfWorkEngine.Callback)}, but resumes the
+     * calculation at the given nonce if the proof of work engine supports it.
+     *
+     * @param startNonce the last checkpoint of an interrupted calculation
+     */
+    void doProofOfWork(ObjectMessage object, long nonceTrialsPerByte,
+                       long extraBytes, long startNonce, ProofOfWorkEngine.Callback callback);
+
     /**
      * @param object             to be checked
      * @param nonceTrialsPerByte difficulty
@@ -142,10 +129,11 @@ public interface Cryptography {
      * Calculates the MAC for a message (data)
      *
      * @param key_m the symmetric key used
-     * @param data  the message data to calculate the MAC for
+     * @param data  the message data to calculate the MAC for, which may be given in parts so they don't need to be
+     *              copied together first
      * @return the MAC
      */
-    byte[] mac(byte[] key_m, byte[] data);
+    byte[] mac(byte[] key_m, byte[]... data);
 
     /**
      * @param encrypt if true, encrypts data, otherwise tries to decrypt it.
@@ -155,6 +143,17 @@ public interface Cryptography {
      */
     byte[] crypt(boolean encrypt, byte[] data, byte[] key_e, byte[] initializationVector);
 
+    /**
+     * Streaming version of {@link #crypt(boolean, byte[], byte[], byte[])}: everything written to the returned
+     * stream is encrypted or decrypted and written to out, so neither the input nor the output needs to be in
+     * memory as a whole.
+     *
+     * @param encrypt if true, encrypts the data, otherwise tries to decrypt it.
+     * @param out     receives the result
+     * @return a stream that writes the last block and closes out when it's closed
+     */
+    OutputStream crypt(boolean encrypt, OutputStream out, byte[] key_e, byte[] initializationVector);
+
     /**
      * Create a new public key fom given private keys.
      *
@@ -176,6 +175,14 @@ public interface Cryptography {
      */
     byte[] createPublicKey(byte[] privateKey);
 
+    /**
+     * Creates a random key pair for a single encryption. Implementations may generate them in advance, so sending a
+     * message doesn't have to wait for the base point multiplication.
+     *
+     * @return a new key pair that must only be used once
+     */
+    KeyPair createEphemeralKeyPair();
+
     /**
      * @param privateKey private key as byte array
      * @return a big integer representation (unsigned) of the given bytes
@@ -190,6 +197,15 @@ public interface Cryptography {
      */
     boolean isSignatureValid(byte[] data, byte[] signature, Pubkey pubkey);
 
+    /**
+     * Checks several signatures at once, using all available CPU cores. Other than
+     * {@link #isSignatureValid(byte[], byte[], Pubkey)}, a signature that can't be checked at all (e.g. because
+     * the public key is broken) is just reported as invalid.
+     *
+     * @return for each item, whether its signature is valid
+     */
+    boolean[] verifyBatch(List<SignedData> items);
+
     /**
      * Calculate the signature of data, using the given private key.
      *
@@ -204,7 +220,57 @@ public interface Cryptography {
      */
     long randomNonce();
 
-    byte[] multiply(byte[] k, byte[] r);
+    /**
+     * Multiplies a public key that's used again and again, i.e. the key of an identity or contact, with a private
+     * key. Implementations may keep such keys decoded.
+     *
+     * @param K encoded point
+     * @param r private key
+     * @return the encoded point K * r
+     */
+    byte[] multiply(byte[] K, byte[] r);
+
+    /**
+     * Same as {@link #multiply(byte[], byte[])}, but for a public key that's only used once, like the ephemeral key
+     * of a received message. Such keys are never cached, so they can't push the long-lived ones out of the cache.
+     *
+     * @param R encoded point
+     * @param k private key
+     * @return the encoded point R * k
+     */
+    byte[] multiplyEphemeral(byte[] R, byte[] k);
 
     byte[] createPoint(byte[] x, byte[] y);
+
+    /**
+     * Adds two points on the curve. This is much cheaper than a multiplication, so it can be used to get the public
+     * key for private key k + 1 from the one for k, by adding the generator point.
+     *
+     * @param P encoded point
+     * @param Q encoded point
+     * @return the encoded point P + Q
+     */
+    byte[] addPoints(byte[] P, byte[] Q);
+
+    class KeyPair {
+        public final byte[] privateKey;
+        public final byte[] publicKey;
+
+        public KeyPair(byte[] privateKey, byte[] publicKey) {
+            this.privateKey = privateKey;
+            this.publicKey = publicKey;
+        }
+    }
+
+    class SignedData {
+        public final byte[] data;
+        public final byte[] signature;
+        public final Pubkey pubkey;
+
+        public SignedData(byte[] data, byte[] signature, Pubkey pubkey) {
+            this.data = data;
+            this.signature = signature;
+            this.pubkey = pubkey;
+        }
+    }
 }
@@ -45,6 +45,20 @@ public interface Inventory {
      */
     List<ObjectMessage> getObjects(long stream, long version, ObjectType... types);
 
+    /**
+     * Like {@link #getObjects(long, long, ObjectType...)}, but objects are read one at a time and handed to the
+     * callback, so it's possible to stop the search as soon as the right object was found without reading and
+     * parsing all other objects.
+     */
+    void getObjects(long stream, long version, ObjectCallback callback, ObjectType... types);
+
+    /**
+     * Returns all objects with the given tag, i.e. the version 4 pubkeys or version 5 broadcasts belonging to the
+     * address the tag was calculated from. Use this instead of {@link #getObjects(long, long, ObjectType...)}
+     * whenever the address has a tag, as it avoids reading all objects of the stream.
+     */
+    List<ObjectMessage> getObjectsByTag(byte[] tag, ObjectType... types);
+
     void storeObject(ObjectMessage object);
 
     boolean contains(ObjectMessage object);
@@ -54,4 +68,11 @@ public interface Inventory {
      * (so we don't accidentally request objects we just deleted)
      */
     void cleanup();
+
+    interface ObjectCallback {
+        /**
+         * @return true if more objects should be read, false to stop the search
+         */
+        boolean onObject(ObjectMessage object);
+    }
 }
@@ -16,29 +16,62 @@
 
 package ch.dissem.bitmessage.ports;
 
-import ch.dissem.bitmessage.utils.Bytes;
+import ch.dissem.bitmessage.utils.ProofOfWorkHasher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Semaphore;
-
-import static ch.dissem.bitmessage.utils.Bytes.inc;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * A POW engine using all available CPU cores.
+ * A POW engine using several CPU cores. The workers run on a thread pool, so no threads are created for each nonce.
+ * By default, all engines share one pool using all available cores.
+ * <p>
+ * Calculations never wait for each other. If the pool is busy with another calculation, the workers of the next one
+ * are queued until threads become available.
+ * </p>
  */
 public class MultiThreadedPOWEngine implements ProofOfWorkEngine {
     private static final Logger LOG = LoggerFactory.getLogger(MultiThreadedPOWEngine.class);
-    private static final Semaphore semaphore = new Semaphore(1, true);
+    private static ExecutorService sharedPool;
+
+    private final ExecutorService executor;
+    private final int parallelism;
+
+    public MultiThreadedPOWEngine() {
+        this(sharedPool(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of threads used for the calculation. Use less than the number of available cores if
+     *                some should be left for other tasks, e.g. the network I/O.
+     */
+    public MultiThreadedPOWEngine(int threads) {
+        this(new ForkJoinPool(threads), threads);
+    }
+
+    /**
+     * @param executor    the workers are run on this executor. It must be able to run all of them at the same time,
+     *                    otherwise the remaining ones only start after the nonce was found.
+     * @param parallelism number of workers per nonce calculation
+     */
+    public MultiThreadedPOWEngine(ExecutorService executor, int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("At least one worker is needed");
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    private static synchronized ExecutorService sharedPool() {
+        if (sharedPool == null) {
+            // The threads of a ForkJoinPool are daemon threads, so it doesn't need to be shut down
+            sharedPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sharedPool;
+    }
 
     /**
-     * This method will block until all pending nonce calculations are done, but not wait for its own calculation
-     * to finish.
-     * (This implementation becomes very inefficient if multiple nonce are calculated at the same time.)
+     * Hands the calculation to the workers and returns immediately.
      *
      * @param initialHash the SHA-512 hash of the object to send, sans nonce
      * @param target      the target, representing an unsigned long
@@ -46,72 +79,56 @@ public class MultiThreadedPOWEngine implements ProofOfWorkEngine {
      */
     @Override
     public void calculateNonce(byte[] initialHash, byte[] target, Callback callback) {
-        try {
-            semaphore.acquire();
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-        callback = new CallbackWrapper(callback);
-        int cores = Runtime.getRuntime().availableProcessors();
-        if (cores > 255) cores = 255;
-        LOG.info("Doing POW using " + cores + " cores");
-        List<Worker> workers = new ArrayList<>(cores);
-        for (int i = 0; i < cores; i++) {
-            Worker w = new Worker(workers, (byte) cores, i, initialHash, target, callback);
-            workers.add(w);
-        }
-        for (Worker w : workers) {
-            // Doing this in the previous loop might cause a ConcurrentModificationException in the worker
-            // if a worker finds a nonce while new ones are still being added.
-            w.start();
+        LOG.info("Doing POW using " + parallelism + " workers");
+        Job job = new Job(initialHash, target, new CallbackWrapper(callback));
+        for (int i = 0; i < parallelism; i++) {
+            executor.execute(new Worker(job, i, parallelism));
         }
     }
 
-    private static class Worker extends Thread {
-        private final Callback callback;
-        private final byte numberOfCores;
-        private final List<Worker> workers;
+    private static class Job {
         private final byte[] initialHash;
-        private final byte[] target;
-        private final MessageDigest mda;
-        private final byte[] nonce = new byte[8];
+        private final long target;
+        private final Callback callback;
+        /**
+         * Checked by the workers after each nonce, so they stop cooperatively once the nonce is found.
+         */
+        private final AtomicBoolean done = new AtomicBoolean();
 
-        public Worker(List<Worker> workers, byte numberOfCores, int core, byte[] initialHash, byte[] target,
-                      Callback callback) {
-            this.callback = callback;
-            this.numberOfCores = numberOfCores;
-            this.workers = workers;
+        private Job(byte[] initialHash, byte[] target, Callback callback) {
             this.initialHash = initialHash;
-            this.target = target;
-            this.nonce[7] = (byte) core;
-            try {
-                mda = MessageDigest.getInstance("SHA-512");
-            } catch (NoSuchAlgorithmException e) {
-                LOG.error(e.getMessage(), e);
-                throw new RuntimeException(e);
+            this.target = ProofOfWorkHasher.toLong(target);
+            this.callback = callback;
+        }
+
+        private void complete(long nonce) {
+            if (done.compareAndSet(false, true)) {
+                callback.onNonceCalculated(initialHash, ProofOfWorkHasher.toBytes(nonce));
             }
         }
+    }
+
+    private static class Worker implements Runnable {
+        private final Job job;
+        private final int numberOfWorkers;
+        private long nonce;
+
+        public Worker(Job job, int index, int numberOfWorkers) {
+            this.job = job;
+            this.numberOfWorkers = numberOfWorkers;
+            this.nonce = index;
+        }
 
         @Override
         public void run() {
-            do {
-                inc(nonce, numberOfCores);
-                mda.update(nonce);
-                mda.update(initialHash);
-                if (!Bytes.lt(target, mda.digest(mda.digest()), 8)) {
-                    synchronized (callback) {
-                        if (!Thread.interrupted()) {
-                            for (Worker w : workers) {
-                                w.interrupt();
-                            }
-                            // Clear interrupted flag for callback
-                            Thread.interrupted();
-                            callback.onNonceCalculated(initialHash, nonce);
-                        }
-                    }
+            ProofOfWorkHasher hasher = new ProofOfWorkHasher(job.initialHash);
+            while (!job.done.get()) {
+                nonce += numberOfWorkers;
+                if (hasher.isValid(nonce, job.target)) {
+                    job.complete(nonce);
                     return;
                 }
-            } while (!Thread.interrupted());
+            }
         }
     }
 
@@ -130,7 +147,6 @@ public class MultiThreadedPOWEngine implements ProofOfWorkEngine {
             // Prevents the callback from being called twice if two nonces are found simultaneously
             synchronized (this) {
                 if (waiting) {
-                    semaphore.release();
                     LOG.info("Nonce calculated in " + ((System.currentTimeMillis() - startTime) / 1000) + " seconds");
                     waiting = false;
                     callback.onNonceCalculated(initialHash, nonce);
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.ports;
+
+import ch.dissem.bitmessage.utils.ProofOfWorkHasher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * A POW engine with a fixed pool of worker threads that can work on several nonces at the same time.
+ * <p>
+ * Workers take small slices of nonces to try from the jobs with the highest priority, taking turns between jobs
+ * with the same priority. So a new urgent job gets all workers after at most one slice, and a short job doesn't
+ * have to wait for a long one to finish.
+ * </p>
+ * <p>
+ * If the callback is a {@link CheckpointCallback}, it is told about the searched nonces every now and then (by
+ * default every ten seconds), so the calculation can be resumed if the application is restarted.
+ * </p>
+ */
+public class PooledPOWEngine implements PrioritizedProofOfWorkEngine {
+    private static final Logger LOG = LoggerFactory.getLogger(PooledPOWEngine.class);
+    private static final int SLICE_SIZE = 1 << 14;
+    private static final long DEFAULT_CHECKPOINT_INTERVAL = 10_000;
+
+    private final List<Job> jobs = new LinkedList<>();
+    private final long checkpointInterval;
+    private long turn;
+    private volatile boolean running = true;
+
+    /**
+     * Creates an engine using all available CPU cores.
+     */
+    public PooledPOWEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads number of worker threads
+     */
+    public PooledPOWEngine(int threads) {
+        this(threads, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * @param threads            number of worker threads
+     * @param checkpointInterval minimal time between two checkpoints of the same job in milliseconds
+     */
+    public PooledPOWEngine(int threads, long checkpointInterval) {
+        if (threads < 1) throw new IllegalArgumentException("At least one worker thread is needed");
+        this.checkpointInterval = checkpointInterval;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Worker(), "POW worker " + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    @Override
+    public void calculateNonce(byte[] initialHash, byte[] target, Callback callback) {
+        calculateNonce(initialHash, target, Priority.NORMAL, callback);
+    }
+
+    @Override
+    public void calculateNonce(byte[] initialHash, byte[] target, Priority priority, Callback callback) {
+        calculateNonce(initialHash, target, priority, 0, callback);
+    }
+
+    @Override
+    public void calculateNonce(byte[] initialHash, byte[] target, Priority priority, long startNonce,
+                               Callback callback) {
+        synchronized (jobs) {
+            jobs.add(new Job(initialHash, target, priority, startNonce, callback));
+            jobs.notifyAll();
+        }
+    }
+
+    @Override
+    public void calculateNonces(List<BatchItem> items, Priority priority, Callback callback) {
+        List<Job> batch = new ArrayList<>(items.size());
+        for (BatchItem item : items) {
+            batch.add(new Job(item.initialHash, item.target, priority, 0, callback));
+        }
+        // Workers take turns between jobs in queue order, so adding the easiest first lets them start right away
+        Collections.sort(batch, new Comparator<Job>() {
+            @Override
+            public int compare(Job a, Job b) {
+                long x = b.target + Long.MIN_VALUE;
+                long y = a.target + Long.MIN_VALUE;
+                return x < y ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        synchronized (jobs) {
+            jobs.addAll(batch);
+            jobs.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean cancel(byte[] initialHash) {
+        synchronized (jobs) {
+            Iterator<Job> iterator = jobs.iterator();
+            while (iterator.hasNext()) {
+                Job job = iterator.next();
+                if (Arrays.equals(initialHash, job.initialHash)) {
+                    job.done = true;
+                    iterator.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Stops all worker threads. Unfinished jobs are dropped without calling their callbacks.
+     */
+    public void shutdown() {
+        running = false;
+        synchronized (jobs) {
+            for (Job job : jobs) {
+                job.done = true;
+            }
+            jobs.clear();
+            jobs.notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of jobs that are queued or being worked on
+     */
+    public int getQueueSize() {
+        synchronized (jobs) {
+            return jobs.size();
+        }
+    }
+
+    /**
+     * @return the next job to work on, or null if the engine was shut down
+     */
+    private Job nextJob() throws InterruptedException {
+        synchronized (jobs) {
+            while (jobs.isEmpty()) {
+                if (!running) return null;
+                jobs.wait();
+            }
+            Priority top = Priority.LOW;
+            for (Job job : jobs) {
+                if (job.priority.compareTo(top) < 0) top = job.priority;
+            }
+            List<Job> candidates = new LinkedList<>();
+            for (Job job : jobs) {
+                if (job.priority == top) candidates.add(job);
+            }
+            return candidates.get((int) (turn++ % candidates.size()));
+        }
+    }
+
+    private void complete(Job job, byte[] nonce) {
+        synchronized (jobs) {
+            if (job.done) return;
+            job.done = true;
+            jobs.remove(job);
+        }
+        LOG.info("Nonce calculated in " + ((System.currentTimeMillis() - job.startTime) / 1000) + " seconds");
+        try {
+            job.callback.onNonceCalculated(job.initialHash, nonce);
+        } catch (RuntimeException e) {
+            // The worker must survive a failing callback, or the engine would lose a thread for every failure
+            LOG.error("Callback failed for calculated nonce", e);
+        }
+    }
+
+    private void checkpoint(Job job) {
+        if (!(job.callback instanceof CheckpointCallback)) return;
+        long checkpoint;
+        synchronized (job) {
+            long now = System.currentTimeMillis();
+            if (job.done || now - job.lastCheckpoint < checkpointInterval) return;
+            job.lastCheckpoint = now;
+            checkpoint = job.inProgress.isEmpty() ? job.nextNonce : job.inProgress.first();
+        }
+        try {
+            ((CheckpointCallback) job.callback).onCheckpoint(job.initialHash, checkpoint);
+        } catch (RuntimeException e) {
+            LOG.warn("Callback failed for checkpoint", e);
+        }
+    }
+
+    private static class Job {
+        private final byte[] initialHash;
+        private final long target;
+        private final Priority priority;
+        private final Callback callback;
+        private final long startTime = System.currentTimeMillis();
+        private volatile boolean done;
+
+        /**
+         * Start of the slices that are being searched, so the checkpoint doesn't skip unfinished ones.
+         * Guarded by the job itself, as is nextNonce and lastCheckpoint.
+         */
+        private final SortedSet<Long> inProgress = new TreeSet<>();
+        private long nextNonce;
+        private long lastCheckpoint = startTime;
+
+        private Job(byte[] initialHash, byte[] target, Priority priority, long startNonce, Callback callback) {
+            this.initialHash = initialHash;
+            this.target = ProofOfWorkHasher.toLong(target);
+            this.priority = priority;
+            this.nextNonce = startNonce;
+            this.callback = callback;
+        }
+
+        private synchronized long startSlice() {
+            long start = nextNonce;
+            nextNonce += SLICE_SIZE;
+            inProgress.add(start);
+            return start;
+        }
+
+        private synchronized void finishSlice(long start) {
+            inProgress.remove(start);
+        }
+    }
+
+    private class Worker implements Runnable {
+        private Job currentJob;
+        private ProofOfWorkHasher hasher;
+        private long nonce;
+
+        @Override
+        public void run() {
+            try {
+                Job job;
+                while ((job = nextJob()) != null) {
+                    if (job != currentJob) {
+                        // Only create a new hasher when switching jobs, as it precalculates parts of the hash
+                        currentJob = job;
+                        hasher = new ProofOfWorkHasher(job.initialHash);
+                    }
+                    long start = job.startSlice();
+                    if (search(job, start)) {
+                        complete(job, ProofOfWorkHasher.toBytes(nonce));
+                    } else {
+                        job.finishSlice(start);
+                        checkpoint(job);
+                    }
+                }
+            } catch (InterruptedException e) {
+                LOG.debug("POW worker was interrupted", e);
+            }
+        }
+
+        private boolean search(Job job, long start) {
+            for (long n = start; n < start + SLICE_SIZE && !job.done; n++) {
+                if (hasher.isValid(n, job.target)) {
+                    nonce = n;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
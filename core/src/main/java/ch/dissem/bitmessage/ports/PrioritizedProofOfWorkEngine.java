@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.ports;
+
+import ch.dissem.bitmessage.entity.payload.ObjectType;
+
+import java.util.List;
+
+/**
+ * A proof of work engine that can work on several nonces at the same time, doing the more urgent ones first.
+ * It also reports its progress, so an interrupted calculation can be resumed later.
+ */
+public interface PrioritizedProofOfWorkEngine extends ProofOfWorkEngine {
+    /**
+     * Same as {@link #calculateNonce(byte[], byte[], Callback)}, but jobs with higher priority are calculated
+     * before the ones with lower priority.
+     */
+    void calculateNonce(byte[] initialHash, byte[] target, Priority priority, Callback callback);
+
+    /**
+     * Resumes a calculation that was interrupted, without trying the nonces that were already searched. If the
+     * callback is a {@link CheckpointCallback}, the progress is reported regularly.
+     *
+     * @param startNonce the last checkpoint reported for this initial hash, or 0 to start from scratch
+     */
+    void calculateNonce(byte[] initialHash, byte[] target, Priority priority, long startNonce, Callback callback);
+
+    /**
+     * Calculates the nonces for several objects at once, e.g. when sending many small objects. They are worked on
+     * at the same time, so the ones with easy targets are done first. The callback is called once per object.
+     */
+    void calculateNonces(List<BatchItem> items, Priority priority, Callback callback);
+
+    /**
+     * Stops the calculation for the given initial hash. The callback won't be called for cancelled jobs.
+     *
+     * @return true if a job was cancelled, false if there was no such job (or it was already finished)
+     */
+    boolean cancel(byte[] initialHash);
+
+    interface CheckpointCallback extends Callback {
+        /**
+         * Called regularly while a nonce is being calculated.
+         *
+         * @param nonce all nonces below this (interpreted as unsigned long) were tried without success
+         */
+        void onCheckpoint(byte[] initialHash, long nonce);
+    }
+
+    class BatchItem {
+        public final byte[] initialHash;
+        public final byte[] target;
+
+        public BatchItem(byte[] initialHash, byte[] target) {
+            this.initialHash = initialHash;
+            this.target = target;
+        }
+    }
+
+    enum Priority {
+        HIGH, NORMAL, LOW;
+
+        /**
+         * Pubkeys and requests for them are needed before anything else can be sent, so they're treated with high
+         * priority. Broadcasts are usually sent to many recipients at once and have low priority.
+         */
+        public static Priority of(long objectType) {
+            ObjectType type = ObjectType.fromNumber(objectType);
+            if (type == null) return NORMAL;
+            switch (type) {
+                case GET_PUBKEY:
+                case PUBKEY:
+                    return HIGH;
+                case BROADCAST:
+                    return LOW;
+                default:
+                    return NORMAL;
+            }
+        }
+    }
+}
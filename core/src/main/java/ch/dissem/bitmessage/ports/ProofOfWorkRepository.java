@@ -18,15 +18,36 @@ public interface ProofOfWorkRepository {
 
     void removeObject(byte[] initialHash);
 
+    /**
+     * Removes several objects at once, e.g. all whose proof of work was finished at about the same time.
+     */
+    void removeObjects(List<byte[]> initialHashes);
+
+    /**
+     * Remembers how far the proof of work got, so it can be resumed after a restart.
+     *
+     * @param nonce all nonces below this were already tried
+     */
+    void putCheckpoint(byte[] initialHash, long nonce);
+
     class Item {
         public final ObjectMessage object;
         public final long nonceTrialsPerByte;
         public final long extraBytes;
+        /**
+         * The nonce to resume the proof of work at
+         */
+        public final long checkpoint;
 
         public Item(ObjectMessage object, long nonceTrialsPerByte, long extraBytes) {
+            this(object, nonceTrialsPerByte, extraBytes, 0);
+        }
+
+        public Item(ObjectMessage object, long nonceTrialsPerByte, long extraBytes, long checkpoint) {
             this.object = object;
             this.nonceTrialsPerByte = nonceTrialsPerByte;
             this.extraBytes = extraBytes;
+            this.checkpoint = checkpoint;
         }
     }
 }
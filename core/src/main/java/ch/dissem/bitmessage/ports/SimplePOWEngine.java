@@ -16,11 +16,7 @@
 
 package ch.dissem.bitmessage.ports;
 
-import ch.dissem.bitmessage.utils.Bytes;
-
-import java.security.MessageDigest;
-
-import static ch.dissem.bitmessage.utils.Bytes.inc;
+import ch.dissem.bitmessage.utils.ProofOfWorkHasher;
 
 /**
  * You should really use the MultiThreadedPOWEngine, but this one might help you grok the other one.
@@ -32,18 +28,12 @@ import static ch.dissem.bitmessage.utils.Bytes.inc;
 public class SimplePOWEngine implements ProofOfWorkEngine {
     @Override
     public void calculateNonce(byte[] initialHash, byte[] target, Callback callback) {
-        byte[] nonce = new byte[8];
-        MessageDigest mda;
-        try {
-            mda = MessageDigest.getInstance("SHA-512");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        ProofOfWorkHasher hasher = new ProofOfWorkHasher(initialHash);
+        long t = ProofOfWorkHasher.toLong(target);
+        long nonce = 0;
         do {
-            inc(nonce);
-            mda.update(nonce);
-            mda.update(initialHash);
-        } while (Bytes.lt(target, mda.digest(mda.digest()), 8));
-        callback.onNonceCalculated(initialHash, nonce);
+            nonce++;
+        } while (!hasher.isValid(nonce, t));
+        callback.onNonceCalculated(initialHash, ProofOfWorkHasher.toBytes(nonce));
     }
 }
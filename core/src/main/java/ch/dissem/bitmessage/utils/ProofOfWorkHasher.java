@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.utils;
+
+/**
+ * Calculates the first 8 bytes of sha512(sha512(nonce||initialHash)) as used by the proof of work, without
+ * allocating any objects per trial.
+ * <p>
+ * As the input is always 72 bytes long, both hashes fit into one SHA-512 block each. The parts of the message
+ * schedule that only depend on the initial hash, as well as the first round, are calculated once per hasher.
+ * </p>
+ * <p>
+ * Instances are not thread safe, every worker thread needs its own.
+ * </p>
+ */
+public class ProofOfWorkHasher {
+    private static final long[] K = {
+            0x428a2f98d728ae22L, 0x7137449123ef65cdL, 0xb5c0fbcfec4d3b2fL, 0xe9b5dba58189dbbcL,
+            0x3956c25bf348b538L, 0x59f111f1b605d019L, 0x923f82a4af194f9bL, 0xab1c5ed5da6d8118L,
+            0xd807aa98a3030242L, 0x12835b0145706fbeL, 0x243185be4ee4b28cL, 0x550c7dc3d5ffb4e2L,
+            0x72be5d74f27b896fL, 0x80deb1fe3b1696b1L, 0x9bdc06a725c71235L, 0xc19bf174cf692694L,
+            0xe49b69c19ef14ad2L, 0xefbe4786384f25e3L, 0x0fc19dc68b8cd5b5L, 0x240ca1cc77ac9c65L,
+            0x2de92c6f592b0275L, 0x4a7484aa6ea6e483L, 0x5cb0a9dcbd41fbd4L, 0x76f988da831153b5L,
+            0x983e5152ee66dfabL, 0xa831c66d2db43210L, 0xb00327c898fb213fL, 0xbf597fc7beef0ee4L,
+            0xc6e00bf33da88fc2L, 0xd5a79147930aa725L, 0x06ca6351e003826fL, 0x142929670a0e6e70L,
+            0x27b70a8546d22ffcL, 0x2e1b21385c26c926L, 0x4d2c6dfc5ac42aedL, 0x53380d139d95b3dfL,
+            0x650a73548baf63deL, 0x766a0abb3c77b2a8L, 0x81c2c92e47edaee6L, 0x92722c851482353bL,
+            0xa2bfe8a14cf10364L, 0xa81a664bbc423001L, 0xc24b8b70d0f89791L, 0xc76c51a30654be30L,
+            0xd192e819d6ef5218L, 0xd69906245565a910L, 0xf40e35855771202aL, 0x106aa07032bbd1b8L,
+            0x19a4c116b8d2d0c8L, 0x1e376c085141ab53L, 0x2748774cdf8eeb99L, 0x34b0bcb5e19b48a8L,
+            0x391c0cb3c5c95a63L, 0x4ed8aa4ae3418acbL, 0x5b9cca4f7763e373L, 0x682e6ff3d6b2b8a3L,
+            0x748f82ee5defb2fcL, 0x78a5636f43172f60L, 0x84c87814a1f0ab72L, 0x8cc702081a6439ecL,
+            0x90befffa23631e28L, 0xa4506cebde82bde9L, 0xbef9a3f7b2c67915L, 0xc67178f2e372532bL,
+            0xca273eceea26619cL, 0xd186b8c721c0c207L, 0xeada7dd6cde0eb1eL, 0xf57d4f7fee6ed178L,
+            0x06f067aa72176fbaL, 0x0a637dc5a2c898a6L, 0x113f9804bef90daeL, 0x1b710b35131c471bL,
+            0x28db77f523047d84L, 0x32caab7b40c72493L, 0x3c9ebe0a15c9bebcL, 0x431d67c49c100d4cL,
+            0x4cc5d4becb3e42b6L, 0x597f299cfc657e2aL, 0x5fcb6fab3ad6faecL, 0x6c44198c4a475817L
+    };
+    private static final long[] IV = {
+            0x6a09e667f3bcc908L, 0xbb67ae8584caa73bL, 0x3c6ef372fe94f82bL, 0xa54ff53a5f1d36f1L,
+            0x510e527fade682d1L, 0x9b05688c2b3e6c1fL, 0x1f83d9abfb41bd6bL, 0x5be0cd19137e2179L
+    };
+    /**
+     * First round of the first hash, without the nonce (which is W[0])
+     */
+    private static final long ROUND_0_T1 = IV[7] + Sigma1(IV[4]) + ch(IV[4], IV[5], IV[6]) + K[0];
+    private static final long ROUND_0_T2 = Sigma0(IV[0]) + maj(IV[0], IV[1], IV[2]);
+
+    private final long[] w1 = new long[80];
+    private final long[] w2 = new long[80];
+    private final long w16;
+
+    /**
+     * @param initialHash the 64 bytes initial hash of the object
+     */
+    public ProofOfWorkHasher(byte[] initialHash) {
+        if (initialHash.length != 64) {
+            throw new IllegalArgumentException("Initial hash must be 64 bytes long, but was " + initialHash.length);
+        }
+        for (int i = 0; i < 8; i++) {
+            w1[i + 1] = toLong(initialHash, i * 8);
+        }
+        // Padding and length (72 bytes = 576 bits) of the first hash
+        w1[9] = 0x8000000000000000L;
+        w1[15] = 576;
+        // W[16] is the only word of the message schedule before W[18] that depends on the nonce
+        w16 = sigma1(w1[14]) + w1[9] + sigma0(w1[1]);
+        w1[17] = sigma1(w1[15]) + w1[10] + sigma0(w1[2]) + w1[1];
+
+        // Padding and length (64 bytes = 512 bits) of the second hash
+        w2[8] = 0x8000000000000000L;
+        w2[15] = 512;
+    }
+
+    /**
+     * @return the first 8 bytes of sha512(sha512(nonce||initialHash)), as a long
+     */
+    public long hash(long nonce) {
+        long[] w = w1;
+        w[0] = nonce;
+        w[16] = w16 + nonce;
+        for (int t = 18; t < 80; t++) {
+            w[t] = sigma1(w[t - 2]) + w[t - 7] + sigma0(w[t - 15]) + w[t - 16];
+        }
+
+        // The first round doesn't depend on the initial hash, so most of it is precalculated
+        long a = ROUND_0_T1 + nonce + ROUND_0_T2;
+        long b = IV[0];
+        long c = IV[1];
+        long d = IV[2];
+        long e = IV[3] + ROUND_0_T1 + nonce;
+        long f = IV[4];
+        long g = IV[5];
+        long h = IV[6];
+        // Round 1 to 7, after that the rounds are unrolled in blocks of eight to avoid shuffling the variables
+        for (int t = 1; t < 8; t++) {
+            long t1 = h + Sigma1(e) + ch(e, f, g) + K[t] + w[t];
+            long t2 = Sigma0(a) + maj(a, b, c);
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        for (int t = 8; t < 80; t += 8) {
+            h += Sigma1(e) + ch(e, f, g) + K[t] + w[t];
+            d += h;
+            h += Sigma0(a) + maj(a, b, c);
+            g += Sigma1(d) + ch(d, e, f) + K[t + 1] + w[t + 1];
+            c += g;
+            g += Sigma0(h) + maj(h, a, b);
+            f += Sigma1(c) + ch(c, d, e) + K[t + 2] + w[t + 2];
+            b += f;
+            f += Sigma0(g) + maj(g, h, a);
+            e += Sigma1(b) + ch(b, c, d) + K[t + 3] + w[t + 3];
+            a += e;
+            e += Sigma0(f) + maj(f, g, h);
+            d += Sigma1(a) + ch(a, b, c) + K[t + 4] + w[t + 4];
+            h += d;
+            d += Sigma0(e) + maj(e, f, g);
+            c += Sigma1(h) + ch(h, a, b) + K[t + 5] + w[t + 5];
+            g += c;
+            c += Sigma0(d) + maj(d, e, f);
+            b += Sigma1(g) + ch(g, h, a) + K[t + 6] + w[t + 6];
+            f += b;
+            b += Sigma0(c) + maj(c, d, e);
+            a += Sigma1(f) + ch(f, g, h) + K[t + 7] + w[t + 7];
+            e += a;
+            a += Sigma0(b) + maj(b, c, d);
+        }
+
+        w = w2;
+        w[0] = IV[0] + a;
+        w[1] = IV[1] + b;
+        w[2] = IV[2] + c;
+        w[3] = IV[3] + d;
+        w[4] = IV[4] + e;
+        w[5] = IV[5] + f;
+        w[6] = IV[6] + g;
+        w[7] = IV[7] + h;
+        for (int t = 16; t < 80; t++) {
+            w[t] = sigma1(w[t - 2]) + w[t - 7] + sigma0(w[t - 15]) + w[t - 16];
+        }
+
+        a = IV[0];
+        b = IV[1];
+        c = IV[2];
+        d = IV[3];
+        e = IV[4];
+        f = IV[5];
+        g = IV[6];
+        h = IV[7];
+        for (int t = 0; t < 80; t += 8) {
+            h += Sigma1(e) + ch(e, f, g) + K[t] + w[t];
+            d += h;
+            h += Sigma0(a) + maj(a, b, c);
+            g += Sigma1(d) + ch(d, e, f) + K[t + 1] + w[t + 1];
+            c += g;
+            g += Sigma0(h) + maj(h, a, b);
+            f += Sigma1(c) + ch(c, d, e) + K[t + 2] + w[t + 2];
+            b += f;
+            f += Sigma0(g) + maj(g, h, a);
+            e += Sigma1(b) + ch(b, c, d) + K[t + 3] + w[t + 3];
+            a += e;
+            e += Sigma0(f) + maj(f, g, h);
+            d += Sigma1(a) + ch(a, b, c) + K[t + 4] + w[t + 4];
+            h += d;
+            d += Sigma0(e) + maj(e, f, g);
+            c += Sigma1(h) + ch(h, a, b) + K[t + 5] + w[t + 5];
+            g += c;
+            c += Sigma0(d) + maj(d, e, f);
+            b += Sigma1(g) + ch(g, h, a) + K[t + 6] + w[t + 6];
+            f += b;
+            b += Sigma0(c) + maj(c, d, e);
+            a += Sigma1(f) + ch(f, g, h) + K[t + 7] + w[t + 7];
+            e += a;
+            a += Sigma0(b) + maj(b, c, d);
+        }
+        return IV[0] + a;
+    }
+
+    /**
+     * @return true if the proof of work for this nonce is good enough, i.e. the hash isn't bigger than the target
+     * (both interpreted as unsigned long)
+     */
+    public boolean isValid(long nonce, long target) {
+        return hash(nonce) + Long.MIN_VALUE <= target + Long.MIN_VALUE;
+    }
+
+    /**
+     * @return the first 8 bytes of the array as big endian long
+     */
+    public static long toLong(byte[] bytes) {
+        return toLong(bytes, 0);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            result = (result << 8) | (bytes[i] & 0xff);
+        }
+        return result;
+    }
+
+    /**
+     * @return the nonce as 8 bytes, big endian
+     */
+    public static byte[] toBytes(long nonce) {
+        byte[] result = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            result[i] = (byte) nonce;
+            nonce >>>= 8;
+        }
+        return result;
+    }
+
+    private static long ch(long x, long y, long z) {
+        return (x & y) ^ (~x & z);
+    }
+
+    private static long maj(long x, long y, long z) {
+        return (x & y) ^ (x & z) ^ (y & z);
+    }
+
+    private static long Sigma0(long x) {
+        return Long.rotateRight(x, 28) ^ Long.rotateRight(x, 34) ^ Long.rotateRight(x, 39);
+    }
+
+    private static long Sigma1(long x) {
+        return Long.rotateRight(x, 14) ^ Long.rotateRight(x, 18) ^ Long.rotateRight(x, 41);
+    }
+
+    private static long sigma0(long x) {
+        return Long.rotateRight(x, 1) ^ Long.rotateRight(x, 8) ^ (x >>> 7);
+    }
+
+    private static long sigma1(long x) {
+        return Long.rotateRight(x, 19) ^ Long.rotateRight(x, 61) ^ (x >>> 6);
+    }
+}
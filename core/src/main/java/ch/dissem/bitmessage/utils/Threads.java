@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.utils;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Helpers for background threads that must neither keep the JVM alive nor linger when there's nothing to do.
+ */
+public class Threads {
+    private static final long IDLE_TIMEOUT_SECONDS = 10;
+
+    /**
+     * @param name prefix for the thread names, followed by a running number
+     * @return a thread factory creating daemon threads
+     */
+    public static ThreadFactory daemonThreads(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * @param name    prefix for the thread names
+     * @param threads maximum number of threads
+     * @return an executor using up to the given number of daemon threads, which stop after a few seconds without
+     * work, so an unused executor doesn't need to be shut down
+     */
+    public static ThreadPoolExecutor idleExecutor(String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), daemonThreads(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage;
+
+import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.entity.ObjectMessage;
+import ch.dissem.bitmessage.entity.payload.Broadcast;
+import ch.dissem.bitmessage.entity.payload.Msg;
+import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
+import ch.dissem.bitmessage.ports.AddressRepository;
+import ch.dissem.bitmessage.utils.TestBase;
+import ch.dissem.bitmessage.utils.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class DecryptionDispatcherTest extends TestBase {
+    private AddressRepository addressRepo;
+    private InternalContext ctx;
+    private BitmessageAddress identity;
+    private List<BitmessageAddress> identities;
+
+    @Before
+    public void setUp() throws Exception {
+        identity = TestUtils.loadIdentity("BM-2cSqjfJ8xK6UUn5Rw3RpdGQ9RsDkBhWnS8");
+        identities = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            identities.add(new BitmessageAddress(new PrivateKey(false, 1, 1000, 1000)));
+        }
+        identities.add(7, identity);
+
+        addressRepo = mock(AddressRepository.class);
+        when(addressRepo.getIdentities()).thenReturn(identities);
+        ctx = mock(InternalContext.class);
+        when(ctx.getAddressRepository()).thenReturn(addressRepo);
+    }
+
+    @Test
+    public void ensureMsgIsDecryptedInParallel() throws Exception {
+        testDecryption(new DecryptionDispatcher(4));
+    }
+
+    @Test
+    public void ensureMsgIsDecryptedSequentially() throws Exception {
+        testDecryption(new DecryptionDispatcher(1));
+    }
+
+    @Test
+    public void ensureUnknownMsgIsIgnored() throws Exception {
+        identities.remove(identity);
+        DecryptionDispatcher dispatcher = new DecryptionDispatcher(4);
+        dispatcher.setContext(ctx);
+
+        ObjectMessage object = TestUtils.loadObjectMessage(3, "V1Msg.payload");
+        Msg msg = (Msg) object.getPayload();
+        assertNull(dispatcher.decrypt(object, msg));
+        assertFalse(msg.isDecrypted());
+        assertEquals(10L, dispatcher.getStatus().getProperty("averageAttempts").getValue());
+    }
+
+    @Test
+    public void ensureIdentitiesAreCachedUntilInvalidated() throws Exception {
+        DecryptionDispatcher dispatcher = new DecryptionDispatcher(4);
+        dispatcher.setContext(ctx);
+        for (int i = 0; i < 3; i++) {
+            ObjectMessage object = TestUtils.loadObjectMessage(3, "V1Msg.payload");
+            assertEquals(identity, dispatcher.decrypt(object, (Msg) object.getPayload()));
+        }
+        verify(addressRepo, times(1)).getIdentities();
+
+        dispatcher.invalidate();
+        ObjectMessage object = TestUtils.loadObjectMessage(3, "V1Msg.payload");
+        dispatcher.decrypt(object, (Msg) object.getPayload());
+        verify(addressRepo, times(2)).getIdentities();
+        assertEquals(4L, dispatcher.getStatus().getProperty("decrypted").getValue());
+    }
+
+    @Test
+    public void ensureChangingAddressesInvalidatesTheCache() throws Exception {
+        DecryptionDispatcher dispatcher = new DecryptionDispatcher(4);
+        dispatcher.setContext(ctx);
+        AddressRepository repository = new InvalidatingAddressRepository(addressRepo, dispatcher);
+
+        ObjectMessage object = TestUtils.loadObjectMessage(3, "V1Msg.payload");
+        dispatcher.decrypt(object, (Msg) object.getPayload());
+        repository.getIdentities();
+        verify(addressRepo, times(2)).getIdentities();
+
+        repository.save(identity);
+        object = TestUtils.loadObjectMessage(3, "V1Msg.payload");
+        dispatcher.decrypt(object, (Msg) object.getPayload());
+        verify(addressRepo, times(3)).getIdentities();
+        verify(addressRepo).save(identity);
+
+        repository.remove(identity);
+        object = TestUtils.loadObjectMessage(3, "V1Msg.payload");
+        dispatcher.decrypt(object, (Msg) object.getPayload());
+        verify(addressRepo, times(4)).getIdentities();
+        verify(addressRepo).remove(identity);
+    }
+
+    @Test
+    public void ensureV4BroadcastIsDecryptedInParallel() throws Exception {
+        BitmessageAddress sender = new BitmessageAddress("BM-2D9Vc5rFxxR5vTi53T9gkLfemViHRMVLQZ");
+        List<BitmessageAddress> subscriptions = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            subscriptions.add(new BitmessageAddress(new PrivateKey(false, 1, 1000, 1000)));
+        }
+        subscriptions.add(3, sender);
+        when(addressRepo.getSubscriptions(4)).thenReturn(subscriptions);
+        DecryptionDispatcher dispatcher = new DecryptionDispatcher(4);
+        dispatcher.setContext(ctx);
+
+        for (int i = 0; i < 2; i++) {
+            ObjectMessage object = TestUtils.loadObjectMessage(5, "V4Broadcast.payload");
+            Broadcast broadcast = (Broadcast) object.getPayload();
+            assertEquals(sender, dispatcher.decrypt(object, broadcast));
+            assertEquals("Test-Broadcast", broadcast.getPlaintext().getSubject());
+        }
+        verify(addressRepo, times(1)).getSubscriptions(4);
+        assertEquals(11, dispatcher.getStatus().getProperty("subscriptions").getValue());
+    }
+
+    @Test
+    public void ensureV5BroadcastIsOnlyDecryptedWithMatchingTag() throws Exception {
+        BitmessageAddress sender = new BitmessageAddress("BM-2cXxfcSetKnbHJX2Y85rSkaVpsdNUZ5q9h");
+        List<BitmessageAddress> subscriptions = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            subscriptions.add(new BitmessageAddress(new PrivateKey(false, 1, 1000, 1000)));
+        }
+        subscriptions.add(sender);
+        when(addressRepo.getSubscriptions(5)).thenReturn(subscriptions);
+        DecryptionDispatcher dispatcher = new DecryptionDispatcher(4);
+        dispatcher.setContext(ctx);
+
+        ObjectMessage object = TestUtils.loadObjectMessage(5, "V5Broadcast.payload");
+        Broadcast broadcast = (Broadcast) object.getPayload();
+        assertEquals(sender, dispatcher.decrypt(object, broadcast));
+        assertEquals("Test-Broadcast", broadcast.getPlaintext().getSubject());
+        assertEquals(1L, dispatcher.getStatus().getProperty("averageAttempts").getValue());
+    }
+
+    private void testDecryption(DecryptionDispatcher dispatcher) throws Exception {
+        dispatcher.setContext(ctx);
+        ObjectMessage object = TestUtils.loadObjectMessage(3, "V1Msg.payload");
+        Msg msg = (Msg) object.getPayload();
+
+        assertEquals(identity, dispatcher.decrypt(object, msg));
+        assertEquals("Test", msg.getPlaintext().getSubject());
+        assertEquals(1L, dispatcher.getStatus().getProperty("objects").getValue());
+        assertEquals(1L, dispatcher.getStatus().getProperty("decrypted").getValue());
+    }
+}
@@ -28,11 +28,15 @@ import ch.dissem.bitmessage.utils.TestBase;
 import ch.dissem.bitmessage.utils.TestUtils;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import static ch.dissem.bitmessage.utils.Singleton.security;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
 
 public class EncryptionTest extends TestBase {
     @Test
@@ -61,4 +65,46 @@ public class EncryptionTest extends TestBase {
         assertEquals("Test", plaintext.getSubject());
         assertEquals("Hallo, das ist ein Test von der v4-Adresse", plaintext.getText());
     }
+
+    @Test
+    public void ensureLargeDataIsDecryptedCompletely() throws IOException, DecryptionFailedException {
+        PrivateKey privateKey = new PrivateKey(false, 1, 1000, 1000);
+        for (int length : new int[]{0, 15, 16, 4096, 8192, 100003}) {
+            byte[] data = security().randomBytes(length);
+            CryptoBox cryptoBox = new CryptoBox(data, privateKey.getPubkey().getEncryptionKey());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            cryptoBox.decrypt(privateKey.getPrivateEncryptionKey(), out);
+            assertArrayEquals(data, out.toByteArray());
+
+            InputStream in = cryptoBox.decrypt(privateKey.getPrivateEncryptionKey());
+            for (byte b : data) {
+                assertEquals(b & 0xFF, in.read());
+            }
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test(expected = DecryptionFailedException.class)
+    public void ensureDecryptionWithWrongKeyFails() throws IOException, DecryptionFailedException {
+        PrivateKey privateKey = new PrivateKey(false, 1, 1000, 1000);
+        PrivateKey otherKey = new PrivateKey(false, 1, 1000, 1000);
+        CryptoBox cryptoBox = new CryptoBox(security().randomBytes(100), privateKey.getPubkey().getEncryptionKey());
+
+        cryptoBox.decrypt(otherKey.getPrivateEncryptionKey());
+    }
+
+    @Test
+    public void ensureFailedDecryptionHasNoStackTrace() throws IOException {
+        PrivateKey privateKey = new PrivateKey(false, 1, 1000, 1000);
+        PrivateKey otherKey = new PrivateKey(false, 1, 1000, 1000);
+        CryptoBox cryptoBox = new CryptoBox(security().randomBytes(100), privateKey.getPubkey().getEncryptionKey());
+
+        try {
+            cryptoBox.decrypt(otherKey.getPrivateEncryptionKey());
+            fail();
+        } catch (DecryptionFailedException e) {
+            assertEquals(0, e.getStackTrace().length);
+        }
+    }
 }
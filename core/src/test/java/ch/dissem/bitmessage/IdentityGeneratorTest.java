@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage;
+
+import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.entity.payload.Pubkey;
+import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
+import ch.dissem.bitmessage.utils.TestBase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static ch.dissem.bitmessage.utils.Singleton.security;
+import static org.junit.Assert.*;
+
+public class IdentityGeneratorTest extends TestBase {
+    @Test(timeout = 60_000)
+    public void ensureKeysMatchAddress() {
+        IdentityGenerator generator = new IdentityGenerator(2);
+        PrivateKey privateKey = generator.generate(false, 1, 1000, 1000, Pubkey.Feature.DOES_ACK);
+
+        assertArrayEquals(security().createPublicKey(privateKey.getPrivateSigningKey()),
+                privateKey.getPubkey().getSigningKey());
+        assertArrayEquals(security().createPublicKey(privateKey.getPrivateEncryptionKey()),
+                privateKey.getPubkey().getEncryptionKey());
+        assertEquals(0, privateKey.getPubkey().getRipe()[0]);
+        assertTrue(generator.getAttempts() > 0);
+        assertTrue(generator.getAttemptsPerSecond() > 0);
+
+        BitmessageAddress address = new BitmessageAddress(privateKey);
+        byte[] signature = security().getSignature(new byte[]{1, 2, 3}, privateKey);
+        assertTrue(security().isSignatureValid(new byte[]{1, 2, 3}, signature, address.getPubkey()));
+    }
+
+    @Test(timeout = 120_000)
+    public void ensureShorterAddressIsFound() {
+        PrivateKey privateKey = new IdentityGenerator().generate(true, 1, 1000, 1000);
+        byte[] ripe = privateKey.getPubkey().getRipe();
+        assertEquals(0, ripe[0]);
+        assertEquals(0, ripe[1]);
+    }
+
+    @Test(timeout = 60_000)
+    public void ensureConcurrentGenerationsDontInterfere() throws Exception {
+        final IdentityGenerator generator = new IdentityGenerator(2);
+        final AtomicReference<PrivateKey> other = new AtomicReference<>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                other.set(generator.generate(false, 1, 1000, 1000));
+            }
+        };
+        thread.start();
+        PrivateKey privateKey = generator.generate(false, 1, 1000, 1000);
+        thread.join();
+
+        assertEquals(0, privateKey.getPubkey().getRipe()[0]);
+        assertEquals(0, other.get().getPubkey().getRipe()[0]);
+        assertFalse(Arrays.equals(privateKey.getPrivateSigningKey(), other.get().getPrivateSigningKey()));
+    }
+
+    @Test(timeout = 10_000)
+    public void ensureGenerationCanBeCancelled() throws InterruptedException {
+        final IdentityGenerator generator = new IdentityGenerator(2);
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        Thread canceller = new Thread() {
+            @Override
+            public void run() {
+                // A generation might succeed before it's cancelled, so keep cancelling until the next one fails
+                while (!cancelled.get()) {
+                    if (generator.getAttempts() > 0) generator.cancel();
+                    Thread.yield();
+                }
+            }
+        };
+        canceller.start();
+        try {
+            while (true) {
+                generator.generate(true, 1, 1000, 1000);
+            }
+        } catch (CancellationException expected) {
+            cancelled.set(true);
+        }
+        canceller.join();
+        assertTrue(generator.getAttempts() > 0);
+    }
+}
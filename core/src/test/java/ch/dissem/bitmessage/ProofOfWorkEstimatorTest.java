@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage;
+
+import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.entity.ObjectMessage;
+import ch.dissem.bitmessage.entity.payload.GetPubkey;
+import ch.dissem.bitmessage.ports.AbstractCryptography;
+import ch.dissem.bitmessage.ports.SimplePOWEngine;
+import ch.dissem.bitmessage.utils.ProofOfWorkHasher;
+import ch.dissem.bitmessage.utils.TestBase;
+import org.junit.Before;
+import org.junit.Test;
+
+import static ch.dissem.bitmessage.utils.Singleton.security;
+import static ch.dissem.bitmessage.utils.UnixTime.DAY;
+import static ch.dissem.bitmessage.utils.UnixTime.now;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProofOfWorkEstimatorTest extends TestBase {
+    private ProofOfWorkEstimator estimator;
+
+    @Before
+    public void setUp() {
+        InternalContext ctx = mock(InternalContext.class);
+        when(ctx.getNetworkNonceTrialsPerByte()).thenReturn(1000L);
+        when(ctx.getNetworkExtraBytes()).thenReturn(1000L);
+        when(ctx.getProofOfWorkEngine()).thenReturn(new SimplePOWEngine());
+        ((AbstractCryptography) security()).setContext(ctx);
+
+        estimator = new ProofOfWorkEstimator();
+        estimator.setContext(ctx);
+    }
+
+    @Test
+    public void ensureExpectedTrialsMatchTarget() {
+        assertEquals(1L << 16, ProofOfWorkEstimator.getExpectedTrials(ProofOfWorkHasher.toBytes(1L << 48)));
+        assertEquals(1, ProofOfWorkEstimator.getExpectedTrials(ProofOfWorkHasher.toBytes(-1)));
+    }
+
+    @Test
+    public void ensureDifficultyIsTakenIntoAccount() {
+        ObjectMessage object = new ObjectMessage.Builder()
+                .stream(1)
+                .expiresTime(now(+DAY))
+                .payload(new GetPubkey(new BitmessageAddress("BM-2cW7cD5cDQJDNkE7ibmyTxfvGAmnPqa9Vt")))
+                .build();
+        long network = estimator.getExpectedTrials(object, 1000, 1000);
+        assertEquals(network, estimator.getExpectedTrials(object, 0, 0));
+        long harder = estimator.getExpectedTrials(object, 2000, 1000);
+        assertEquals(2.0, (double) harder / network, 0.01);
+    }
+
+    @Test(timeout = 90_000)
+    public void ensureEstimateIsAvailableAfterCalibration() throws InterruptedException {
+        assertEquals(-1, estimator.estimate(1000).getExpectedSeconds());
+
+        double trialsPerSecond = estimator.calibrate();
+        assertTrue(trialsPerSecond > 0);
+        long trials = (long) trialsPerSecond * 60;
+        ProofOfWorkEstimator.Estimate estimate = estimator.estimate(trials);
+        assertEquals(60, estimate.getExpectedSeconds(), 1);
+        assertEquals(0.5, estimate.getProgress(trials / 2), 0.01);
+        assertEquals(1.0, estimate.getProgress(trials * 2), 0);
+    }
+
+    @Test(timeout = 90_000)
+    public void ensureBackgroundCalibrationDoesntBlock() throws InterruptedException {
+        estimator.calibrateInBackground();
+        estimator.calibrateInBackground();
+        while (estimator.getTrialsPerSecond() == 0) {
+            Thread.sleep(10);
+        }
+        assertTrue(estimator.estimate(1000).getExpectedSeconds() >= 0);
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage;
+
+import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.entity.ObjectMessage;
+import ch.dissem.bitmessage.entity.payload.GenericPayload;
+import ch.dissem.bitmessage.entity.payload.GetPubkey;
+import ch.dissem.bitmessage.entity.payload.ObjectPayload;
+import ch.dissem.bitmessage.entity.payload.ObjectType;
+import ch.dissem.bitmessage.entity.valueobject.InventoryVector;
+import ch.dissem.bitmessage.ports.*;
+import ch.dissem.bitmessage.utils.TestBase;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static ch.dissem.bitmessage.utils.Singleton.security;
+import static ch.dissem.bitmessage.utils.Strings.hex;
+import static ch.dissem.bitmessage.utils.UnixTime.DAY;
+import static ch.dissem.bitmessage.utils.UnixTime.now;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ProofOfWorkServiceTest extends TestBase {
+    private final List<byte[]> started = Collections.synchronizedList(new LinkedList<byte[]>());
+    private final Map<String, ObjectMessage> stored = new ConcurrentHashMap<>();
+    private final List<String> events = Collections.synchronizedList(new LinkedList<String>());
+    private final Map<String, Long> checkpoints = new ConcurrentHashMap<>();
+    private volatile CountDownLatch repositoryAvailable = new CountDownLatch(0);
+    private ProofOfWorkService service;
+
+    @Before
+    public void setUp() {
+        InternalContext ctx = mock(InternalContext.class);
+        when(ctx.getNetworkNonceTrialsPerByte()).thenReturn(1000L);
+        when(ctx.getNetworkExtraBytes()).thenReturn(1000L);
+        when(ctx.getInventory()).thenReturn(mock(Inventory.class));
+        when(ctx.getNetworkHandler()).thenReturn(mock(NetworkHandler.class));
+        when(ctx.getMessageRepository()).thenReturn(mock(MessageRepository.class));
+        when(ctx.getMessageCallback()).thenReturn(new ProofOfWorkProgressCallback() {
+            @Override
+            public void proofOfWorkEstimated(ObjectPayload message, ProofOfWorkEstimator.Estimate estimate) {
+                events.add("estimated " + estimate.getExpectedTrials());
+            }
+
+            @Override
+            public void proofOfWorkProgress(ObjectPayload message, long trials, ProofOfWorkEstimator.Estimate estimate) {
+                events.add("progress " + trials);
+            }
+
+            @Override
+            public void proofOfWorkStarted(ObjectPayload message) {
+                events.add("started");
+            }
+
+            @Override
+            public void proofOfWorkCompleted(ObjectPayload message) {
+                events.add("completed");
+            }
+
+            @Override
+            public void messageOffered(ObjectPayload message, InventoryVector iv) {
+                events.add("offered");
+            }
+
+            @Override
+            public void messageAcknowledged(InventoryVector iv) {
+            }
+        });
+        ProofOfWorkRepository powRepo = new ProofOfWorkRepository() {
+            @Override
+            public Item getItem(byte[] initialHash) {
+                return new Item(stored.get(hex(initialHash).toString()), 1000, 1000);
+            }
+
+            @Override
+            public List<byte[]> getItems() {
+                return new LinkedList<>();
+            }
+
+            @Override
+            public void putObject(ObjectMessage object, long nonceTrialsPerByte, long extraBytes) {
+                stored.put(hex(security().getInitialHash(object)).toString(), object);
+            }
+
+            @Override
+            public void removeObject(byte[] initialHash) {
+                stored.remove(hex(initialHash).toString());
+            }
+
+            @Override
+            public void removeObjects(List<byte[]> initialHashes) {
+                try {
+                    repositoryAvailable.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (byte[] initialHash : initialHashes) {
+                    removeObject(initialHash);
+                }
+            }
+
+            @Override
+            public void putCheckpoint(byte[] initialHash, long nonce) {
+                try {
+                    repositoryAvailable.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                if (nonce == 1000) throw new IllegalStateException("Database is gone");
+                checkpoints.put(hex(initialHash).toString(), nonce);
+            }
+        };
+        when(ctx.getProofOfWorkRepository()).thenReturn(powRepo);
+        // This engine never finishes on its own, so the test decides when a job is done
+        when(ctx.getProofOfWorkEngine()).thenReturn(new ProofOfWorkEngine() {
+            @Override
+            public void calculateNonce(byte[] initialHash, byte[] target, Callback callback) {
+                started.add(initialHash);
+            }
+        });
+        ((AbstractCryptography) security()).setContext(ctx);
+
+        service = new ProofOfWorkService();
+        service.setContext(ctx);
+    }
+
+    @Test(timeout = 10_000)
+    public void ensureJobsAreStartedByDeadline() throws InterruptedException {
+        ObjectMessage first = getPubkeyRequest(2 * DAY);
+        ObjectMessage second = getPubkeyRequest(2 * DAY + 1);
+        ObjectMessage late = getPubkeyRequest(3 * DAY);
+        ObjectMessage urgent = getPubkeyRequest(DAY);
+        service.doProofOfWork(first);
+        service.doProofOfWork(second);
+        service.doProofOfWork(late);
+        service.doProofOfWork(urgent);
+
+        assertEquals(2, started.size());
+        assertEquals(2, service.getQueueSize());
+        assertEquals(2, service.getStatus().getProperty("queued").getValue());
+
+        service.onNonceCalculated(started.get(0), new byte[8]);
+        waitForStartedJobs(3);
+        assertArrayEquals(security().getInitialHash(urgent), started.get(2));
+
+        service.onNonceCalculated(started.get(1), new byte[8]);
+        waitForStartedJobs(4);
+        assertArrayEquals(security().getInitialHash(late), started.get(3));
+        assertEquals(0, service.getQueueSize());
+    }
+
+    @Test(timeout = 10_000)
+    public void ensureJobsAreStartedByPriorityBeforeDeadline() throws InterruptedException {
+        service.doProofOfWork(getPubkeyRequest(DAY));
+        service.doProofOfWork(getPubkeyRequest(DAY + 1));
+        ObjectMessage broadcast = new ObjectMessage.Builder()
+                .stream(1)
+                .expiresTime(now(+DAY))
+                .objectType(ObjectType.BROADCAST)
+                .payload(new GenericPayload(5, 1, new byte[]{1}))
+                .build();
+        ObjectMessage request = getPubkeyRequest(2 * DAY);
+        service.doProofOfWork(broadcast);
+        service.doProofOfWork(request);
+
+        service.onNonceCalculated(started.get(0), new byte[8]);
+        waitForStartedJobs(3);
+        assertArrayEquals(security().getInitialHash(request), started.get(2));
+    }
+
+    @Test(timeout = 10_000)
+    public void ensureUnknownNoncesDontFreeASlot() throws InterruptedException {
+        service.doProofOfWork(getPubkeyRequest(DAY));
+        service.doProofOfWork(getPubkeyRequest(DAY + 1));
+        service.doProofOfWork(getPubkeyRequest(DAY + 2));
+        ObjectMessage unknown = getPubkeyRequest(DAY + 3);
+        stored.put(hex(security().getInitialHash(unknown)).toString(), unknown);
+
+        service.onNonceCalculated(security().getInitialHash(unknown), new byte[8]);
+        // reported twice, e.g. by an engine that doesn't know the job was already done
+        service.onNonceCalculated(started.get(0), new byte[8]);
+        service.onNonceCalculated(started.get(0), new byte[8]);
+        waitForStartedJobs(3);
+        while (stored.size() > 2) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, service.getStatus().getProperty("running").getValue());
+    }
+
+    @Test(timeout = 10_000)
+    public void ensureObjectIsRenewedIfItWaitedTooLong() throws Exception {
+        service.doProofOfWork(getPubkeyRequest(DAY));
+        service.doProofOfWork(getPubkeyRequest(DAY + 1));
+        ObjectMessage object = getPubkeyRequest(10);
+        byte[] initialHash = security().getInitialHash(object);
+        service.doProofOfWork(null, object, 10, null, null);
+
+        // A tenth of the time to live is one second, the expiration time is in seconds as well
+        Thread.sleep(1100);
+        service.onNonceCalculated(started.get(0), new byte[8]);
+        waitForStartedJobs(3);
+
+        byte[] renewedHash = started.get(2);
+        assertFalse(Arrays.equals(initialHash, renewedHash));
+        assertFalse(stored.containsKey(hex(initialHash).toString()));
+        ObjectMessage renewed = stored.get(hex(renewedHash).toString());
+        assertTrue(renewed.getExpiresTime() > object.getExpiresTime());
+        assertEquals(1L, service.getStatus().getProperty("renewed").getValue());
+    }
+
+    @Test(timeout = 10_000)
+    public void ensureProgressIsReported() throws InterruptedException {
+        ObjectMessage object = getPubkeyRequest(DAY);
+        // The remaining time to live, and with it the expected trials, may shrink while the job is started
+        long maxTrials = service.getEstimator().getExpectedTrials(object, 1000, 1000);
+        service.doProofOfWork(object);
+        long minTrials = service.getEstimator().getExpectedTrials(object, 1000, 1000);
+        byte[] initialHash = started.get(0);
+        service.onCheckpoint(initialHash, 1000);
+        service.onNonceCalculated(initialHash, new byte[8]);
+        while (events.size() < 5) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(minTrials > 0);
+        String estimated = events.get(1);
+        long expectedTrials = Long.parseLong(estimated.substring("estimated ".length()));
+        assertTrue(expectedTrials >= minTrials && expectedTrials <= maxTrials);
+        assertEquals(Arrays.asList("started", estimated, "progress 1000", "completed", "offered"), events);
+    }
+
+    @Test(timeout = 10_000)
+    public void ensureCheckpointsDontWaitForRepository() throws InterruptedException {
+        repositoryAvailable = new CountDownLatch(1);
+        service.doProofOfWork(getPubkeyRequest(DAY));
+        byte[] initialHash = started.get(0);
+
+        // Neither call may block while the repository is unavailable, and the failing first write is only logged
+        service.onCheckpoint(initialHash, 1000);
+        service.onCheckpoint(initialHash, 2000);
+        service.onCheckpoint(initialHash, 3000);
+        assertTrue(checkpoints.isEmpty());
+
+        repositoryAvailable.countDown();
+        while (!Long.valueOf(3000).equals(checkpoints.get(hex(initialHash).toString()))) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void ensureWorkersDontWaitForRepository() throws InterruptedException {
+        repositoryAvailable = new CountDownLatch(1);
+        service.doProofOfWork(getPubkeyRequest(DAY));
+        service.doProofOfWork(getPubkeyRequest(DAY + 1));
+        service.doProofOfWork(getPubkeyRequest(DAY + 2));
+
+        // Neither call may block while the repository is unavailable
+        service.onNonceCalculated(started.get(0), new byte[8]);
+        service.onNonceCalculated(started.get(1), new byte[8]);
+        assertEquals(3, stored.size());
+
+        repositoryAvailable.countDown();
+        waitForStartedJobs(3);
+        while (stored.size() > 1) {
+            Thread.sleep(10);
+        }
+        assertTrue(stored.containsKey(hex(started.get(2)).toString()));
+    }
+
+    private void waitForStartedJobs(int count) throws InterruptedException {
+        while (started.size() < count) {
+            Thread.sleep(10);
+        }
+    }
+
+    private ObjectMessage getPubkeyRequest(long timeToLive) {
+        return new ObjectMessage.Builder()
+                .stream(1)
+                .expiresTime(now(+timeToLive))
+                .payload(new GetPubkey(new BitmessageAddress("BM-2cW7cD5cDQJDNkE7ibmyTxfvGAmnPqa9Vt")))
+                .build();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.ports;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class KeyCacheTest {
+    private final AtomicInteger decoded = new AtomicInteger();
+
+    private AbstractCryptography.KeyCache<String> cache(int size) {
+        return new AbstractCryptography.KeyCache<String>(size) {
+            @Override
+            protected String decode(byte[] publicKey) {
+                decoded.incrementAndGet();
+                return new String(publicKey);
+            }
+        };
+    }
+
+    @Test
+    public void ensureKeysAreOnlyDecodedOnce() {
+        AbstractCryptography.KeyCache<String> cache = cache(2);
+        byte[] key = {'a'};
+        assertEquals("a", cache.get(key));
+        // Changing the array afterwards must not change the cached entry
+        key[0] = 'b';
+        assertEquals("b", cache.get(key));
+        assertEquals("a", cache.get(new byte[]{'a'}));
+        assertEquals(2, decoded.get());
+    }
+
+    @Test
+    public void ensureKeysAreDecodedEveryTimeWithSizeZero() {
+        AbstractCryptography.KeyCache<String> cache = cache(0);
+        cache.get(new byte[]{'a'});
+        cache.get(new byte[]{'a'});
+        assertEquals(2, decoded.get());
+    }
+}
@@ -18,11 +18,22 @@ package ch.dissem.bitmessage.ports;
 
 import ch.dissem.bitmessage.utils.Bytes;
 import ch.dissem.bitmessage.utils.CallbackWaiter;
+import ch.dissem.bitmessage.utils.ProofOfWorkHasher;
 import ch.dissem.bitmessage.utils.TestBase;
+import ch.dissem.bitmessage.utils.Threads;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
 import static ch.dissem.bitmessage.utils.Singleton.security;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class ProofOfWorkEngineTest extends TestBase {
     @Test(timeout = 90_000)
@@ -35,6 +46,205 @@ public class ProofOfWorkEngineTest extends TestBase {
         testPOW(new MultiThreadedPOWEngine());
     }
 
+    @Test(timeout = 90_000)
+    public void testThreadedPOWEngineWithOwnExecutor() throws InterruptedException {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(2);
+        testPOW(new MultiThreadedPOWEngine(executor, 2));
+        assertEquals("No threads must be created per job", 2, executor.getLargestPoolSize());
+        // The workers of a finished job must stop, so the threads are free for the next one
+        while (executor.getActiveCount() > 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(4, executor.getCompletedTaskCount());
+        executor.shutdown();
+    }
+
+    @Test(timeout = 90_000)
+    public void ensureThreadedPOWEnginesDontWaitForEachOther() throws InterruptedException {
+        ExecutorService slowExecutor = Executors.newFixedThreadPool(1, Threads.daemonThreads("slow POW"));
+        ExecutorService fastExecutor = Executors.newFixedThreadPool(1, Threads.daemonThreads("fast POW"));
+        final CountDownLatch slow = new CountDownLatch(1);
+        new MultiThreadedPOWEngine(slowExecutor, 1).calculateNonce(security().sha512(new byte[]{1, 3, 6, 6}),
+                new byte[]{0, 0, 0, -1, -1, -1, -1, -1}, new ProofOfWorkEngine.Callback() {
+                    @Override
+                    public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                        slow.countDown();
+                    }
+                });
+        final CallbackWaiter<byte[]> fast = new CallbackWaiter<>();
+        new MultiThreadedPOWEngine(fastExecutor, 1).calculateNonce(security().sha512(new byte[]{1, 3, 6, 7}),
+                new byte[]{0, -1, -1, -1, -1, -1, -1, -1}, new ProofOfWorkEngine.Callback() {
+                    @Override
+                    public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                        fast.setValue(nonce);
+                    }
+                });
+        fast.waitForValue();
+        assertEquals("The other engine's calculation must not hold this one up", 1, slow.getCount());
+        slow.await();
+        slowExecutor.shutdown();
+        fastExecutor.shutdown();
+    }
+
+    @Test(timeout = 90_000)
+    public void testPooledPOWEngine() throws InterruptedException {
+        testPOW(new PooledPOWEngine());
+    }
+
+    @Test(timeout = 90_000)
+    public void ensureCancelledJobIsNotCompleted() throws InterruptedException {
+        PooledPOWEngine engine = new PooledPOWEngine(1);
+        byte[] initialHash = security().sha512(new byte[]{1, 3, 6, 6});
+        final CallbackWaiter<byte[]> cancelled = new CallbackWaiter<>();
+        engine.calculateNonce(initialHash, new byte[8], new ProofOfWorkEngine.Callback() {
+            @Override
+            public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                cancelled.setValue(nonce);
+            }
+        });
+        assertTrue(engine.cancel(initialHash));
+        assertFalse(engine.cancel(initialHash));
+
+        // with only one worker, this job can only finish after the cancelled one left the queue
+        byte[] initialHash2 = security().sha512(new byte[]{1, 3, 6, 7});
+        byte[] target2 = {0, 0, -1, -1, -1, -1, -1, -1};
+        final CallbackWaiter<byte[]> waiter = new CallbackWaiter<>();
+        engine.calculateNonce(initialHash2, target2, PrioritizedProofOfWorkEngine.Priority.LOW,
+                new ProofOfWorkEngine.Callback() {
+                    @Override
+                    public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                        waiter.setValue(nonce);
+                    }
+                });
+        byte[] nonce = waiter.waitForValue();
+        assertTrue(Bytes.lt(security().doubleSha512(nonce, initialHash2), target2, 8));
+        assertEquals(0, engine.getQueueSize());
+        engine.shutdown();
+    }
+
+    @Test(timeout = 90_000)
+    public void ensureFailingCallbacksDontStopWorkers() throws InterruptedException {
+        PooledPOWEngine engine = new PooledPOWEngine(1, 0);
+        byte[] target = {0, -1, -1, -1, -1, -1, -1, -1};
+        final CountDownLatch failed = new CountDownLatch(1);
+        engine.calculateNonce(security().sha512(new byte[]{1, 3, 6, 9}), target,
+                PrioritizedProofOfWorkEngine.Priority.NORMAL, 0, new PrioritizedProofOfWorkEngine.CheckpointCallback() {
+                    @Override
+                    public void onCheckpoint(byte[] initialHash, long nonce) {
+                        throw new IllegalStateException("Checkpoint failed");
+                    }
+
+                    @Override
+                    public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                        failed.countDown();
+                        throw new IllegalStateException("Callback failed");
+                    }
+                });
+        failed.await();
+
+        // with only one worker, this job can only finish if the worker survived
+        byte[] initialHash = security().sha512(new byte[]{1, 3, 6, 10});
+        final CallbackWaiter<byte[]> waiter = new CallbackWaiter<>();
+        engine.calculateNonce(initialHash, target, new ProofOfWorkEngine.Callback() {
+            @Override
+            public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                waiter.setValue(nonce);
+            }
+        });
+        assertTrue(Bytes.lt(security().doubleSha512(waiter.waitForValue(), initialHash), target, 8));
+        engine.shutdown();
+    }
+
+    @Test(timeout = 90_000)
+    public void ensureCalculationCanBeResumed() throws InterruptedException {
+        PooledPOWEngine engine = new PooledPOWEngine(2, 0);
+        byte[] initialHash = security().sha512(new byte[]{1, 3, 6, 8});
+        byte[] target = {0, 0, -1, -1, -1, -1, -1, -1};
+
+        final List<Long> checkpoints = new LinkedList<>();
+        final CallbackWaiter<byte[]> waiter = new CallbackWaiter<>();
+        engine.calculateNonce(initialHash, target, PrioritizedProofOfWorkEngine.Priority.NORMAL, 0,
+                new PrioritizedProofOfWorkEngine.CheckpointCallback() {
+                    @Override
+                    public void onCheckpoint(byte[] initialHash, long nonce) {
+                        synchronized (checkpoints) {
+                            checkpoints.add(nonce);
+                        }
+                    }
+
+                    @Override
+                    public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                        waiter.setValue(nonce);
+                    }
+                });
+        long nonce = ProofOfWorkHasher.toLong(waiter.waitForValue());
+        synchronized (checkpoints) {
+            for (long checkpoint : checkpoints) {
+                assertTrue("Checkpoint must not skip the nonce", checkpoint <= nonce);
+            }
+        }
+
+        // Resuming from the checkpoint before the nonce must find it again, resuming after it must find another one
+        final CallbackWaiter<byte[]> resumed = new CallbackWaiter<>();
+        engine.calculateNonce(initialHash, target, PrioritizedProofOfWorkEngine.Priority.NORMAL, nonce,
+                new ProofOfWorkEngine.Callback() {
+                    @Override
+                    public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                        resumed.setValue(nonce);
+                    }
+                });
+        assertEquals(nonce, ProofOfWorkHasher.toLong(resumed.waitForValue()));
+
+        final CallbackWaiter<byte[]> skipped = new CallbackWaiter<>();
+        engine.calculateNonce(initialHash, target, PrioritizedProofOfWorkEngine.Priority.NORMAL, nonce + 1,
+                new ProofOfWorkEngine.Callback() {
+                    @Override
+                    public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                        skipped.setValue(nonce);
+                    }
+                });
+        byte[] nonce2 = skipped.waitForValue();
+        assertTrue(ProofOfWorkHasher.toLong(nonce2) > nonce);
+        assertTrue(Bytes.lt(security().doubleSha512(nonce2, initialHash), target, 8));
+        engine.shutdown();
+    }
+
+    @Test(timeout = 90_000)
+    public void testBatch() throws InterruptedException {
+        PooledPOWEngine engine = new PooledPOWEngine(2);
+        List<PrioritizedProofOfWorkEngine.BatchItem> items = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            byte[] target = {0, (byte) (i == 5 ? -1 : 0), -1, -1, -1, -1, -1, -1};
+            items.add(new PrioritizedProofOfWorkEngine.BatchItem(security().sha512(new byte[]{2, 0, (byte) i}), target));
+        }
+        final List<byte[]> completed = new ArrayList<>();
+        final CountDownLatch latch = new CountDownLatch(items.size());
+        engine.calculateNonces(items, PrioritizedProofOfWorkEngine.Priority.NORMAL, new ProofOfWorkEngine.Callback() {
+            @Override
+            public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                synchronized (completed) {
+                    completed.add(initialHash);
+                    completed.add(nonce);
+                }
+                latch.countDown();
+            }
+        });
+        latch.await();
+        assertEquals(2 * items.size(), completed.size());
+        // The easy one should be done long before the others
+        assertArrayEquals(items.get(5).initialHash, completed.get(0));
+        for (int i = 0; i < completed.size(); i += 2) {
+            for (PrioritizedProofOfWorkEngine.BatchItem item : items) {
+                if (Arrays.equals(item.initialHash, completed.get(i))) {
+                    byte[] hash = security().doubleSha512(completed.get(i + 1), item.initialHash);
+                    assertFalse(Bytes.lt(item.target, hash, 8));
+                }
+            }
+        }
+        assertEquals(0, engine.getQueueSize());
+        engine.shutdown();
+    }
+
     private void testPOW(ProofOfWorkEngine engine) throws InterruptedException {
         byte[] initialHash = security().sha512(new byte[]{1, 3, 6, 4});
         byte[] target = {0, 0, 0, -1, -1, -1, -1, -1};
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.utils;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ProofOfWorkHasherTest {
+    private static final Random rnd = new Random(42);
+
+    @Test
+    public void ensureHashMatchesDoubleSHA512() throws Exception {
+        MessageDigest mda = MessageDigest.getInstance("SHA-512");
+        for (int i = 0; i < 20; i++) {
+            byte[] initialHash = new byte[64];
+            rnd.nextBytes(initialHash);
+            ProofOfWorkHasher hasher = new ProofOfWorkHasher(initialHash);
+            long[] nonces = {0, 1, 255, 256, Long.MAX_VALUE, Long.MIN_VALUE, -1, rnd.nextLong()};
+            for (long nonce : nonces) {
+                mda.update(ProofOfWorkHasher.toBytes(nonce));
+                mda.update(initialHash);
+                byte[] expected = mda.digest(mda.digest());
+                assertEquals("nonce " + nonce, ProofOfWorkHasher.toLong(expected), hasher.hash(nonce));
+            }
+        }
+    }
+
+    @Test
+    public void ensureTargetIsComparedUnsigned() {
+        byte[] initialHash = new byte[64];
+        rnd.nextBytes(initialHash);
+        ProofOfWorkHasher hasher = new ProofOfWorkHasher(initialHash);
+        long hash = hasher.hash(1);
+        assertTrue(hasher.isValid(1, hash));
+        assertTrue(hasher.isValid(1, -1));
+        assertEquals(hash != 0, !hasher.isValid(1, hash - 1));
+        assertEquals(hash == 0, hasher.isValid(1, 0));
+    }
+
+    @Test
+    public void ensureBytesAndLongsAreConvertedBigEndian() {
+        byte[] bytes = {1, 2, 3, 4, 5, 6, 7, (byte) 0xff};
+        assertEquals(0x01020304050607ffL, ProofOfWorkHasher.toLong(bytes));
+        assertArrayEquals(bytes, ProofOfWorkHasher.toBytes(0x01020304050607ffL));
+    }
+}
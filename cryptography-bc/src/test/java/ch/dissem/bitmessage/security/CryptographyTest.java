@@ -4,8 +4,11 @@ import ch.dissem.bitmessage.InternalContext;
 import ch.dissem.bitmessage.cryptography.bc.BouncyCryptography;
 import ch.dissem.bitmessage.entity.ObjectMessage;
 import ch.dissem.bitmessage.entity.payload.GenericPayload;
+import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
+import ch.dissem.bitmessage.ports.Cryptography;
 import ch.dissem.bitmessage.ports.MultiThreadedPOWEngine;
 import ch.dissem.bitmessage.ports.ProofOfWorkEngine;
+import ch.dissem.bitmessage.utils.Bytes;
 import ch.dissem.bitmessage.utils.CallbackWaiter;
 import ch.dissem.bitmessage.utils.Singleton;
 import ch.dissem.bitmessage.utils.UnixTime;
@@ -13,10 +16,19 @@ import org.junit.Test;
 
 import javax.xml.bind.DatatypeConverter;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static ch.dissem.bitmessage.utils.UnixTime.MINUTE;
-import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -68,6 +80,142 @@ public class CryptographyTest {
         assertArrayEquals(security.sha512(TEST_SHA512), security.doubleSha512(TEST_VALUE));
     }
 
+    @Test
+    public void ensureMacOfPartsIsMacOfWhole() {
+        byte[] key = security.randomBytes(32);
+        assertArrayEquals(security.mac(key, TEST_VALUE), security.mac(key, "test".getBytes(), "string".getBytes()));
+    }
+
+    @Test
+    public void ensureStreamedCipherMatchesCipherOfWhole() throws IOException {
+        byte[] key = security.randomBytes(32);
+        byte[] iv = security.randomBytes(16);
+        byte[] data = security.randomBytes(1000);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        OutputStream out = security.crypt(true, encrypted, key, iv);
+        out.write(data, 0, 7);
+        out.write(data, 7, 993);
+        out.close();
+        assertArrayEquals(security.crypt(true, data, key, iv), encrypted.toByteArray());
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        out = security.crypt(false, decrypted, key, iv);
+        out.write(encrypted.toByteArray());
+        out.close();
+        assertArrayEquals(data, decrypted.toByteArray());
+    }
+
+    @Test
+    public void ensureBasePointMultiplicationIsCorrect() {
+        byte[] one = new byte[32];
+        one[31] = 1;
+        byte[] two = new byte[32];
+        two[31] = 2;
+        byte[] G = security.createPublicKey(one);
+        assertArrayEquals(security.createPublicKey(two), security.multiply(G, two));
+    }
+
+    @Test
+    public void ensureAddingGeneratorIncrementsPrivateKey() {
+        byte[] one = new byte[32];
+        one[31] = 1;
+        byte[] G = security.createPublicKey(one);
+        byte[] k = security.randomBytes(32);
+        byte[] K = security.createPublicKey(k);
+        Bytes.inc(k);
+        assertArrayEquals(security.createPublicKey(k), security.addPoints(K, G));
+    }
+
+    @Test
+    public void ensureEphemeralKeyPairsAreValidAndNeverReused() {
+        Set<ByteBuffer> publicKeys = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            Cryptography.KeyPair keyPair = security.createEphemeralKeyPair();
+            assertArrayEquals(security.createPublicKey(keyPair.privateKey), keyPair.publicKey);
+            assertTrue(publicKeys.add(ByteBuffer.wrap(keyPair.publicKey)));
+        }
+    }
+
+    @Test
+    public void ensureEphemeralKeyGeneratorDoesNotKeepTheJvmAlive() {
+        security.createEphemeralKeyPair();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("Ephemeral key generator")) {
+                assertTrue(thread.isDaemon());
+            }
+        }
+    }
+
+    @Test
+    public void ensureSharedSecretIsTheSameWithAndWithoutCachedPoints() {
+        BouncyCryptography uncached = new BouncyCryptography(0);
+        byte[] a = security.randomBytes(32);
+        byte[] b = security.randomBytes(32);
+        byte[] A = security.createPublicKey(a);
+        byte[] B = security.createPublicKey(b);
+        assertArrayEquals(A, uncached.createPublicKey(a));
+
+        byte[] secret = security.multiply(A, b);
+        assertArrayEquals(secret, security.multiply(B, a));
+        // the second time, the cached point and its precomputed table are used
+        assertArrayEquals(secret, security.multiply(A, b));
+        assertArrayEquals(secret, uncached.multiply(A, b));
+        assertArrayEquals(secret, security.multiplyEphemeral(A, b));
+    }
+
+    @Test
+    public void ensureSignatureIsVerifiedWithCachedKey() {
+        PrivateKey privateKey = new PrivateKey(false, 1, 1000, 1000);
+        byte[] signature = security.getSignature(TEST_VALUE, privateKey);
+        assertTrue(security.isSignatureValid(TEST_VALUE, signature, privateKey.getPubkey()));
+        assertTrue(security.isSignatureValid(TEST_VALUE, signature, privateKey.getPubkey()));
+        assertFalse(security.isSignatureValid(TEST_SHA1, signature, privateKey.getPubkey()));
+    }
+
+    @Test
+    public void ensureBatchVerificationFindsInvalidSignatures() {
+        List<Cryptography.SignedData> items = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            PrivateKey privateKey = new PrivateKey(false, 1, 1000, 1000);
+            byte[] data = {(byte) i};
+            byte[] signature = security.getSignature(data, privateKey);
+            if (i == 2) data = new byte[]{42};
+            if (i == 5) signature = new byte[]{1, 2, 3};
+            items.add(new Cryptography.SignedData(data, signature, privateKey.getPubkey()));
+        }
+        boolean[] valid = security.verifyBatch(items);
+        assertEquals(8, valid.length);
+        for (int i = 0; i < valid.length; i++) {
+            assertEquals("Signature " + i, i != 2 && i != 5, valid[i]);
+        }
+        assertEquals(0, security.verifyBatch(new ArrayList<Cryptography.SignedData>()).length);
+    }
+
+    @Test
+    public void ensureHashesAreCorrectInSeveralThreads() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        if (!Arrays.equals(TEST_SHA512, security.sha512(TEST_VALUE))
+                                || !Arrays.equals(TEST_RIPEMD160, security.ripemd160(TEST_VALUE))) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
     @Test(expected = IOException.class)
     public void testProofOfWorkFails() throws IOException {
         ObjectMessage objectMessage = new ObjectMessage.Builder()
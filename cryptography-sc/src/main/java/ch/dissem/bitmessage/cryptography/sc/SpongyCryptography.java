@@ -25,6 +25,7 @@ import org.spongycastle.crypto.CipherParameters;
 import org.spongycastle.crypto.InvalidCipherTextException;
 import org.spongycastle.crypto.ec.CustomNamedCurves;
 import org.spongycastle.crypto.engines.AESEngine;
+import org.spongycastle.crypto.io.CipherOutputStream;
 import org.spongycastle.crypto.modes.CBCBlockCipher;
 import org.spongycastle.crypto.paddings.PKCS7Padding;
 import org.spongycastle.crypto.paddings.PaddedBufferedBlockCipher;
@@ -34,9 +35,14 @@ import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.spongycastle.jce.spec.ECParameterSpec;
 import org.spongycastle.jce.spec.ECPrivateKeySpec;
 import org.spongycastle.jce.spec.ECPublicKeySpec;
+import org.spongycastle.math.ec.ECCurve;
+import org.spongycastle.math.ec.ECMultiplier;
 import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.FixedPointCombMultiplier;
 
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -46,21 +52,90 @@ import java.util.Arrays;
 /**
  * As Spongycastle can't be used on the Oracle JVM, and Bouncycastle doesn't work properly on Android (thanks, Google),
  * this is the Spongycastle implementation.
+ * <p>
+ * Multiplications of the generator use a precomputed comb table. Decoded public keys of identities and contacts are
+ * cached, as the precomputed wNAF tables used to multiply them are stored with the point and therefore reused the next
+ * time. For the same reason, the decoded public signing keys are cached, and each thread keeps its own signature and
+ * cipher instances.
+ * </p>
  */
 public class SpongyCryptography extends AbstractCryptography {
     private static final X9ECParameters EC_CURVE_PARAMETERS = CustomNamedCurves.getByName("secp256k1");
+    private static final ECMultiplier BASE_POINT_MULTIPLIER = new FixedPointCombMultiplier();
+    private static final ECParameterSpec EC_PARAMETER_SPEC = new ECParameterSpec(
+            EC_CURVE_PARAMETERS.getCurve(),
+            EC_CURVE_PARAMETERS.getG(),
+            EC_CURVE_PARAMETERS.getN(),
+            EC_CURVE_PARAMETERS.getH(),
+            EC_CURVE_PARAMETERS.getSeed()
+    );
+
+    private final KeyCache<ECPoint> points;
+    private final KeyCache<PublicKey> publicKeys;
+
+    private final ThreadLocal<BufferedBlockCipher> ciphers = new ThreadLocal<BufferedBlockCipher>() {
+        @Override
+        protected BufferedBlockCipher initialValue() {
+            return new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
+        }
+    };
+    private final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance("ECDSA", "SC");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+    private final ThreadLocal<KeyFactory> keyFactories = new ThreadLocal<KeyFactory>() {
+        @Override
+        protected KeyFactory initialValue() {
+            try {
+                return KeyFactory.getInstance("ECDSA", "SC");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
 
     static {
         java.security.Security.addProvider(new BouncyCastleProvider());
     }
 
     public SpongyCryptography() {
+        this(DEFAULT_KEY_CACHE_SIZE);
+    }
+
+    /**
+     * @param pointCacheSize number of decoded public keys to keep, e.g. the keys of contacts and identities, or 0
+     *                       to always decode them again.
+     */
+    public SpongyCryptography(int pointCacheSize) {
         super("SC");
+        this.points = new KeyCache<ECPoint>(pointCacheSize) {
+            @Override
+            protected ECPoint decode(byte[] publicKey) {
+                return keyToPoint(publicKey);
+            }
+        };
+        this.publicKeys = new KeyCache<PublicKey>(pointCacheSize) {
+            @Override
+            protected PublicKey decode(byte[] signingKey) {
+                try {
+                    KeySpec keySpec = new ECPublicKeySpec(points.get(signingKey), EC_PARAMETER_SPEC);
+                    return keyFactories.get().generatePublic(keySpec);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+        };
     }
 
     @Override
     public byte[] crypt(boolean encrypt, byte[] data, byte[] key_e, byte[] initializationVector) {
-        BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
+        BufferedBlockCipher cipher = ciphers.get();
 
         CipherParameters params = new ParametersWithIV(new KeyParameter(key_e), initializationVector);
 
@@ -79,12 +154,21 @@ public class SpongyCryptography extends AbstractCryptography {
         return buffer;
     }
 
+    @Override
+    public OutputStream crypt(boolean encrypt, OutputStream out, byte[] key_e, byte[] initializationVector) {
+        // The stream might outlive the current call, so it can't use the thread's cipher
+        BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
+        cipher.init(encrypt, new ParametersWithIV(new KeyParameter(key_e), initializationVector));
+        return new CipherOutputStream(out, cipher);
+    }
+
     @Override
     public byte[] createPublicKey(byte[] privateKey) {
-        return EC_CURVE_PARAMETERS.getG().multiply(keyToBigInt(privateKey)).normalize().getEncoded(false);
+        return BASE_POINT_MULTIPLIER.multiply(EC_CURVE_PARAMETERS.getG(), keyToBigInt(privateKey))
+                .normalize().getEncoded(false);
     }
 
-    private ECPoint keyToPoint(byte[] publicKey) {
+    private static ECPoint keyToPoint(byte[] publicKey) {
         BigInteger x = new BigInteger(1, Arrays.copyOfRange(publicKey, 1, 33));
         BigInteger y = new BigInteger(1, Arrays.copyOfRange(publicKey, 33, 65));
         return EC_CURVE_PARAMETERS.getCurve().createPoint(x, y);
@@ -93,20 +177,8 @@ public class SpongyCryptography extends AbstractCryptography {
     @Override
     public boolean isSignatureValid(byte[] data, byte[] signature, Pubkey pubkey) {
         try {
-            ECParameterSpec spec = new ECParameterSpec(
-                    EC_CURVE_PARAMETERS.getCurve(),
-                    EC_CURVE_PARAMETERS.getG(),
-                    EC_CURVE_PARAMETERS.getN(),
-                    EC_CURVE_PARAMETERS.getH(),
-                    EC_CURVE_PARAMETERS.getSeed()
-            );
-
-            ECPoint Q = keyToPoint(pubkey.getSigningKey());
-            KeySpec keySpec = new ECPublicKeySpec(Q, spec);
-            PublicKey publicKey = KeyFactory.getInstance("ECDSA", "SC").generatePublic(keySpec);
-
-            Signature sig = Signature.getInstance("ECDSA", "SC");
-            sig.initVerify(publicKey);
+            Signature sig = signatures.get();
+            sig.initVerify(publicKeys.get(pubkey.getSigningKey()));
             sig.update(data);
             return sig.verify(signature);
         } catch (Exception e) {
@@ -117,19 +189,11 @@ public class SpongyCryptography extends AbstractCryptography {
     @Override
     public byte[] getSignature(byte[] data, PrivateKey privateKey) {
         try {
-            ECParameterSpec spec = new ECParameterSpec(
-                    EC_CURVE_PARAMETERS.getCurve(),
-                    EC_CURVE_PARAMETERS.getG(),
-                    EC_CURVE_PARAMETERS.getN(),
-                    EC_CURVE_PARAMETERS.getH(),
-                    EC_CURVE_PARAMETERS.getSeed()
-            );
-
             BigInteger d = keyToBigInt(privateKey.getPrivateSigningKey());
-            KeySpec keySpec = new ECPrivateKeySpec(d, spec);
-            java.security.PrivateKey privKey = KeyFactory.getInstance("ECDSA", "SC").generatePrivate(keySpec);
+            KeySpec keySpec = new ECPrivateKeySpec(d, EC_PARAMETER_SPEC);
+            java.security.PrivateKey privKey = keyFactories.get().generatePrivate(keySpec);
 
-            Signature sig = Signature.getInstance("ECDSA", "SC");
+            Signature sig = signatures.get();
             sig.initSign(privKey);
             sig.update(data);
             return sig.sign();
@@ -140,7 +204,12 @@ public class SpongyCryptography extends AbstractCryptography {
 
     @Override
     public byte[] multiply(byte[] K, byte[] r) {
-        return keyToPoint(K).multiply(keyToBigInt(r)).normalize().getEncoded(false);
+        return points.get(K).multiply(keyToBigInt(r)).normalize().getEncoded(false);
+    }
+
+    @Override
+    public byte[] multiplyEphemeral(byte[] R, byte[] k) {
+        return keyToPoint(R).multiply(keyToBigInt(k)).normalize().getEncoded(false);
     }
 
     @Override
@@ -150,4 +219,11 @@ public class SpongyCryptography extends AbstractCryptography {
                 new BigInteger(1, y)
         ).getEncoded(false);
     }
+
+    @Override
+    public byte[] addPoints(byte[] P, byte[] Q) {
+        // The sum usually is a new key that isn't used again, so it mustn't push the others out of the cache
+        ECCurve curve = EC_CURVE_PARAMETERS.getCurve();
+        return curve.decodePoint(P).add(curve.decodePoint(Q)).normalize().getEncoded(false);
+    }
 }
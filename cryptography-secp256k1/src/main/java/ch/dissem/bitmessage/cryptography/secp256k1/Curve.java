@@ -0,0 +1,734 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.cryptography.secp256k1;
+
+/**
+ * Point arithmetic on secp256k1, y^2 = x^3 + 7.
+ * <p>
+ * Points are kept in Jacobian coordinates (x = X / Z^2, y = Y / Z^3) so no inversion is needed until the result
+ * is encoded. Multiplications use signed 5 bit windows whose digits are all odd, in [-31, 31], with precomputed
+ * tables of the odd multiples of affine points: the generator has a table for every window, so multiplying it needs
+ * 51 additions and no doublings. Other points are multiplied with the GLV method: the scalar is split into two 128
+ * bit halves, one of them for the point itself and one for the endomorphism (beta * x, y), which is the point
+ * multiplied by lambda. This halves the number of doublings. Tables that are used more than once can have a second
+ * table for 2^65 * P, which halves them once more.
+ * </p>
+ * <p>
+ * The table entries are selected by reading all of them, and as no digit is zero, every window needs exactly one
+ * addition, so the time needed doesn't depend on the scalar. Only the additions of two equal points and of the point
+ * at infinity take a different route, which doesn't happen for scalars that aren't chosen to make it happen.
+ * </p>
+ */
+final class Curve {
+    private static final int WINDOW_BITS = 5;
+    /**
+     * The number of odd multiples in a table, for the digits 1, 3, ..., 31.
+     */
+    private static final int TABLE_SIZE = 1 << (WINDOW_BITS - 1);
+    /**
+     * The recoding adds a bit, see {@link #recode(int[], int)}: 52 windows for 256 bit scalars and 26 for the at
+     * most 129 bit halves of split ones.
+     */
+    private static final int WINDOWS = 52;
+    private static final int SPLIT_WINDOWS = 26;
+    /**
+     * The windows of split scalars that are covered by the second table of {@link Table#shifted}, which is for
+     * 32^13 * P = 2^65 * P.
+     */
+    private static final int SHIFTED_WINDOWS = SPLIT_WINDOWS / 2;
+    private static final long M = 0xFFFFFFFFL;
+    private static final int[] ZERO = Field.create();
+    private static final int[] ONE = Field.fromInt(1);
+    private static final int[] B = Field.fromInt(7);
+    private static final int[] BETA = Field.fromLimbs(new int[]{
+            0x719501EE, 0xC1396C28, 0x12F58995, 0x9CF04975, 0xAC3434E9, 0x6E64479E, 0x657C0710, 0x7AE96A2B
+    });
+    private static final int[] GX = Field.fromLimbs(new int[]{
+            0x16F81798, 0x59F2815B, 0x2DCE28D9, 0x029BFCDB, 0xCE870B07, 0x55A06295, 0xF9DCBBAC, 0x79BE667E
+    });
+    private static final int[] GY = Field.fromLimbs(new int[]{
+            0xFB10D4B8, 0x9C47D08F, 0xA6855419, 0xFD17B448, 0x0E1108A8, 0x5DA4FBFC, 0x26A3C465, 0x483ADA77
+    });
+    /**
+     * G_TABLES[i] contains j * 32^i * G for the odd j from 1 to 31.
+     */
+    private static final Table[] G_TABLES = createGeneratorTables();
+
+    private Curve() {
+    }
+
+    /**
+     * A point in Jacobian coordinates, which is the point at infinity if z is zero. The coordinates aren't
+     * normalized: x and y have a magnitude of at most 3, z of 1 (see {@link Field}).
+     */
+    static final class Point {
+        final int[] x = Field.create();
+        final int[] y = Field.create();
+        final int[] z = Field.create();
+
+        static Point infinity() {
+            Point p = new Point();
+            p.setInfinity();
+            return p;
+        }
+
+        static Point affine(int[] x, int[] y) {
+            Point p = new Point();
+            p.setAffine(x, y);
+            return p;
+        }
+
+        boolean isInfinity() {
+            return Field.isZero(z);
+        }
+
+        void set(Point p) {
+            Field.copy(p.x, x);
+            Field.copy(p.y, y);
+            Field.copy(p.z, z);
+        }
+
+        void setInfinity() {
+            Field.copy(ONE, x);
+            Field.copy(ONE, y);
+            Field.copy(ZERO, z);
+        }
+
+        void setAffine(int[] x, int[] y) {
+            Field.copy(x, this.x);
+            Field.copy(y, this.y);
+            Field.copy(ONE, z);
+        }
+
+        void select(int mask, Point p) {
+            Field.select(mask, p.x, x);
+            Field.select(mask, p.y, y);
+            Field.select(mask, p.z, z);
+        }
+    }
+
+    /**
+     * The affine points j * P for the odd j from 1 to 31 at index (j - 1) / 2, and the same points multiplied by
+     * lambda, i.e. with x * beta.
+     */
+    static final class Table {
+        final int[][] x = new int[TABLE_SIZE][];
+        final int[][] y = new int[TABLE_SIZE][];
+        final int[][] betaX = new int[TABLE_SIZE][];
+        /**
+         * The table for 2^65 * P, or null if multiplications with this table don't use one.
+         */
+        final Table shifted;
+
+        private Table(Point[] multiples, int offset, Table shifted) {
+            this.shifted = shifted;
+            for (int j = 0; j < TABLE_SIZE; j++) {
+                Point p = multiples[offset + j];
+                x[j] = p.x;
+                y[j] = p.y;
+                betaX[j] = Field.create();
+                Field.multiply(p.x, BETA, betaX[j]);
+            }
+        }
+
+        /**
+         * Reads all entries, so the memory access pattern doesn't reveal the digit. The negative of an entry is
+         * calculated and selected the same way. outY has a magnitude of at most 2.
+         *
+         * @param digit  odd, in [-31, 31]
+         * @param negate -1 to negate the entry (once more), 0 otherwise
+         * @param negY   temporary
+         */
+        void lookup(int digit, boolean lambda, int negate, int[] outX, int[] outY, int[] negY) {
+            int sign = digit >> 31;
+            int index = ((digit ^ sign) - sign) >>> 1;
+            int[][] xs = lambda ? betaX : x;
+            Field.copy(xs[0], outX);
+            Field.copy(y[0], outY);
+            for (int j = 1; j < TABLE_SIZE; j++) {
+                int mask = equalMask(j, index);
+                Field.select(mask, xs[j], outX);
+                Field.select(mask, y[j], outY);
+            }
+            Field.negate(outY, 1, negY);
+            Field.select(sign ^ negate, negY, outY);
+        }
+    }
+
+    /**
+     * Temporary values of the point operations, so the loops of a multiplication don't allocate anything. Each
+     * multiplication creates its own, so they're never shared between threads.
+     */
+    static final class Scratch {
+        private final int[][] doubling = create(3);
+        private final int[][] addition = create(12);
+        /**
+         * The table entry of {@link #addDigit(Point, Table, boolean, int, int, int, Scratch)}.
+         */
+        private final int[] x = Field.create();
+        private final int[] y = Field.create();
+        private final int[] negY = Field.create();
+        private final Point sum = new Point();
+        /**
+         * The affine point that is doubled if {@link #addAffine(Point, int[], int[], Point, Scratch)} gets the same
+         * point twice.
+         */
+        private final Point point = new Point();
+
+        private static int[][] create(int count) {
+            int[][] elements = new int[count][];
+            for (int i = 0; i < count; i++) {
+                elements[i] = Field.create();
+            }
+            return elements;
+        }
+    }
+
+    static Table createTable(Point p) {
+        return createTable(p, false);
+    }
+
+    /**
+     * @param shifted if the table gets a second table for 2^65 * P, which saves half of the doublings in each
+     *                multiplication, but takes about as long to create as it saves in one of them
+     */
+    static Table createTable(Point p, boolean shifted) {
+        Scratch scratch = new Scratch();
+        Point[] multiples = new Point[shifted ? 2 * TABLE_SIZE : TABLE_SIZE];
+        addOddMultiples(p, multiples, 0, scratch);
+        if (shifted) {
+            Point q = new Point();
+            doublePoint(p, q, scratch);
+            for (int i = 1; i < WINDOW_BITS * SHIFTED_WINDOWS; i++) {
+                doublePoint(q, q, scratch);
+            }
+            addOddMultiples(q, multiples, TABLE_SIZE, scratch);
+        }
+        normalize(multiples);
+        return new Table(multiples, 0, shifted ? new Table(multiples, TABLE_SIZE, null) : null);
+    }
+
+    private static Table[] createGeneratorTables() {
+        Scratch scratch = new Scratch();
+        Point[] multiples = new Point[WINDOWS * TABLE_SIZE];
+        Point base = Point.affine(GX, GY);
+        for (int i = 0; i < WINDOWS; i++) {
+            int offset = TABLE_SIZE * i;
+            addOddMultiples(base, multiples, offset, scratch);
+            // 32 * base = 31 * base + base
+            Point next = new Point();
+            add(multiples[offset + TABLE_SIZE - 1], base, next, scratch);
+            base = next;
+        }
+        normalize(multiples);
+        Table[] tables = new Table[WINDOWS];
+        for (int i = 0; i < WINDOWS; i++) {
+            tables[i] = new Table(multiples, TABLE_SIZE * i, null);
+        }
+        return tables;
+    }
+
+    /**
+     * Sets multiples[offset + j] to (2 * j + 1) * p, the first of them is p itself.
+     */
+    private static void addOddMultiples(Point p, Point[] multiples, int offset, Scratch scratch) {
+        Point twice = new Point();
+        doublePoint(p, twice, scratch);
+        multiples[offset] = p;
+        for (int j = 1; j < TABLE_SIZE; j++) {
+            multiples[offset + j] = new Point();
+            add(multiples[offset + j - 1], twice, multiples[offset + j], scratch);
+        }
+    }
+
+    /**
+     * @param k reduced modulo n
+     * @return k * G
+     */
+    static Point multiplyGenerator(int[] k) {
+        if (Scalar.isZero(k)) {
+            return Point.infinity();
+        }
+        // The recoding needs an odd scalar, so an even k is replaced by n - k, which is odd, and the result negated
+        int even = (k[0] & 1) - 1;
+        int[] odd = Scalar.create();
+        Scalar.negate(k, odd);
+        for (int i = 0; i < Scalar.SIZE; i++) {
+            odd[i] ^= (odd[i] ^ k[i]) & ~even;
+        }
+        int[] recoded = recode(odd, WINDOWS);
+
+        Scratch scratch = new Scratch();
+        Point r = new Point();
+        G_TABLES[0].lookup(oddDigit(recoded, 0), false, 0, scratch.x, scratch.y, scratch.negY);
+        r.setAffine(scratch.x, scratch.y);
+        for (int i = 1; i < WINDOWS; i++) {
+            addDigit(r, G_TABLES[i], false, oddDigit(recoded, i), 0, -1, scratch);
+        }
+        Field.negate(r.y, 3, scratch.y);
+        Field.select(even, scratch.y, r.y);
+        Field.normalizeWeak(r.y);
+        return r;
+    }
+
+    /**
+     * If the table has a second table for Q = 2^65 * P, the digits of the upper half of each split scalar are
+     * multiplied with Q instead of P, so the doublings of the lower half are enough.
+     *
+     * @param k reduced modulo n
+     * @return k * P, where table was created for P
+     */
+    static Point multiply(Table table, int[] k) {
+        int[] k1 = Scalar.create();
+        int[] k2 = Scalar.create();
+        int[] negated = new int[2];
+        Scalar.split(k, k1, k2, negated);
+        // The recoding needs odd scalars, so even halves are incremented, and P or lambda * P subtracted at the end
+        int even1 = makeOdd(k1);
+        int even2 = makeOdd(k2);
+        int[] recoded1 = recode(k1, SPLIT_WINDOWS);
+        int[] recoded2 = recode(k2, SPLIT_WINDOWS);
+        Table shifted = table.shifted;
+        int windows = shifted == null ? SPLIT_WINDOWS : SHIFTED_WINDOWS;
+
+        Scratch scratch = new Scratch();
+        Point r = new Point();
+        table.lookup(oddDigit(recoded1, windows - 1), false, negated[0], scratch.x, scratch.y, scratch.negY);
+        r.setAffine(scratch.x, scratch.y);
+        addDigit(r, table, true, oddDigit(recoded2, windows - 1), negated[1], -1, scratch);
+        for (int i = windows - 1; i >= 0; i--) {
+            if (i < windows - 1) {
+                for (int d = 0; d < WINDOW_BITS; d++) {
+                    doublePoint(r, r, scratch);
+                }
+                addDigit(r, table, false, oddDigit(recoded1, i), negated[0], -1, scratch);
+                addDigit(r, table, true, oddDigit(recoded2, i), negated[1], -1, scratch);
+            }
+            if (shifted != null) {
+                addDigit(r, shifted, false, oddDigit(recoded1, i + SHIFTED_WINDOWS), negated[0], -1, scratch);
+                addDigit(r, shifted, true, oddDigit(recoded2, i + SHIFTED_WINDOWS), negated[1], -1, scratch);
+            }
+        }
+        addDigit(r, table, false, -1, negated[0], even1, scratch);
+        addDigit(r, table, true, -1, negated[1], even2, scratch);
+        return r;
+    }
+
+    /**
+     * Adds one to k if it's even.
+     *
+     * @return -1 if k was even, 0 otherwise
+     */
+    private static int makeOdd(int[] k) {
+        long c = ~k[0] & 1;
+        int even = (int) -c;
+        for (int i = 0; i < Scalar.SIZE; i++) {
+            c += k[i] & M;
+            k[i] = (int) c;
+            c >>>= 32;
+        }
+        return even;
+    }
+
+    /**
+     * Recodes an odd k as k' = (k - 1) / 2 + 2^(5 * windows - 1), so it needs one bit more. Each bit of k' then
+     * stands for +1 if it's set and -1 if it isn't, which makes each window of five bits an odd digit in [-31, 31],
+     * see {@link #oddDigit(int[], int)}. The digits times 32^i add up to 2 * k' - (2^(5 * windows) - 1), which is
+     * k again.
+     */
+    static int[] recode(int[] k, int windows) {
+        int bits = WINDOW_BITS * windows;
+        int[] r = new int[(bits + 31) >>> 5];
+        for (int i = 0; i < r.length && i < k.length; i++) {
+            r[i] = k[i] >>> 1;
+            if (i + 1 < k.length) {
+                r[i] |= k[i + 1] << 31;
+            }
+        }
+        r[(bits - 1) >>> 5] |= 1 << ((bits - 1) & 31);
+        return r;
+    }
+
+    /**
+     * @param recoded see {@link #recode(int[], int)}
+     * @return the digit of window i, odd and in [-31, 31]
+     */
+    static int oddDigit(int[] recoded, int i) {
+        int position = WINDOW_BITS * i;
+        int limb = position >>> 5;
+        long window = recoded[limb] & M;
+        if (limb + 1 < recoded.length) {
+            window |= (recoded[limb + 1] & M) << 32;
+        }
+        return 2 * ((int) (window >>> (position & 31)) & 0x1F) - 0x1F;
+    }
+
+    /**
+     * Calculates k1 * G + k2 * P, where table was created for P. This is meant for verifying signatures, where
+     * everything is public, so it doesn't need to take the same time for all scalars: both of them are split, the
+     * four halves are written in width 6 NAF so only about every seventh digit needs an addition, and all of them
+     * share the same doublings.
+     */
+    static Point multiplyAndAdd(int[] k1, Table table, int[] k2) {
+        int[][] digits = new int[4][];
+        int[] negated = new int[4];
+        int[] a = Scalar.create();
+        int[] b = Scalar.create();
+        int[] signs = new int[2];
+        Scalar.split(k1, a, b, signs);
+        digits[0] = naf(a);
+        digits[1] = naf(b);
+        negated[0] = signs[0];
+        negated[1] = signs[1];
+        Scalar.split(k2, a, b, signs);
+        digits[2] = naf(a);
+        digits[3] = naf(b);
+        negated[2] = signs[0];
+        negated[3] = signs[1];
+        Table[] tables = {G_TABLES[0], G_TABLES[0], table, table};
+
+        Scratch scratch = new Scratch();
+        Point r = Point.infinity();
+        Point sum = new Point();
+        for (int i = digits[0].length - 1; i >= 0; i--) {
+            if (!r.isInfinity()) {
+                doublePoint(r, r, scratch);
+            }
+            for (int j = 0; j < 4; j++) {
+                int digit = digits[j][i];
+                if (digit == 0) continue;
+                int index = Math.abs(digit) >>> 1;
+                int[] x = (j & 1) == 0 ? tables[j].x[index] : tables[j].betaX[index];
+                int[] y = tables[j].y[index];
+                if ((digit < 0) != (negated[j] != 0)) {
+                    Field.negate(y, 1, scratch.negY);
+                    y = scratch.negY;
+                }
+                if (r.isInfinity()) {
+                    r.setAffine(x, y);
+                } else {
+                    addAffine(r, x, y, sum, scratch);
+                    Point t = r;
+                    r = sum;
+                    sum = t;
+                }
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @param k at most 128 bits, as the halves of a split scalar are
+     * @return the width 6 NAF of k, least significant digit first: each digit is either zero or odd and in
+     * [-31, 31], and there is at most one digit that isn't zero in any six consecutive ones
+     */
+    private static int[] naf(int[] k) {
+        int[] n = k.clone();
+        int[] digits = new int[130];
+        for (int i = 0; i < digits.length; i++) {
+            if ((n[0] & 1) != 0) {
+                int digit = n[0] & 63;
+                if (digit > 32) {
+                    digit -= 64;
+                }
+                digits[i] = digit;
+                // Subtracting the digit clears the lowest six bits, for negative ones it carries into the next
+                long c = (n[0] & M) - digit;
+                n[0] = (int) c;
+                c >>= 32;
+                for (int j = 1; j < Scalar.SIZE; j++) {
+                    c += n[j] & M;
+                    n[j] = (int) c;
+                    c >>= 32;
+                }
+            }
+            for (int j = 0; j < Scalar.SIZE - 1; j++) {
+                n[j] = (n[j] >>> 1) | (n[j + 1] << 31);
+            }
+            n[Scalar.SIZE - 1] >>>= 1;
+        }
+        return digits;
+    }
+
+    /**
+     * Adds digit * P (or digit * lambda * P) from the table to r if mask is -1, negated if negate is -1. The addition
+     * is always done, the result is selected afterwards.
+     */
+    private static void addDigit(Point r, Table table, boolean lambda, int digit, int negate, int mask,
+                                 Scratch scratch) {
+        int[] x = scratch.x;
+        int[] y = scratch.y;
+        table.lookup(digit, lambda, negate, x, y, scratch.negY);
+
+        Point sum = scratch.sum;
+        addAffine(r, x, y, sum, scratch);
+        // If r is the point at infinity, the sum is the table entry itself
+        int infinity = Field.zeroMask(r.z);
+        Field.select(infinity, x, sum.x);
+        Field.select(infinity, y, sum.y);
+        Field.select(infinity, ONE, sum.z);
+        r.select(mask, sum);
+    }
+
+    private static int equalMask(int a, int b) {
+        int v = a ^ b;
+        return ~((v | -v) >> 31);
+    }
+
+    /**
+     * Doubling for a = 0 with 3 multiplications and 4 squarings, as in libsecp256k1: with L = 3/2 * X1^2 instead
+     * of 3 * X1^2, the result is the same point with Z3 = Y1 * Z1 instead of 2 * Y1 * Z1, and no other small
+     * multiples are needed. The comments give the magnitude of each value. Doubling the point at infinity results
+     * in Z = 0 again. r may be the same object as p.
+     */
+    static void doublePoint(Point p, Point r, Scratch scratch) {
+        int[] s = scratch.doubling[0];
+        int[] l = scratch.doubling[1];
+        int[] t = scratch.doubling[2];
+        // Z3 = Y1 * Z1 (1), first, as r may be p
+        Field.multiply(p.z, p.y, r.z);
+        // S = Y1^2 (1)
+        Field.square(p.y, s);
+        // L = 3/2 * X1^2 (2)
+        Field.square(p.x, l);
+        Field.multiply(l, 3, l);
+        Field.half(l, l);
+        // T = -X1 * S (1)
+        Field.negate(s, 1, t);
+        Field.multiply(t, p.x, t);
+        // X3 = L^2 + 2 * T (3)
+        Field.square(l, r.x);
+        Field.add(r.x, t, r.x);
+        Field.add(r.x, t, r.x);
+        // Y3 = -(L * (X3 + T) + S^2) (3)
+        Field.square(s, s);
+        Field.add(t, r.x, t);
+        Field.multiply(t, l, r.y);
+        Field.add(r.y, s, r.y);
+        Field.negate(r.y, 2, r.y);
+    }
+
+    /**
+     * Adds the affine point (x2, y2) to p, see "madd-2004-hmv" in the Explicit-Formulas Database. x2 must have a
+     * magnitude of 1 and y2 of at most 2, as the table entries have. r must not be the same object as p.
+     */
+    static void addAffine(Point p, int[] x2, int[] y2, Point r, Scratch scratch) {
+        int[] z1z1 = scratch.addition[0];
+        int[] u2 = scratch.addition[1];
+        int[] s2 = scratch.addition[2];
+        int[] h = scratch.addition[3];
+        int[] rr = scratch.addition[4];
+        Field.square(p.z, z1z1);
+        Field.multiply(x2, z1z1, u2);
+        Field.multiply(y2, p.z, s2);
+        Field.multiply(s2, z1z1, s2);
+        // H = U2 - X1 (5), R = S2 - Y1 (5)
+        Field.negate(p.x, 3, h);
+        Field.add(h, u2, h);
+        Field.negate(p.y, 3, rr);
+        Field.add(rr, s2, rr);
+        if (Field.isZero(h)) {
+            // The points have the same x coordinate, so they are either equal or each other's negative
+            if (Field.isZero(rr)) {
+                scratch.point.setAffine(x2, y2);
+                doublePoint(scratch.point, r, scratch);
+            } else {
+                r.setInfinity();
+            }
+            return;
+        }
+        // Z3 = Z1 * H (1)
+        Field.multiply(p.z, h, r.z);
+        finishAddition(p.x, p.y, h, rr, r, scratch);
+    }
+
+    /**
+     * Adds two points in Jacobian coordinates, see "add-1998-cmo-2" in the Explicit-Formulas Database. r must not
+     * be the same object as p or q. This is only used with public points.
+     */
+    static void add(Point p, Point q, Point r) {
+        add(p, q, r, new Scratch());
+    }
+
+    private static void add(Point p, Point q, Point r, Scratch scratch) {
+        if (p.isInfinity()) {
+            r.set(q);
+            return;
+        }
+        if (q.isInfinity()) {
+            r.set(p);
+            return;
+        }
+        int[] z1z1 = scratch.addition[0];
+        int[] z2z2 = scratch.addition[1];
+        int[] u1 = scratch.addition[2];
+        int[] u2 = scratch.addition[3];
+        int[] s1 = scratch.addition[4];
+        int[] s2 = scratch.addition[5];
+        int[] h = scratch.addition[6];
+        int[] rr = scratch.addition[7];
+        Field.square(p.z, z1z1);
+        Field.square(q.z, z2z2);
+        Field.multiply(p.x, z2z2, u1);
+        Field.multiply(q.x, z1z1, u2);
+        Field.multiply(p.y, q.z, s1);
+        Field.multiply(s1, z2z2, s1);
+        Field.multiply(q.y, p.z, s2);
+        Field.multiply(s2, z1z1, s2);
+        // H = U2 - U1 (3), R = S2 - S1 (3)
+        Field.negate(u1, 1, h);
+        Field.add(h, u2, h);
+        Field.negate(s1, 1, rr);
+        Field.add(rr, s2, rr);
+        if (Field.isZero(h)) {
+            if (Field.isZero(rr)) {
+                doublePoint(p, r, scratch);
+            } else {
+                r.setInfinity();
+            }
+            return;
+        }
+        // Z3 = Z1 * Z2 * H (1)
+        Field.multiply(p.z, q.z, r.z);
+        Field.multiply(r.z, h, r.z);
+        finishAddition(u1, s1, h, rr, r, scratch);
+    }
+
+    /**
+     * The part both additions share: X3 = R^2 - H^3 - 2 * U1 * H^2 (1) and Y3 = R * (U1 * H^2 - X3) - S1 * H^3 (3),
+     * where U1 and S1 are X1 and Y1 for the mixed addition.
+     *
+     * @param u1 magnitude at most 3
+     * @param s1 magnitude at most 3
+     * @param h  magnitude at most 8
+     * @param rr magnitude at most 8
+     */
+    private static void finishAddition(int[] u1, int[] s1, int[] h, int[] rr, Point r, Scratch scratch) {
+        int[] hh = scratch.addition[8];
+        int[] hhh = scratch.addition[9];
+        int[] v = scratch.addition[10];
+        int[] t = scratch.addition[11];
+        Field.square(h, hh);
+        Field.multiply(h, hh, hhh);
+        Field.multiply(u1, hh, v);
+
+        // X3 = R^2 - HHH - 2 * V (7), weakly normalized so it can be negated once more
+        Field.square(rr, r.x);
+        Field.negate(hhh, 1, t);
+        Field.add(r.x, t, r.x);
+        Field.negate(v, 1, t);
+        Field.add(r.x, t, r.x);
+        Field.add(r.x, t, r.x);
+        Field.normalizeWeak(r.x);
+        // Y3 = R * (V - X3) - S1 * HHH (3)
+        Field.negate(r.x, 1, t);
+        Field.add(t, v, t);
+        Field.multiply(rr, t, r.y);
+        Field.multiply(s1, hhh, t);
+        Field.negate(t, 1, t);
+        Field.add(r.y, t, r.y);
+    }
+
+    /**
+     * Converts the points to affine coordinates with a single inversion, using Montgomery's trick. None of them
+     * may be the point at infinity.
+     */
+    static void normalize(Point[] points) {
+        int[][] products = new int[points.length][];
+        products[0] = points[0].z.clone();
+        for (int i = 1; i < points.length; i++) {
+            products[i] = Field.create();
+            Field.multiply(products[i - 1], points[i].z, products[i]);
+        }
+        int[] inverse = Field.create();
+        Field.invert(products[points.length - 1], inverse);
+        int[] zInv = Field.create();
+        for (int i = points.length - 1; i >= 0; i--) {
+            if (i > 0) {
+                Field.multiply(inverse, products[i - 1], zInv);
+                Field.multiply(inverse, points[i].z, inverse);
+            } else {
+                Field.copy(inverse, zInv);
+            }
+            toAffine(points[i], zInv);
+        }
+    }
+
+    static void normalize(Point p) {
+        int[] zInv = Field.create();
+        Field.invert(p.z, zInv);
+        toAffine(p, zInv);
+    }
+
+    private static void toAffine(Point p, int[] zInv) {
+        int[] zInv2 = Field.create();
+        Field.square(zInv, zInv2);
+        Field.multiply(p.x, zInv2, p.x);
+        Field.multiply(zInv2, zInv, zInv2);
+        Field.multiply(p.y, zInv2, p.y);
+        p.z[0] = 1;
+        for (int i = 1; i < Field.SIZE; i++) {
+            p.z[i] = 0;
+        }
+    }
+
+    /**
+     * @param encoded an uncompressed point, i.e. 0x04 followed by x and y
+     * @throws IllegalArgumentException if it isn't a point on the curve
+     */
+    static Point decode(byte[] encoded) {
+        if (encoded.length != 65 || encoded[0] != 4) {
+            throw new IllegalArgumentException("Not an uncompressed point");
+        }
+        return createPoint(Field.fromBytes(encoded, 1, 32), Field.fromBytes(encoded, 33, 32));
+    }
+
+    /**
+     * @throws IllegalArgumentException if x or y are null, i.e. not valid field elements, or if (x, y) isn't a
+     *                                  point on the curve
+     */
+    static Point createPoint(int[] x, int[] y) {
+        if (x == null || y == null) {
+            throw new IllegalArgumentException("Coordinate out of range");
+        }
+        int[] left = Field.create();
+        Field.square(y, left);
+        int[] right = Field.create();
+        Field.square(x, right);
+        Field.multiply(right, x, right);
+        Field.add(right, B, right);
+        if (!Field.equal(left, right)) {
+            throw new IllegalArgumentException("Point is not on the curve");
+        }
+        return Point.affine(x, y);
+    }
+
+    /**
+     * @return the uncompressed encoding, or a single zero byte for the point at infinity
+     */
+    static byte[] encode(Point p) {
+        if (p.isInfinity()) {
+            return new byte[1];
+        }
+        normalize(p);
+        byte[] result = new byte[65];
+        result[0] = 4;
+        Field.toBytes(p.x, result, 1);
+        Field.toBytes(p.y, result, 33);
+        return result;
+    }
+}
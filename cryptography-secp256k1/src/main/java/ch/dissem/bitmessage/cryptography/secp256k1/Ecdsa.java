@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.cryptography.secp256k1;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * ECDSA signatures in the DER encoding used by Bitmessage, i.e. SEQUENCE { INTEGER r, INTEGER s }.
+ */
+final class Ecdsa {
+    private static final int INDEFINITE = -1;
+    private static final int INVALID = -2;
+
+    private Ecdsa() {
+    }
+
+    /**
+     * @param e     the hash of the signed data, at most 256 bits
+     * @param d     the private key, reduced modulo n
+     * @param nonce a random number in [1, n), which must never be used twice
+     * @return the signature, or null if the nonce happens to result in r or s being zero and another one must be
+     * tried
+     */
+    static byte[] sign(int[] e, int[] d, int[] nonce) {
+        Curve.Point point = Curve.multiplyGenerator(nonce);
+        Curve.normalize(point);
+        byte[] x = new byte[32];
+        Field.toBytes(point.x, x, 0);
+        int[] r = Scalar.fromBytes(x, 0, 32);
+        if (Scalar.isZero(r)) return null;
+
+        // s = (e + r * d) / nonce
+        int[] s = Scalar.create();
+        Scalar.multiply(r, d, s);
+        Scalar.add(s, e, s);
+        int[] inverse = Scalar.create();
+        Scalar.invert(nonce, inverse);
+        Scalar.multiply(s, inverse, s);
+        if (Scalar.isZero(s)) return null;
+        return encode(Scalar.toBytes(r), Scalar.toBytes(s));
+    }
+
+    /**
+     * @param e     the hash of the signed data, at most 256 bits
+     * @param table created for the public key
+     */
+    static boolean verify(int[] e, byte[] signature, Curve.Table table) {
+        int[][] rs = decode(signature);
+        if (rs == null) return false;
+        int[] r = rs[0];
+        int[] w = Scalar.create();
+        Scalar.invertVariableTime(rs[1], w);
+        int[] u1 = Scalar.create();
+        Scalar.multiply(e, w, u1);
+        int[] u2 = Scalar.create();
+        Scalar.multiply(r, w, u2);
+
+        Curve.Point point = Curve.multiplyAndAdd(u1, table, u2);
+        if (point.isInfinity()) return false;
+        return hasX(point, r);
+    }
+
+    /**
+     * Checks if the x coordinate of the point, reduced modulo n, is r. As n < p, the coordinate might be r or
+     * r + n. Instead of normalizing the point, which needs an inversion, they are multiplied with Z^2 and compared
+     * to X.
+     */
+    private static boolean hasX(Curve.Point point, int[] r) {
+        int[] zz = Field.create();
+        Field.square(point.z, zz);
+        int[] x = Field.create();
+        Field.multiply(Field.fromLimbs(r), zz, x);
+        if (Field.equal(x, point.x)) return true;
+
+        int[] rn = Scalar.create();
+        long c = 0;
+        for (int i = 0; i < Scalar.SIZE; i++) {
+            c += (r[i] & 0xFFFFFFFFL) + (Scalar.N[i] & 0xFFFFFFFFL);
+            rn[i] = (int) c;
+            c >>>= 32;
+        }
+        if (c != 0) return false;
+        int[] candidate = Field.fromLimbs(rn);
+        if (candidate == null) return false;
+        Field.multiply(candidate, zz, x);
+        return Field.equal(x, point.x);
+    }
+
+    static byte[] encode(byte[] r, byte[] s) {
+        ByteArrayOutputStream integers = new ByteArrayOutputStream(70);
+        writeInteger(integers, r);
+        writeInteger(integers, s);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(72);
+        out.write(0x30);
+        out.write(integers.size());
+        byte[] content = integers.toByteArray();
+        out.write(content, 0, content.length);
+        return out.toByteArray();
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, byte[] value) {
+        int offset = 0;
+        while (offset < value.length - 1 && value[offset] == 0) {
+            offset++;
+        }
+        // The integer is signed, so a leading zero is needed if the highest bit is set
+        boolean pad = value[offset] < 0;
+        out.write(0x02);
+        out.write(value.length - offset + (pad ? 1 : 0));
+        if (pad) out.write(0);
+        out.write(value, offset, value.length - offset);
+    }
+
+    /**
+     * Decodes signatures as leniently as Bouncycastle does, so a signature is valid with every Cryptography
+     * implementation or with none: integers may have superfluous leading zeros, lengths may be in long form, the
+     * sequence may have indefinite length, and anything after s, within the sequence or after it, is ignored.
+     * Negative integers are rejected.
+     *
+     * @return r and s, or null if the signature isn't well formed or they aren't in [1, n)
+     */
+    static int[][] decode(byte[] signature) {
+        if (signature.length < 2 || signature[0] != 0x30) return null;
+        int[] offset = {1};
+        int length = readLength(signature, offset);
+        int end;
+        if (length == INDEFINITE) {
+            end = signature.length;
+        } else if (length < 0 || length > signature.length - offset[0]) {
+            return null;
+        } else {
+            end = offset[0] + length;
+        }
+        int[][] result = new int[2][];
+        for (int i = 0; i < 2; i++) {
+            if (offset[0] >= end || signature[offset[0]] != 0x02) return null;
+            offset[0]++;
+            length = readLength(signature, offset);
+            if (length < 1 || length > end - offset[0]) return null;
+            if (signature[offset[0]] < 0) return null;
+            result[i] = Scalar.fromBytesStrict(signature, offset[0], length);
+            if (result[i] == null) return null;
+            offset[0] += length;
+        }
+        return result;
+    }
+
+    /**
+     * Reads a DER length in short or long form and advances the offset past it.
+     *
+     * @return the length, {@link #INDEFINITE}, or {@link #INVALID} if it's truncated or doesn't fit into an int
+     */
+    private static int readLength(byte[] data, int[] offset) {
+        if (offset[0] >= data.length) return INVALID;
+        int first = data[offset[0]++] & 0xFF;
+        if (first < 0x80) return first;
+        if (first == 0x80) return INDEFINITE;
+        int bytes = first & 0x7F;
+        if (bytes > 4 || bytes > data.length - offset[0]) return INVALID;
+        long length = 0;
+        for (int i = 0; i < bytes; i++) {
+            length = (length << 8) | (data[offset[0]++] & 0xFF);
+        }
+        return length > Integer.MAX_VALUE ? INVALID : (int) length;
+    }
+}
@@ -0,0 +1,711 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.cryptography.secp256k1;
+
+/**
+ * Arithmetic modulo the secp256k1 prime p = 2^256 - 2^32 - 977.
+ * <p>
+ * Elements are ten limbs of 26 bits (22 for the topmost one), least significant first, stored in ints. The product
+ * of two limbs fits into 60 bits, so the ten products of a column can be summed up in a long without handling any
+ * carries in between. Java has no 64 x 64 bit multiplication with a 128 bit result, so this is faster than both 32
+ * and 64 bit limbs.
+ * </p>
+ * <p>
+ * Additions, negations and multiplications with small factors work on the limbs only and don't reduce the result.
+ * How far an element may be from being reduced is its magnitude m: each limb is at most 2 * m * (2^26 - 1), the
+ * topmost one 2 * m * (2^22 - 1). Adding elements adds their magnitudes. The results of {@link #multiply(int[],
+ * int[], int[])} and {@link #square(int[], int[])} have magnitude 1, and their arguments must not exceed 8.
+ * Elements that aren't fully reduced must be normalized before they're compared or encoded, which {@link
+ * #isZero(int[])}, {@link #equal(int[], int[])} and {@link #toBytes(int[], byte[], int)} do themselves.
+ * </p>
+ * <p>
+ * None of the operations branch on or index memory by the values, so their timing doesn't depend on secret data.
+ * </p>
+ */
+final class Field {
+    static final int SIZE = 10;
+    private static final int M26 = 0x3FFFFFF;
+    private static final int M22 = 0x3FFFFF;
+    private static final long LM26 = 0x3FFFFFFL;
+    private static final int M30 = 0x3FFFFFFF;
+    /**
+     * 2^260 is congruent to 2^36 + 0x3D10 modulo p, and 2^36 is bit 10 of the limb after the lowest one.
+     */
+    private static final long R0 = 0x3D10L;
+    /**
+     * The limbs of p.
+     */
+    private static final int P0 = 0x3FFFC2F;
+    private static final int P1 = 0x3FFFFBF;
+    /**
+     * p in signed 30 bit limbs, as -977 - 4 * 2^30 + 2^16 * 2^240, and its inverse modulo 2^30.
+     */
+    private static final int[] P30 = {-0x3D1, -4, 0, 0, 0, 0, 0, 0, 0x10000};
+    private static final int P_INV30 = 0x2DDACACF;
+    private static final int[] P = {
+            0xFFFFFC2F, 0xFFFFFFFE, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF
+    };
+
+    private Field() {
+    }
+
+    static int[] create() {
+        return new int[SIZE];
+    }
+
+    static int[] fromInt(int value) {
+        int[] r = create();
+        r[0] = value;
+        return r;
+    }
+
+    /**
+     * @param bytes big endian, leading zeros are allowed
+     * @return the normalized element, or null if the number isn't smaller than p
+     */
+    static int[] fromBytes(byte[] bytes, int offset, int length) {
+        int[] limbs = new int[8];
+        if (!Limbs.fromBytes(bytes, offset, length, limbs)) return null;
+        return fromLimbs(limbs);
+    }
+
+    /**
+     * @param limbs a number in eight 32 bit limbs, least significant first
+     * @return the normalized element, or null if the number isn't smaller than p
+     */
+    static int[] fromLimbs(int[] limbs) {
+        if (!Limbs.lessThan(limbs, P)) return null;
+        int[] r = create();
+        for (int i = 0; i < SIZE; i++) {
+            int bit = 26 * i;
+            long window = limbs[bit >>> 5] & 0xFFFFFFFFL;
+            if ((bit >>> 5) + 1 < limbs.length) {
+                window |= (limbs[(bit >>> 5) + 1] & 0xFFFFFFFFL) << 32;
+            }
+            r[i] = (int) (window >>> (bit & 31)) & M26;
+        }
+        return r;
+    }
+
+    /**
+     * Writes the 32 bytes of the fully reduced element, big endian. a itself isn't changed.
+     */
+    static void toBytes(int[] a, byte[] out, int offset) {
+        int[] n = a.clone();
+        normalize(n);
+        int[] limbs = new int[8];
+        for (int i = 0; i < SIZE; i++) {
+            int bit = 26 * i;
+            limbs[bit >>> 5] |= n[i] << (bit & 31);
+            if ((bit & 31) > 6 && (bit >>> 5) + 1 < limbs.length) {
+                limbs[(bit >>> 5) + 1] |= n[i] >>> (32 - (bit & 31));
+            }
+        }
+        Limbs.toBytes(limbs, out, offset);
+    }
+
+    static void copy(int[] a, int[] r) {
+        System.arraycopy(a, 0, r, 0, SIZE);
+    }
+
+    /**
+     * @param a magnitude at most 31
+     */
+    static boolean isZero(int[] a) {
+        return zeroMask(a) != 0;
+    }
+
+    /**
+     * As a is below 2^256 + 2^23 after a single carry pass, it's congruent to zero if and only if it is either
+     * zero or p then.
+     *
+     * @param a magnitude at most 31
+     * @return -1 if a is congruent to zero, 0 otherwise
+     */
+    static int zeroMask(int[] a) {
+        int t0 = a[0], t1 = a[1], t2 = a[2], t3 = a[3], t4 = a[4];
+        int t5 = a[5], t6 = a[6], t7 = a[7], t8 = a[8], t9 = a[9];
+        // Bits of zero, and the bits in which the number differs from p
+        int z0, z1;
+
+        int x = t9 >>> 22;
+        t9 &= M22;
+        t0 += x * 0x3D1;
+        t1 += x << 6;
+        t1 += t0 >>> 26;
+        t0 &= M26;
+        z0 = t0;
+        z1 = t0 ^ 0x3D0;
+        t2 += t1 >>> 26;
+        t1 &= M26;
+        z0 |= t1;
+        z1 &= t1 ^ 0x40;
+        t3 += t2 >>> 26;
+        t2 &= M26;
+        z0 |= t2;
+        z1 &= t2;
+        t4 += t3 >>> 26;
+        t3 &= M26;
+        z0 |= t3;
+        z1 &= t3;
+        t5 += t4 >>> 26;
+        t4 &= M26;
+        z0 |= t4;
+        z1 &= t4;
+        t6 += t5 >>> 26;
+        t5 &= M26;
+        z0 |= t5;
+        z1 &= t5;
+        t7 += t6 >>> 26;
+        t6 &= M26;
+        z0 |= t6;
+        z1 &= t6;
+        t8 += t7 >>> 26;
+        t7 &= M26;
+        z0 |= t7;
+        z1 &= t7;
+        t9 += t8 >>> 26;
+        t8 &= M26;
+        z0 |= t8;
+        z1 &= t8;
+        z0 |= t9;
+        z1 &= t9 ^ 0x3C00000;
+        return equalMask(z0, 0) | equalMask(z1, M26);
+    }
+
+    /**
+     * @param a magnitude at most 31
+     * @param b magnitude at most 31
+     */
+    static boolean equal(int[] a, int[] b) {
+        int[] x = a.clone();
+        int[] y = b.clone();
+        normalize(x);
+        normalize(y);
+        int difference = 0;
+        for (int i = 0; i < SIZE; i++) {
+            difference |= x[i] ^ y[i];
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Sets r to a if mask is -1, and leaves it unchanged if mask is 0.
+     */
+    static void select(int mask, int[] a, int[] r) {
+        for (int i = 0; i < SIZE; i++) {
+            r[i] ^= (r[i] ^ a[i]) & mask;
+        }
+    }
+
+    /**
+     * r = a + b, with the sum of their magnitudes.
+     */
+    static void add(int[] a, int[] b, int[] r) {
+        for (int i = 0; i < SIZE; i++) {
+            r[i] = a[i] + b[i];
+        }
+    }
+
+    /**
+     * r = -a, calculated as 2 * (m + 1) * p - a, so the result has magnitude m + 1.
+     *
+     * @param m the magnitude of a, at most 31
+     */
+    static void negate(int[] a, int m, int[] r) {
+        int f = 2 * (m + 1);
+        r[0] = P0 * f - a[0];
+        r[1] = P1 * f - a[1];
+        for (int i = 2; i < SIZE - 1; i++) {
+            r[i] = M26 * f - a[i];
+        }
+        r[SIZE - 1] = M22 * f - a[SIZE - 1];
+    }
+
+    /**
+     * Multiplies the limbs with a small factor, the magnitude is multiplied by it as well.
+     */
+    static void multiply(int[] a, int factor, int[] r) {
+        for (int i = 0; i < SIZE; i++) {
+            r[i] = a[i] * factor;
+        }
+    }
+
+    /**
+     * r = a / 2. If a is odd, p is added first, which makes it even. The magnitude m becomes m / 2 + 1.
+     *
+     * @param a magnitude at most 31
+     */
+    static void half(int[] a, int[] r) {
+        int mask = -(a[0] & 1) >>> 6;
+        r[0] = a[0] + (P0 & mask);
+        r[1] = a[1] + (P1 & mask);
+        for (int i = 2; i < SIZE - 1; i++) {
+            r[i] = a[i] + mask;
+        }
+        r[SIZE - 1] = a[SIZE - 1] + (mask >>> 4);
+        for (int i = 0; i < SIZE - 1; i++) {
+            r[i] = (r[i] >>> 1) + ((r[i + 1] & 1) << 25);
+        }
+        r[SIZE - 1] >>>= 1;
+    }
+
+    /**
+     * r = a * b, with magnitude 1. The columns of the product are summed up in two accumulators, one for the lower
+     * limbs and one for the ones above 2^260, which are folded into the lower ones as soon as they're complete, as
+     * libsecp256k1 does. This needs a lot fewer registers than the whole product would.
+     *
+     * @param a magnitude at most 8
+     * @param b magnitude at most 8
+     */
+    static void multiply(int[] a, int[] b, int[] r) {
+        long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], a4 = a[4];
+        long a5 = a[5], a6 = a[6], a7 = a[7], a8 = a[8], a9 = a[9];
+        long b0 = b[0], b1 = b[1], b2 = b[2], b3 = b[3], b4 = b[4];
+        long b5 = b[5], b6 = b[6], b7 = b[7], b8 = b[8], b9 = b[9];
+        // Column 9 first, so the columns above it can be folded into the lower ones as soon as they're complete
+        long d = a0 * b9 + a1 * b8 + a2 * b7 + a3 * b6 + a4 * b5 + a5 * b4 + a6 * b3 + a7 * b2 + a8 * b1 + a9 * b0;
+        long t9 = d & LM26;
+        d >>>= 26;
+        long c = a0 * b0;
+        d += a1 * b9 + a2 * b8 + a3 * b7 + a4 * b6 + a5 * b5 + a6 * b4 + a7 * b3 + a8 * b2 + a9 * b1;
+        long u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t0 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b1 + a1 * b0;
+        d += a2 * b9 + a3 * b8 + a4 * b7 + a5 * b6 + a6 * b5 + a7 * b4 + a8 * b3 + a9 * b2;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t1 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b2 + a1 * b1 + a2 * b0;
+        d += a3 * b9 + a4 * b8 + a5 * b7 + a6 * b6 + a7 * b5 + a8 * b4 + a9 * b3;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t2 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b3 + a1 * b2 + a2 * b1 + a3 * b0;
+        d += a4 * b9 + a5 * b8 + a6 * b7 + a7 * b6 + a8 * b5 + a9 * b4;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t3 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b4 + a1 * b3 + a2 * b2 + a3 * b1 + a4 * b0;
+        d += a5 * b9 + a6 * b8 + a7 * b7 + a8 * b6 + a9 * b5;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t4 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b5 + a1 * b4 + a2 * b3 + a3 * b2 + a4 * b1 + a5 * b0;
+        d += a6 * b9 + a7 * b8 + a8 * b7 + a9 * b6;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t5 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b6 + a1 * b5 + a2 * b4 + a3 * b3 + a4 * b2 + a5 * b1 + a6 * b0;
+        d += a7 * b9 + a8 * b8 + a9 * b7;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t6 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b7 + a1 * b6 + a2 * b5 + a3 * b4 + a4 * b3 + a5 * b2 + a6 * b1 + a7 * b0;
+        d += a8 * b9 + a9 * b8;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t7 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b8 + a1 * b7 + a2 * b6 + a3 * b5 + a4 * b4 + a5 * b3 + a6 * b2 + a7 * b1 + a8 * b0;
+        d += a9 * b9;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t8 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        // d is what's left of column 19, and the result above 2^256 is folded in with 2^256 = 2^32 + 977
+        c += d * R0 + t9;
+        t9 = c & M22;
+        c >>>= 22;
+        c += d << 14;
+        d = c * 0x3D1L + t0;
+        r[0] = (int) (d & LM26);
+        d >>>= 26;
+        d += (c << 6) + t1;
+        r[1] = (int) (d & LM26);
+        d >>>= 26;
+        r[2] = (int) (d + t2);
+        r[3] = (int) t3;
+        r[4] = (int) t4;
+        r[5] = (int) t5;
+        r[6] = (int) t6;
+        r[7] = (int) t7;
+        r[8] = (int) t8;
+        r[9] = (int) t9;
+    }
+
+    /**
+     * r = a^2, with magnitude 1. The products of different limbs appear twice, so they're only calculated once,
+     * with one of the limbs doubled.
+     *
+     * @param a magnitude at most 8
+     */
+    static void square(int[] a, int[] r) {
+        long a0 = a[0], a1 = a[1], a2 = a[2], a3 = a[3], a4 = a[4];
+        long a5 = a[5], a6 = a[6], a7 = a[7], a8 = a[8], a9 = a[9];
+        long b1 = 2 * a1, b2 = 2 * a2, b3 = 2 * a3, b4 = 2 * a4;
+        long b5 = 2 * a5, b6 = 2 * a6, b7 = 2 * a7, b8 = 2 * a8, b9 = 2 * a9;
+        // Column 9 first, so the columns above it can be folded into the lower ones as soon as they're complete
+        long d = a0 * b9 + a1 * b8 + a2 * b7 + a3 * b6 + a4 * b5;
+        long t9 = d & LM26;
+        d >>>= 26;
+        long c = a0 * a0;
+        d += a1 * b9 + a2 * b8 + a3 * b7 + a4 * b6 + a5 * a5;
+        long u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t0 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b1;
+        d += a2 * b9 + a3 * b8 + a4 * b7 + a5 * b6;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t1 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b2 + a1 * a1;
+        d += a3 * b9 + a4 * b8 + a5 * b7 + a6 * a6;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t2 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b3 + a1 * b2;
+        d += a4 * b9 + a5 * b8 + a6 * b7;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t3 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b4 + a1 * b3 + a2 * a2;
+        d += a5 * b9 + a6 * b8 + a7 * a7;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t4 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b5 + a1 * b4 + a2 * b3;
+        d += a6 * b9 + a7 * b8;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t5 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b6 + a1 * b5 + a2 * b4 + a3 * a3;
+        d += a7 * b9 + a8 * a8;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t6 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b7 + a1 * b6 + a2 * b5 + a3 * b4;
+        d += a8 * b9;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t7 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        c += a0 * b8 + a1 * b7 + a2 * b6 + a3 * b5 + a4 * a4;
+        d += a9 * a9;
+        u = d & LM26;
+        d >>>= 26;
+        c += u * R0;
+        long t8 = c & LM26;
+        c >>>= 26;
+        c += u << 10;
+        // d is what's left of column 19, and the result above 2^256 is folded in with 2^256 = 2^32 + 977
+        c += d * R0 + t9;
+        t9 = c & M22;
+        c >>>= 22;
+        c += d << 14;
+        d = c * 0x3D1L + t0;
+        r[0] = (int) (d & LM26);
+        d >>>= 26;
+        d += (c << 6) + t1;
+        r[1] = (int) (d & LM26);
+        d >>>= 26;
+        r[2] = (int) (d + t2);
+        r[3] = (int) t3;
+        r[4] = (int) t4;
+        r[5] = (int) t5;
+        r[6] = (int) t6;
+        r[7] = (int) t7;
+        r[8] = (int) t8;
+        r[9] = (int) t9;
+    }
+
+    /**
+     * Calculates the inverse with the constant time variant of the "safegcd" algorithm by Bernstein and Yang, as
+     * libsecp256k1 implements it: 20 rounds of 30 division steps each, which is more than the 590 needed for 256
+     * bit numbers. The steps work on the lowest bits only, and their effect is then applied to the whole numbers,
+     * which are kept in nine signed limbs of 30 bits. The inverse of 0 is 0.
+     *
+     * @param a magnitude at most 31
+     */
+    static void invert(int[] a, int[] r) {
+        int[] d = new int[9];
+        int[] e = new int[9];
+        e[0] = 1;
+        int[] f = P30.clone();
+        int[] g = toSigned30(a);
+        int[] t = new int[4];
+        // zeta is -(delta + 1/2), delta starts at 1/2
+        int zeta = -1;
+        for (int i = 0; i < 20; i++) {
+            zeta = divsteps(zeta, f[0], g[0], t);
+            updateDE(d, e, t);
+            updateFG(f, g, t);
+        }
+        // g is zero now, and f is 1 or -1, so d is the inverse or its negative
+        normalize30(d, f[8]);
+        fromSigned30(d, r);
+    }
+
+    /**
+     * Does 30 division steps on the lowest bits of f and g, and stores how they transform f and g, times 2^30, in
+     * t as u, v, q, r: f' = (u * f + v * g) / 2^30 and g' = (q * f + r * g) / 2^30.
+     *
+     * @return the new zeta
+     */
+    private static int divsteps(int zeta, int f, int g, int[] t) {
+        int u = 1, v = 0, q = 0, r = 1;
+        for (int i = 0; i < 30; i++) {
+            // c1 is -1 if zeta is negative, c2 is -1 if g is odd
+            int c1 = zeta >> 31;
+            int c2 = -(g & 1);
+            int x = (f ^ c1) - c1;
+            int y = (u ^ c1) - c1;
+            int z = (v ^ c1) - c1;
+            g += x & c2;
+            q += y & c2;
+            r += z & c2;
+            c1 &= c2;
+            zeta = (zeta ^ c1) - 1;
+            f += g & c1;
+            u += q & c1;
+            v += r & c1;
+            g >>>= 1;
+            u <<= 1;
+            v <<= 1;
+        }
+        t[0] = u;
+        t[1] = v;
+        t[2] = q;
+        t[3] = r;
+        return zeta;
+    }
+
+    /**
+     * Applies the transformation to d and e modulo p. As it divides by 2^30, a multiple of p is added to each of
+     * them first, so their lowest limb becomes zero.
+     */
+    private static void updateDE(int[] d, int[] e, int[] t) {
+        long u = t[0], v = t[1], q = t[2], r = t[3];
+        int sd = d[8] >> 31;
+        int se = e[8] >> 31;
+        int md = (t[0] & sd) + (t[1] & se);
+        int me = (t[2] & sd) + (t[3] & se);
+        long di = d[0];
+        long ei = e[0];
+        long cd = u * di + v * ei;
+        long ce = q * di + r * ei;
+        md -= (P_INV30 * (int) cd + md) & M30;
+        me -= (P_INV30 * (int) ce + me) & M30;
+        cd += (long) P30[0] * md;
+        ce += (long) P30[0] * me;
+        cd >>= 30;
+        ce >>= 30;
+        for (int i = 1; i < 9; i++) {
+            di = d[i];
+            ei = e[i];
+            cd += u * di + v * ei + (long) P30[i] * md;
+            ce += q * di + r * ei + (long) P30[i] * me;
+            d[i - 1] = (int) cd & M30;
+            cd >>= 30;
+            e[i - 1] = (int) ce & M30;
+            ce >>= 30;
+        }
+        d[8] = (int) cd;
+        e[8] = (int) ce;
+    }
+
+    private static void updateFG(int[] f, int[] g, int[] t) {
+        long u = t[0], v = t[1], q = t[2], r = t[3];
+        long fi = f[0];
+        long gi = g[0];
+        long cf = (u * fi + v * gi) >> 30;
+        long cg = (q * fi + r * gi) >> 30;
+        for (int i = 1; i < 9; i++) {
+            fi = f[i];
+            gi = g[i];
+            cf += u * fi + v * gi;
+            cg += q * fi + r * gi;
+            f[i - 1] = (int) cf & M30;
+            cf >>= 30;
+            g[i - 1] = (int) cg & M30;
+            cg >>= 30;
+        }
+        f[8] = (int) cf;
+        g[8] = (int) cg;
+    }
+
+    /**
+     * Brings d from (-2 * p, p) into [0, p), and negates it if sign is negative.
+     */
+    private static void normalize30(int[] d, int sign) {
+        int add = d[8] >> 31;
+        int negate = sign >> 31;
+        for (int i = 0; i < 9; i++) {
+            d[i] = ((d[i] + (P30[i] & add)) ^ negate) - negate;
+        }
+        carry30(d);
+        add = d[8] >> 31;
+        for (int i = 0; i < 9; i++) {
+            d[i] += P30[i] & add;
+        }
+        carry30(d);
+    }
+
+    private static void carry30(int[] d) {
+        for (int i = 0; i < 8; i++) {
+            d[i + 1] += d[i] >> 30;
+            d[i] &= M30;
+        }
+    }
+
+    private static int[] toSigned30(int[] a) {
+        int[] n = a.clone();
+        normalize(n);
+        int[] r = new int[9];
+        long bits = 0;
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < SIZE; i++) {
+            bits |= (long) n[i] << count;
+            count += 26;
+            if (count >= 30) {
+                r[j++] = (int) bits & M30;
+                bits >>>= 30;
+                count -= 30;
+            }
+        }
+        r[j] = (int) bits;
+        return r;
+    }
+
+    private static void fromSigned30(int[] a, int[] r) {
+        long bits = 0;
+        int count = 0;
+        int j = 0;
+        for (int i = 0; i < 9; i++) {
+            bits |= (long) a[i] << count;
+            count += 30;
+            while (count >= 26 && j < SIZE - 1) {
+                r[j++] = (int) bits & M26;
+                bits >>>= 26;
+                count -= 26;
+            }
+        }
+        r[SIZE - 1] = (int) bits;
+    }
+
+    /**
+     * Reduces a to magnitude 1 with a single carry pass, without making sure it's below p.
+     *
+     * @param a magnitude at most 31
+     */
+    static void normalizeWeak(int[] a) {
+        int x = a[SIZE - 1] >>> 22;
+        a[SIZE - 1] &= M22;
+        a[0] += x * 0x3D1;
+        a[1] += x << 6;
+        for (int i = 0; i < SIZE - 1; i++) {
+            a[i + 1] += a[i] >>> 26;
+            a[i] &= M26;
+        }
+    }
+
+    /**
+     * Reduces a fully, so it's below p and each limb has 26 bits (22 for the topmost one).
+     *
+     * @param a magnitude at most 31
+     */
+    static void normalize(int[] a) {
+        normalizeWeak(a);
+        // a is below 2^256 + 2^23 now, so p needs to be subtracted once at most. This is the case if there's a
+        // carry into bit 256, or if a is at least p, i.e. the upper limbs are all ones and the lower ones plus
+        // 2^256 - p overflow.
+        int upper = a[2];
+        for (int i = 3; i < SIZE - 1; i++) {
+            upper &= a[i];
+        }
+        int x = (a[SIZE - 1] >>> 22)
+                | (equalMask(a[SIZE - 1], M22) & equalMask(upper, M26)
+                & -((M26 - (a[1] + 0x40 + ((a[0] + 0x3D1) >>> 26))) >>> 31));
+        x &= 1;
+        // Adding 2^256 - p and dropping bit 256 is the same as subtracting p
+        a[0] += x * 0x3D1;
+        a[1] += x << 6;
+        for (int i = 0; i < SIZE - 1; i++) {
+            a[i + 1] += a[i] >>> 26;
+            a[i] &= M26;
+        }
+        a[SIZE - 1] &= M22;
+    }
+
+    /**
+     * @return -1 if a == b, 0 otherwise
+     */
+    private static int equalMask(int a, int b) {
+        int v = a ^ b;
+        return ~((v | -v) >> 31);
+    }
+}
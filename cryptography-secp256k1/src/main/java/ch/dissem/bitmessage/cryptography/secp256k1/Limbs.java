@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.cryptography.secp256k1;
+
+/**
+ * Conversions and comparisons of 256 bit numbers stored as eight 32 bit limbs, least significant first.
+ */
+final class Limbs {
+    private static final long M = 0xFFFFFFFFL;
+
+    private Limbs() {
+    }
+
+    /**
+     * @param bytes big endian, may be longer than 32 bytes if the additional ones are leading zeros
+     * @return false if the number doesn't fit into 256 bits
+     */
+    static boolean fromBytes(byte[] bytes, int offset, int length, int[] r) {
+        for (int i = 0; i < r.length; i++) {
+            r[i] = 0;
+        }
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + length - 1 - i] & 0xFF;
+            if (i < 4 * r.length) {
+                r[i >>> 2] |= b << ((i & 3) << 3);
+            } else if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void toBytes(int[] a, byte[] out, int offset) {
+        for (int i = 0; i < 32; i++) {
+            out[offset + 31 - i] = (byte) (a[i >>> 2] >>> ((i & 3) << 3));
+        }
+    }
+
+    /**
+     * Constant time comparison, as it's done by calculating a - b and looking at the borrow.
+     */
+    static boolean lessThan(int[] a, int[] b) {
+        long c = 0;
+        for (int i = 0; i < a.length; i++) {
+            c += (a[i] & M) - (b[i] & M);
+            c >>= 32;
+        }
+        return c != 0;
+    }
+
+    /**
+     * @return the 512 bit product a * b in sixteen limbs
+     */
+    static int[] multiply(int[] a, int[] b) {
+        int[] t = new int[16];
+        multiply(a, b, t);
+        return t;
+    }
+
+    /**
+     * Writes the 512 bit product a * b to the sixteen limbs of t, so no array needs to be allocated.
+     */
+    static void multiply(int[] a, int[] b, int[] t) {
+        for (int i = 0; i < 8; i++) {
+            t[i] = 0;
+        }
+        for (int i = 0; i < 8; i++) {
+            long ai = a[i] & M;
+            long c = 0;
+            for (int j = 0; j < 8; j++) {
+                c += ai * (b[j] & M) + (t[i + j] & M);
+                t[i + j] = (int) c;
+                c >>>= 32;
+            }
+            t[i + 8] = (int) c;
+        }
+    }
+
+    /**
+     * @return the 512 bit square of a in sixteen limbs, which needs about half the multiplications of
+     * {@link #multiply(int[], int[])}
+     */
+    static int[] square(int[] a) {
+        int[] t = new int[16];
+        square(a, t);
+        return t;
+    }
+
+    /**
+     * Writes the 512 bit square of a to the sixteen limbs of t.
+     */
+    static void square(int[] a, int[] t) {
+        for (int i = 0; i < 8; i++) {
+            t[i] = 0;
+        }
+        // The products a[i] * a[j] with i < j appear twice, so they're added once and the sum is doubled
+        for (int i = 0; i < 8; i++) {
+            long ai = a[i] & M;
+            long c = 0;
+            for (int j = i + 1; j < 8; j++) {
+                c += ai * (a[j] & M) + (t[i + j] & M);
+                t[i + j] = (int) c;
+                c >>>= 32;
+            }
+            t[i + 8] = (int) c;
+        }
+        long c = 0;
+        for (int i = 0; i < 8; i++) {
+            long square = (a[i] & M) * (a[i] & M);
+            c += (square & M) + ((t[2 * i] & M) << 1);
+            t[2 * i] = (int) c;
+            c >>>= 32;
+            c += (square >>> 32) + ((t[2 * i + 1] & M) << 1);
+            t[2 * i + 1] = (int) c;
+            c >>>= 32;
+        }
+    }
+
+    /**
+     * @return the bits [4 * index, 4 * index + 4) of a
+     */
+    static int nibble(int[] a, int index) {
+        return (a[index >>> 3] >>> ((index & 7) << 2)) & 0xF;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.cryptography.secp256k1;
+
+/**
+ * Arithmetic modulo the order n of the secp256k1 group, used for private keys and signatures. Like {@link Field},
+ * it works on eight 32 bit limbs and doesn't branch on the values.
+ */
+final class Scalar {
+    static final int SIZE = 8;
+    private static final long M = 0xFFFFFFFFL;
+    static final int[] N = {
+            0xD0364141, 0xBFD25E8C, 0xAF48A03B, 0xBAAEDCE6, 0xFFFFFFFE, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF
+    };
+    /**
+     * 2^256 - n, a 129 bit number.
+     */
+    private static final int[] C = {0x2FC9BEBF, 0x402DA173, 0x50B75FC4, 0x45512319, 0x00000001};
+    private static final int[] N_MINUS_2 = {
+            0xD036413F, 0xBFD25E8C, 0xAF48A03B, 0xBAAEDCE6, 0xFFFFFFFE, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF
+    };
+
+    // Constants for splitting a scalar with the endomorphism, see split()
+    private static final int[] MINUS_LAMBDA = {
+            0xB51283CF, 0xE0CFC810, 0x8EC739C2, 0xA880B9FC, 0x77ED9BA4, 0x5AD9E3FD, 0x3FA3CF1F, 0xAC9C52B3
+    };
+    private static final int[] MINUS_B1 = {
+            0x0ABFE4C3, 0x6F547FA9, 0x010E8828, 0xE4437ED6, 0x00000000, 0x00000000, 0x00000000, 0x00000000
+    };
+    private static final int[] MINUS_B2 = {
+            0x3DB1562C, 0xD765CDA8, 0x0774346D, 0x8A280AC5, 0xFFFFFFFE, 0xFFFFFFFF, 0xFFFFFFFF, 0xFFFFFFFF
+    };
+    private static final int[] G1 = {
+            0x45DBB031, 0xE893209A, 0x71E8CA7F, 0x3DAA8A14, 0x9284EB15, 0xE86C90E4, 0xA7D46BCD, 0x3086D221
+    };
+    private static final int[] G2 = {
+            0x8AC47F71, 0x1571B4AE, 0x9DF506C6, 0x221208AC, 0x0ABFE4C4, 0x6F547FA9, 0x010E8828, 0xE4437ED6
+    };
+
+    private Scalar() {
+    }
+
+    static int[] create() {
+        return new int[SIZE];
+    }
+
+    /**
+     * @param bytes big endian
+     * @return the number reduced modulo n, or null if it doesn't fit into 512 bits
+     */
+    static int[] fromBytes(byte[] bytes, int offset, int length) {
+        int[] r = create();
+        if (length <= 32) {
+            if (!Limbs.fromBytes(bytes, offset, length, r)) return null;
+            reduceOnce(r, 0);
+        } else {
+            // Some private keys are 64 bytes long, Bouncycastle just uses them modulo n
+            int[] t = new int[2 * SIZE];
+            if (!Limbs.fromBytes(bytes, offset, length, t)) return null;
+            reduce(t, r);
+        }
+        return r;
+    }
+
+    /**
+     * @return the number if it's in [1, n), null otherwise
+     */
+    static int[] fromBytesStrict(byte[] bytes, int offset, int length) {
+        int[] r = create();
+        if (!Limbs.fromBytes(bytes, offset, length, r)) return null;
+        if (isZero(r) || !Limbs.lessThan(r, N)) return null;
+        return r;
+    }
+
+    static byte[] toBytes(int[] a) {
+        byte[] result = new byte[32];
+        Limbs.toBytes(a, result, 0);
+        return result;
+    }
+
+    static boolean isZero(int[] a) {
+        int bits = 0;
+        for (int i = 0; i < SIZE; i++) {
+            bits |= a[i];
+        }
+        return bits == 0;
+    }
+
+    static void add(int[] a, int[] b, int[] r) {
+        long c = 0;
+        for (int i = 0; i < SIZE; i++) {
+            c += (a[i] & M) + (b[i] & M);
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        reduceOnce(r, (int) c);
+    }
+
+    static void negate(int[] a, int[] r) {
+        long c = 0;
+        int bits = 0;
+        for (int i = 0; i < SIZE; i++) {
+            c += (N[i] & M) - (a[i] & M);
+            r[i] = (int) c;
+            c >>= 32;
+            bits |= a[i];
+        }
+        // n - 0 must be 0
+        int nonZero = (bits | -bits) >> 31;
+        for (int i = 0; i < SIZE; i++) {
+            r[i] &= nonZero;
+        }
+    }
+
+    static void multiply(int[] a, int[] b, int[] r) {
+        reduce(Limbs.multiply(a, b), r);
+    }
+
+    static void square(int[] a, int[] r) {
+        reduce(Limbs.square(a), r);
+    }
+
+    /**
+     * Calculates a^(n - 2), which is the inverse of a, four bits of the exponent at a time. The exponent is
+     * public, so it doesn't matter that the multiplications depend on its bits.
+     */
+    static void invert(int[] a, int[] r) {
+        int[][] powers = new int[16][];
+        powers[1] = a.clone();
+        for (int j = 2; j < 16; j++) {
+            powers[j] = create();
+            multiply(powers[j - 1], a, powers[j]);
+        }
+        int[] x = powers[Limbs.nibble(N_MINUS_2, 63)].clone();
+        for (int i = 62; i >= 0; i--) {
+            for (int d = 0; d < 4; d++) {
+                square(x, x);
+            }
+            int digit = Limbs.nibble(N_MINUS_2, i);
+            if (digit != 0) {
+                multiply(x, powers[digit], x);
+            }
+        }
+        System.arraycopy(x, 0, r, 0, SIZE);
+    }
+
+    /**
+     * Calculates the inverse with the binary extended Euclidean algorithm, which is a lot faster than
+     * {@link #invert(int[], int[])}, but its timing depends on a. It must only be used for public values, like the
+     * s of a signature that is verified.
+     *
+     * @param a must not be zero
+     */
+    static void invertVariableTime(int[] a, int[] r) {
+        int[] u = a.clone();
+        int[] v = N.clone();
+        int[] x1 = create();
+        int[] x2 = create();
+        x1[0] = 1;
+        while (!isOne(u) && !isOne(v)) {
+            while ((u[0] & 1) == 0) {
+                shiftRight(u, 0);
+                halve(x1);
+            }
+            while ((v[0] & 1) == 0) {
+                shiftRight(v, 0);
+                halve(x2);
+            }
+            if (Limbs.lessThan(u, v)) {
+                subtract(v, u, v);
+                subtractModN(x2, x1);
+            } else {
+                subtract(u, v, u);
+                subtractModN(x1, x2);
+            }
+        }
+        System.arraycopy(isOne(u) ? x1 : x2, 0, r, 0, SIZE);
+    }
+
+    private static boolean isOne(int[] a) {
+        int bits = a[0] ^ 1;
+        for (int i = 1; i < SIZE; i++) {
+            bits |= a[i];
+        }
+        return bits == 0;
+    }
+
+    /**
+     * Sets a to a / 2 modulo n, i.e. (a + n) / 2 if a is odd.
+     */
+    private static void halve(int[] a) {
+        int carry = 0;
+        if ((a[0] & 1) != 0) {
+            long c = 0;
+            for (int i = 0; i < SIZE; i++) {
+                c += (a[i] & M) + (N[i] & M);
+                a[i] = (int) c;
+                c >>>= 32;
+            }
+            carry = (int) c;
+        }
+        shiftRight(a, carry);
+    }
+
+    private static void shiftRight(int[] a, int carry) {
+        for (int i = 0; i < SIZE - 1; i++) {
+            a[i] = (a[i] >>> 1) | (a[i + 1] << 31);
+        }
+        a[SIZE - 1] = (a[SIZE - 1] >>> 1) | (carry << 31);
+    }
+
+    /**
+     * @return the borrow, i.e. 1 if b is larger than a, 0 otherwise
+     */
+    private static int subtract(int[] a, int[] b, int[] r) {
+        long c = 0;
+        for (int i = 0; i < SIZE; i++) {
+            c += (a[i] & M) - (b[i] & M);
+            r[i] = (int) c;
+            c >>= 32;
+        }
+        return (int) -c;
+    }
+
+    /**
+     * Sets a to a - b modulo n.
+     */
+    private static void subtractModN(int[] a, int[] b) {
+        if (subtract(a, b, a) != 0) {
+            long c = 0;
+            for (int i = 0; i < SIZE; i++) {
+                c += (a[i] & M) + (N[i] & M);
+                a[i] = (int) c;
+                c >>>= 32;
+            }
+        }
+    }
+
+    /**
+     * Splits k into k1 and k2 with k = k1 + k2 * lambda (mod n), where lambda is the cube root of unity that
+     * multiplies a point by multiplying its x coordinate with beta. Both parts are at most 128 bits long, after
+     * they are negated if the corresponding element of negated is -1.
+     * <p>
+     * See "Guide to Elliptic Curve Cryptography", algorithm 3.74, and the way libsecp256k1 rounds the divisions.
+     * </p>
+     */
+    static void split(int[] k, int[] k1, int[] k2, int[] negated) {
+        int[] c1 = multiplyShift384(k, G1);
+        int[] c2 = multiplyShift384(k, G2);
+        multiply(c1, MINUS_B1, c1);
+        multiply(c2, MINUS_B2, c2);
+        add(c1, c2, k2);
+        multiply(k2, MINUS_LAMBDA, k1);
+        add(k1, k, k1);
+        negated[0] = makeSmall(k1);
+        negated[1] = makeSmall(k2);
+    }
+
+    /**
+     * Replaces a by n - a if it's larger than 128 bits.
+     *
+     * @return -1 if a was negated, 0 otherwise
+     */
+    private static int makeSmall(int[] a) {
+        int high = a[4] | a[5] | a[6] | a[7];
+        int mask = (high | -high) >> 31;
+        int[] negative = create();
+        negate(a, negative);
+        for (int i = 0; i < SIZE; i++) {
+            a[i] ^= (a[i] ^ negative[i]) & mask;
+        }
+        return mask;
+    }
+
+    /**
+     * @return a * b / 2^384, rounded to the nearest integer
+     */
+    private static int[] multiplyShift384(int[] a, int[] b) {
+        int[] t = Limbs.multiply(a, b);
+        int[] r = create();
+        long c = (t[11] & M) >>> 31;
+        for (int i = 0; i < 4; i++) {
+            c += t[12 + i] & M;
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+        r[4] = (int) c;
+        return r;
+    }
+
+    /**
+     * Reduces a number of up to 512 bits. As 2^256 = 2^256 - n (mod n), the limbs from the ninth on are folded
+     * into the lower ones by multiplying them with 2^256 - n, which is 129 bits long. This shrinks the number to at
+     * most 386, 260 and 257 bits, so subtracting n once is enough at the end.
+     */
+    private static void reduce(int[] t, int[] r) {
+        int[] x = fold(t, 13);
+        x = fold(x, 9);
+        x = fold(x, 9);
+        System.arraycopy(x, 0, r, 0, SIZE);
+        reduceOnce(r, x[SIZE]);
+    }
+
+    /**
+     * @return l + h * (2^256 - n) for x = h * 2^256 + l, in the given number of limbs
+     */
+    private static int[] fold(int[] x, int length) {
+        int[] y = new int[length];
+        System.arraycopy(x, 0, y, 0, SIZE);
+        for (int i = 0; i < x.length - SIZE; i++) {
+            long h = x[SIZE + i] & M;
+            long c = 0;
+            for (int j = 0; j < C.length; j++) {
+                c += h * (C[j] & M) + (y[i + j] & M);
+                y[i + j] = (int) c;
+                c >>>= 32;
+            }
+            for (int j = i + C.length; j < length; j++) {
+                c += y[j] & M;
+                y[j] = (int) c;
+                c >>>= 32;
+            }
+        }
+        return y;
+    }
+
+    /**
+     * Subtracts n if carry * 2^256 + r isn't smaller than n, which is the case if adding 2^256 - n overflows.
+     */
+    private static void reduceOnce(int[] r, int carry) {
+        long c = 0;
+        for (int i = 0; i < SIZE; i++) {
+            c = ((r[i] & M) + (i < C.length ? C[i] & M : 0) + c) >>> 32;
+        }
+        long mask = -(c | carry) & M;
+        c = 0;
+        for (int i = 0; i < SIZE; i++) {
+            c += (r[i] & M) + (i < C.length ? C[i] & mask : 0);
+            r[i] = (int) c;
+            c >>>= 32;
+        }
+    }
+}
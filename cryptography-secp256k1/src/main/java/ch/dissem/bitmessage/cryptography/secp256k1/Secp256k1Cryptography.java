@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.cryptography.secp256k1;
+
+import ch.dissem.bitmessage.entity.payload.Pubkey;
+import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
+import ch.dissem.bitmessage.ports.AbstractCryptography;
+import org.bouncycastle.crypto.BufferedBlockCipher;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.io.CipherOutputStream;
+import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.paddings.PKCS7Padding;
+import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A Cryptography implementation with its own elliptic curve arithmetic, made for secp256k1 only. Other than the
+ * generic implementation in Bouncycastle, it doesn't need BigIntegers or ECPoint objects for each step, uses
+ * field arithmetic that takes the same time for all values, and the endomorphism of secp256k1 to multiply points.
+ * Bouncycastle is still used for hashes and AES.
+ * <p>
+ * Multiplication tables of long-lived public keys are cached, as they're needed every time a signature of a
+ * contact is checked or something is encrypted for them. The cached tables of encryption keys have a second table
+ * that halves the doublings of each multiplication. The generator has its own static tables, and the tables of
+ * ephemeral keys are only used once and not cached.
+ * </p>
+ */
+public class Secp256k1Cryptography extends AbstractCryptography {
+    private final KeyCache<Curve.Table> signingTables;
+    private final KeyCache<Curve.Table> encryptionTables;
+
+    private final ThreadLocal<BufferedBlockCipher> ciphers = new ThreadLocal<BufferedBlockCipher>() {
+        @Override
+        protected BufferedBlockCipher initialValue() {
+            return new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
+        }
+    };
+
+    static {
+        java.security.Security.addProvider(new BouncyCastleProvider());
+    }
+
+    public Secp256k1Cryptography() {
+        this(DEFAULT_KEY_CACHE_SIZE);
+    }
+
+    /**
+     * @param tableCacheSize number of public keys to keep the multiplication tables for, e.g. the keys of contacts
+     *                       and identities, or 0 to always calculate them again.
+     */
+    public Secp256k1Cryptography(int tableCacheSize) {
+        super("BC");
+        this.signingTables = new KeyCache<Curve.Table>(tableCacheSize) {
+            @Override
+            protected Curve.Table decode(byte[] publicKey) {
+                return Curve.createTable(Curve.decode(publicKey));
+            }
+        };
+        // The second table only pays off if the table is used again
+        final boolean shifted = tableCacheSize > 0;
+        this.encryptionTables = new KeyCache<Curve.Table>(tableCacheSize) {
+            @Override
+            protected Curve.Table decode(byte[] publicKey) {
+                return Curve.createTable(Curve.decode(publicKey), shifted);
+            }
+        };
+    }
+
+    @Override
+    public byte[] crypt(boolean encrypt, byte[] data, byte[] key_e, byte[] initializationVector) {
+        BufferedBlockCipher cipher = ciphers.get();
+
+        CipherParameters params = new ParametersWithIV(new KeyParameter(key_e), initializationVector);
+
+        cipher.init(encrypt, params);
+
+        byte[] buffer = new byte[cipher.getOutputSize(data.length)];
+        int length = cipher.processBytes(data, 0, data.length, buffer, 0);
+        try {
+            length += cipher.doFinal(buffer, length);
+        } catch (InvalidCipherTextException e) {
+            throw new IllegalArgumentException(e);
+        }
+        if (length < buffer.length) {
+            return Arrays.copyOfRange(buffer, 0, length);
+        }
+        return buffer;
+    }
+
+    @Override
+    public OutputStream crypt(boolean encrypt, OutputStream out, byte[] key_e, byte[] initializationVector) {
+        // The stream might outlive the current call, so it can't use the thread's cipher
+        BufferedBlockCipher cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine()), new PKCS7Padding());
+        cipher.init(encrypt, new ParametersWithIV(new KeyParameter(key_e), initializationVector));
+        return new CipherOutputStream(out, cipher);
+    }
+
+    @Override
+    public byte[] createPublicKey(byte[] privateKey) {
+        return Curve.encode(Curve.multiplyGenerator(toScalar(privateKey)));
+    }
+
+    private static int[] toScalar(byte[] value) {
+        int[] scalar = Scalar.fromBytes(value, 0, value.length);
+        if (scalar == null) {
+            throw new IllegalArgumentException("Scalar must not be longer than 64 bytes");
+        }
+        return scalar;
+    }
+
+    @Override
+    public boolean isSignatureValid(byte[] data, byte[] signature, Pubkey pubkey) {
+        return Ecdsa.verify(toScalar(sha1(data)), signature, signingTables.get(pubkey.getSigningKey()));
+    }
+
+    @Override
+    public byte[] getSignature(byte[] data, PrivateKey privateKey) {
+        int[] e = toScalar(sha1(data));
+        int[] d = toScalar(privateKey.getPrivateSigningKey());
+        while (true) {
+            int[] nonce = Scalar.fromBytesStrict(randomBytes(32), 0, 32);
+            if (nonce == null) continue;
+            byte[] signature = Ecdsa.sign(e, d, nonce);
+            if (signature != null) return signature;
+        }
+    }
+
+    @Override
+    public byte[] multiply(byte[] K, byte[] r) {
+        return Curve.encode(Curve.multiply(encryptionTables.get(K), toScalar(r)));
+    }
+
+    @Override
+    public byte[] multiplyEphemeral(byte[] R, byte[] k) {
+        return Curve.encode(Curve.multiply(Curve.createTable(Curve.decode(R)), toScalar(k)));
+    }
+
+    @Override
+    public byte[] createPoint(byte[] x, byte[] y) {
+        return Curve.encode(Curve.createPoint(
+                Field.fromBytes(x, 0, x.length),
+                Field.fromBytes(y, 0, y.length)
+        ));
+    }
+
+    @Override
+    public byte[] addPoints(byte[] P, byte[] Q) {
+        Curve.Point sum = new Curve.Point();
+        Curve.add(Curve.decode(P), Curve.decode(Q), sum);
+        return Curve.encode(sum);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.cryptography.secp256k1;
+
+import ch.dissem.bitmessage.DecryptionTest;
+import ch.dissem.bitmessage.EncryptionTest;
+import ch.dissem.bitmessage.SignatureTest;
+import ch.dissem.bitmessage.utils.Singleton;
+import org.junit.BeforeClass;
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the cryptography tests of the core module with this implementation. The singleton must be initialized
+ * before the core tests' base class would initialize it with Bouncycastle.
+ */
+@RunWith(Suite.class)
+@Suite.SuiteClasses({EncryptionTest.class, DecryptionTest.class, SignatureTest.class})
+public class CoreCryptographyTest {
+    @BeforeClass
+    public static void setUp() {
+        Singleton.initialize(new Secp256k1Cryptography());
+        assertTrue(Singleton.security() instanceof Secp256k1Cryptography);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.cryptography.secp256k1;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CurveTest {
+    private static final BigInteger N = new BigInteger(
+            "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+    private static final Random RANDOM = new Random(4711);
+
+    @Test
+    public void ensureOddDigitsAddUpToScalar() {
+        for (int i = 0; i < 200; i++) {
+            BigInteger k = random(i);
+            if (!k.testBit(0)) {
+                k = N.subtract(k);
+            }
+            int[] recoded = Curve.recode(scalar(k), 52);
+            BigInteger sum = BigInteger.ZERO;
+            for (int window = 51; window >= 0; window--) {
+                int digit = Curve.oddDigit(recoded, window);
+                assertTrue(digit >= -31 && digit <= 31 && (digit & 1) != 0);
+                sum = sum.shiftLeft(5).add(BigInteger.valueOf(digit));
+            }
+            assertEquals(k, sum);
+        }
+    }
+
+    @Test
+    public void ensureMultiplicationsAgreeForEvenOddAndZeroScalars() {
+        Curve.Table generator = Curve.createTable(Curve.multiplyGenerator(scalar(BigInteger.ONE)));
+        Curve.Table shifted = Curve.createTable(Curve.multiplyGenerator(scalar(BigInteger.ONE)), true);
+        assertTrue(Curve.multiplyGenerator(scalar(BigInteger.ZERO)).isInfinity());
+        assertTrue(Curve.multiply(generator, scalar(BigInteger.ZERO)).isInfinity());
+        assertTrue(Curve.multiply(shifted, scalar(BigInteger.ZERO)).isInfinity());
+        for (int i = 0; i < 100; i++) {
+            BigInteger k = i < 4 ? BigInteger.valueOf(i + 1) : random(i);
+            k = (i & 1) == 0 ? k.clearBit(0) : k.setBit(0);
+            if (k.signum() == 0) continue;
+            byte[] expected = Curve.encode(Curve.multiplyAndAdd(scalar(k), generator, scalar(BigInteger.ZERO)));
+            assertArrayEquals(expected, Curve.encode(Curve.multiplyGenerator(scalar(k))));
+            assertArrayEquals(expected, Curve.encode(Curve.multiply(generator, scalar(k))));
+            assertArrayEquals(expected, Curve.encode(Curve.multiply(shifted, scalar(k))));
+        }
+    }
+
+    @Test
+    public void ensureMultiplyAndAddMatchesSeparateMultiplications() {
+        Curve.Table table = Curve.createTable(Curve.multiplyGenerator(scalar(new BigInteger(256, RANDOM).mod(N))));
+        for (int i = 0; i < 200; i++) {
+            int[] k1 = scalar(random(i));
+            int[] k2 = scalar(random(i + 3));
+            Curve.Point expected = new Curve.Point();
+            Curve.add(Curve.multiplyGenerator(k1), Curve.multiply(table, k2), expected);
+            assertArrayEquals(Curve.encode(expected), Curve.encode(Curve.multiplyAndAdd(k1, table, k2)));
+        }
+    }
+
+    @Test
+    public void ensureMultiplyAndAddHandlesEqualAndOppositePoints() {
+        Curve.Table generator = Curve.createTable(Curve.multiplyGenerator(scalar(BigInteger.ONE)));
+        for (int i = 0; i < 20; i++) {
+            BigInteger k = random(i);
+            Curve.Point sum = Curve.multiplyAndAdd(scalar(k), generator, scalar(N.subtract(k).mod(N)));
+            assertTrue(sum.isInfinity());
+            assertArrayEquals(
+                    Curve.encode(Curve.multiplyGenerator(scalar(k.shiftLeft(1).mod(N)))),
+                    Curve.encode(Curve.multiplyAndAdd(scalar(k), generator, scalar(k)))
+            );
+        }
+    }
+
+    private static BigInteger random(int i) {
+        switch (i % 6) {
+            case 0:
+                return BigInteger.ONE;
+            case 1:
+                return N.subtract(BigInteger.ONE);
+            case 2:
+                return BigInteger.ONE.shiftLeft(RANDOM.nextInt(256)).mod(N);
+            default:
+                return new BigInteger(256, RANDOM).mod(N);
+        }
+    }
+
+    private static int[] scalar(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        return Scalar.fromBytes(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.cryptography.secp256k1;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FieldTest {
+    private static final BigInteger P = BigInteger.ONE.shiftLeft(256)
+            .subtract(BigInteger.ONE.shiftLeft(32)).subtract(BigInteger.valueOf(977));
+    private static final Random RANDOM = new Random(4711);
+
+    @Test
+    public void ensureOperationsMatchBigInteger() {
+        for (int i = 0; i < 2000; i++) {
+            BigInteger a = random(i);
+            BigInteger b = random(i + 1);
+            int[] x = toField(a);
+            int[] y = toField(b);
+            int[] r = Field.create();
+
+            Field.add(x, y, r);
+            assertEquals(a.add(b).mod(P), toBigInteger(r));
+            Field.negate(y, 1, r);
+            Field.add(x, r, r);
+            assertEquals(a.subtract(b).mod(P), toBigInteger(r));
+            Field.negate(x, 1, r);
+            assertEquals(a.negate().mod(P), toBigInteger(r));
+            Field.half(x, r);
+            assertEquals(a.multiply(BigInteger.valueOf(2).modInverse(P)).mod(P), toBigInteger(r));
+            Field.multiply(x, y, r);
+            assertEquals(a.multiply(b).mod(P), toBigInteger(r));
+            Field.square(x, r);
+            assertEquals(a.multiply(a).mod(P), toBigInteger(r));
+            Field.multiply(x, 8, r);
+            assertEquals(a.shiftLeft(3).mod(P), toBigInteger(r));
+            if (a.signum() != 0) {
+                Field.invert(x, r);
+                assertEquals(a.modInverse(P), toBigInteger(r));
+            }
+        }
+    }
+
+    @Test
+    public void ensureUnreducedElementsAreHandled() {
+        for (int i = 0; i < 2000; i++) {
+            int[] x = unreduced(8);
+            int[] y = unreduced(8);
+            BigInteger a = valueOf(x);
+            BigInteger b = valueOf(y);
+            int[] r = Field.create();
+
+            Field.multiply(x, y, r);
+            assertEquals(a.multiply(b).mod(P), toBigInteger(r));
+            Field.multiply(r, r, r);
+            assertEquals(a.multiply(b).pow(2).mod(P), toBigInteger(r));
+            Field.square(x, r);
+            assertEquals(a.multiply(a).mod(P), toBigInteger(r));
+            assertEquals(a.mod(P), toBigInteger(x));
+            assertEquals(a.mod(P).signum() == 0, Field.isZero(x));
+            if (a.mod(P).signum() != 0) {
+                Field.invert(x, r);
+                assertEquals(a.modInverse(P), toBigInteger(r));
+            }
+
+            int[] z = unreduced(15);
+            int[] w = z.clone();
+            Field.add(w, toField(P.subtract(BigInteger.ONE)), w);
+            Field.add(w, Field.fromInt(1), w);
+            assertTrue(Field.equal(z, w));
+            Field.add(w, Field.fromInt(1), w);
+            assertFalse(Field.equal(z, w));
+        }
+    }
+
+    @Test
+    public void ensureRepresentationsOfZeroAreRecognized() {
+        int[] p = Field.create();
+        Field.negate(p, 0, p);
+        assertTrue(Field.isZero(p));
+        Field.negate(p, 1, p);
+        assertTrue(Field.isZero(p));
+        assertFalse(Field.isZero(Field.fromInt(1)));
+        int[] inverse = Field.create();
+        Field.invert(p, inverse);
+        assertTrue(Field.isZero(inverse));
+        Field.add(p, Field.fromInt(1), p);
+        assertFalse(Field.isZero(p));
+    }
+
+    @Test
+    public void ensureNumbersOutOfRangeAreRejected() {
+        byte[] bytes = new byte[32];
+        System.arraycopy(P.toByteArray(), 1, bytes, 0, 32);
+        assertNull(Field.fromBytes(bytes, 0, 32));
+        assertNull(Field.fromBytes(new byte[]{1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                0, 0, 0, 0, 0, 0, 0, 0, 0, 0}, 0, 33));
+    }
+
+    /**
+     * Mostly random numbers, but also the edge cases that are most likely to break carries.
+     */
+    private static BigInteger random(int i) {
+        switch (i % 10) {
+            case 0:
+                return BigInteger.ZERO;
+            case 1:
+                return BigInteger.ONE;
+            case 2:
+                return P.subtract(BigInteger.ONE);
+            case 3:
+                return P.subtract(BigInteger.valueOf(RANDOM.nextInt(1 << 16) + 1));
+            case 4:
+                return BigInteger.ONE.shiftLeft(RANDOM.nextInt(256)).mod(P);
+            default:
+                return new BigInteger(256, RANDOM).mod(P);
+        }
+    }
+
+    /**
+     * @return an element of the given magnitude, with limbs up to the limit, or random ones
+     */
+    private static int[] unreduced(int magnitude) {
+        int[] r = Field.create();
+        boolean maximal = RANDOM.nextInt(4) == 0;
+        for (int i = 0; i < Field.SIZE; i++) {
+            long limit = 2L * magnitude * (i == Field.SIZE - 1 ? 0x3FFFFF : 0x3FFFFFF);
+            r[i] = (int) (maximal ? limit : (RANDOM.nextLong() >>> 1) % (limit + 1));
+        }
+        return r;
+    }
+
+    private static BigInteger valueOf(int[] limbs) {
+        BigInteger value = BigInteger.ZERO;
+        for (int i = Field.SIZE - 1; i >= 0; i--) {
+            value = value.shiftLeft(26).add(BigInteger.valueOf(limbs[i] & 0xFFFFFFFFL));
+        }
+        return value;
+    }
+
+    static int[] toField(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        return Field.fromBytes(bytes, 0, bytes.length);
+    }
+
+    static BigInteger toBigInteger(int[] value) {
+        byte[] bytes = new byte[32];
+        Field.toBytes(value, bytes, 0);
+        return new BigInteger(1, bytes);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.cryptography.secp256k1;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScalarTest {
+    private static final BigInteger N = new BigInteger(
+            "FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFEBAAEDCE6AF48A03BBFD25E8CD0364141", 16);
+    private static final BigInteger LAMBDA = new BigInteger(
+            "5363AD4CC05C30E0A5261C028812645A122E22EA20816678DF02967C1B23BD72", 16);
+    private static final Random RANDOM = new Random(4711);
+
+    @Test
+    public void ensureOperationsMatchBigInteger() {
+        for (int i = 0; i < 2000; i++) {
+            BigInteger a = random(i);
+            BigInteger b = random(i + 3);
+            int[] x = toScalar(a);
+            int[] y = toScalar(b);
+            int[] r = Scalar.create();
+
+            Scalar.add(x, y, r);
+            assertEquals(a.add(b).mod(N), toBigInteger(r));
+            Scalar.negate(x, r);
+            assertEquals(a.negate().mod(N), toBigInteger(r));
+            Scalar.multiply(x, y, r);
+            assertEquals(a.multiply(b).mod(N), toBigInteger(r));
+            if (a.signum() != 0) {
+                Scalar.invert(x, r);
+                assertEquals(a.modInverse(N), toBigInteger(r));
+                Scalar.invertVariableTime(x, r);
+                assertEquals(a.modInverse(N), toBigInteger(r));
+            }
+        }
+    }
+
+    @Test
+    public void ensureSplitPartsAreSmallAndAddUp() {
+        for (int i = 0; i < 2000; i++) {
+            BigInteger k = random(i);
+            int[] k1 = Scalar.create();
+            int[] k2 = Scalar.create();
+            int[] negated = new int[2];
+            Scalar.split(toScalar(k), k1, k2, negated);
+            BigInteger a = toBigInteger(k1);
+            BigInteger b = toBigInteger(k2);
+            assertTrue(a.bitLength() <= 128);
+            assertTrue(b.bitLength() <= 128);
+            if (negated[0] != 0) a = a.negate();
+            if (negated[1] != 0) b = b.negate();
+            assertEquals(k, a.add(b.multiply(LAMBDA)).mod(N));
+        }
+    }
+
+    @Test
+    public void ensureNumbersAreReduced() {
+        byte[] bytes = new byte[32];
+        System.arraycopy(N.add(BigInteger.TEN).toByteArray(), 1, bytes, 0, 32);
+        assertEquals(BigInteger.TEN, toBigInteger(Scalar.fromBytes(bytes, 0, 32)));
+    }
+
+    @Test
+    public void ensureLongNumbersAreReduced() {
+        for (int i = 0; i < 200; i++) {
+            byte[] bytes = new byte[64];
+            RANDOM.nextBytes(bytes);
+            if (i == 0) Arrays.fill(bytes, (byte) 0xFF);
+            assertEquals(new BigInteger(1, bytes).mod(N), toBigInteger(Scalar.fromBytes(bytes, 0, 64)));
+        }
+    }
+
+    private static BigInteger random(int i) {
+        switch (i % 10) {
+            case 0:
+                return BigInteger.ZERO;
+            case 1:
+                return BigInteger.ONE;
+            case 2:
+                return N.subtract(BigInteger.ONE);
+            case 3:
+                return N.shiftRight(1);
+            case 4:
+                return BigInteger.ONE.shiftLeft(RANDOM.nextInt(256)).mod(N);
+            default:
+                return new BigInteger(256, RANDOM).mod(N);
+        }
+    }
+
+    private static int[] toScalar(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        return Scalar.fromBytes(bytes, 0, bytes.length);
+    }
+
+    private static BigInteger toBigInteger(int[] value) {
+        return new BigInteger(1, Scalar.toBytes(value));
+    }
+}
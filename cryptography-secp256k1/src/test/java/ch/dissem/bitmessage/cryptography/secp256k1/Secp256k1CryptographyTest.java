@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.cryptography.secp256k1;
+
+import ch.dissem.bitmessage.cryptography.bc.BouncyCryptography;
+import ch.dissem.bitmessage.entity.payload.Pubkey;
+import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
+import ch.dissem.bitmessage.ports.Cryptography;
+import ch.dissem.bitmessage.utils.Bytes;
+import ch.dissem.bitmessage.utils.Singleton;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the results with the Bouncycastle implementation.
+ */
+public class Secp256k1CryptographyTest {
+    private static final byte[] TEST_VALUE = "teststring".getBytes();
+
+    static {
+        Singleton.initialize(new Secp256k1Cryptography());
+    }
+
+    private final Cryptography security = new Secp256k1Cryptography();
+    private final Cryptography bouncy = new BouncyCryptography();
+
+    @Test
+    public void ensurePublicKeysAreTheSame() {
+        for (int i = 0; i < 100; i++) {
+            byte[] privateKey = security.randomBytes(32);
+            assertArrayEquals(bouncy.createPublicKey(privateKey), security.createPublicKey(privateKey));
+        }
+        byte[] one = new byte[32];
+        one[31] = 1;
+        assertArrayEquals(bouncy.createPublicKey(one), security.createPublicKey(one));
+        byte[] max = new byte[32];
+        Arrays.fill(max, (byte) 0xFF);
+        assertArrayEquals(bouncy.createPublicKey(max), security.createPublicKey(max));
+    }
+
+    @Test
+    public void ensureMultiplicationIsTheSame() {
+        for (int i = 0; i < 100; i++) {
+            byte[] K = bouncy.createPublicKey(security.randomBytes(32));
+            byte[] r = security.randomBytes(32);
+            assertArrayEquals(bouncy.multiply(K, r), security.multiply(K, r));
+            // the second time, the cached table is used
+            assertArrayEquals(bouncy.multiply(K, r), security.multiply(K, r));
+            assertArrayEquals(bouncy.multiplyEphemeral(K, r), security.multiplyEphemeral(K, r));
+        }
+    }
+
+    @Test
+    public void ensureSharedSecretIsTheSame() {
+        byte[] a = security.randomBytes(32);
+        byte[] b = security.randomBytes(32);
+        byte[] A = security.createPublicKey(a);
+        byte[] B = security.createPublicKey(b);
+        assertArrayEquals(security.multiply(A, b), security.multiply(B, a));
+    }
+
+    @Test
+    public void ensurePointsAreAddedCorrectly() {
+        byte[] one = new byte[32];
+        one[31] = 1;
+        byte[] G = security.createPublicKey(one);
+        byte[] k = security.randomBytes(32);
+        byte[] K = security.createPublicKey(k);
+        assertArrayEquals(bouncy.addPoints(K, G), security.addPoints(K, G));
+        assertArrayEquals(bouncy.addPoints(G, G), security.addPoints(G, G));
+        Bytes.inc(k);
+        assertArrayEquals(security.createPublicKey(k), security.addPoints(K, G));
+    }
+
+    @Test
+    public void ensureSignaturesAreCompatible() {
+        PrivateKey privateKey = createPrivateKey();
+        Pubkey pubkey = privateKey.getPubkey();
+
+        byte[] signature = security.getSignature(TEST_VALUE, privateKey);
+        assertTrue(security.isSignatureValid(TEST_VALUE, signature, pubkey));
+        assertTrue(bouncy.isSignatureValid(TEST_VALUE, signature, pubkey));
+        assertFalse(security.isSignatureValid("otherstring".getBytes(), signature, pubkey));
+
+        signature = bouncy.getSignature(TEST_VALUE, privateKey);
+        assertTrue(security.isSignatureValid(TEST_VALUE, signature, pubkey));
+        assertFalse(security.isSignatureValid(TEST_VALUE, signature, createPrivateKey().getPubkey()));
+    }
+
+    @Test
+    public void ensureMalformedSignaturesAreInvalid() {
+        PrivateKey privateKey = createPrivateKey();
+        byte[] signature = security.getSignature(TEST_VALUE, privateKey);
+        for (int i = 0; i < signature.length; i++) {
+            byte[] broken = signature.clone();
+            broken[i] ^= 0x01;
+            assertFalse(security.isSignatureValid(TEST_VALUE, broken, privateKey.getPubkey()));
+        }
+        assertFalse(security.isSignatureValid(TEST_VALUE, Arrays.copyOf(signature, signature.length - 1),
+                privateKey.getPubkey()));
+        assertFalse(security.isSignatureValid(TEST_VALUE, new byte[0], privateKey.getPubkey()));
+    }
+
+    @Test
+    public void ensureSignatureEncodingsAreAcceptedLikeBouncycastleDoes() {
+        PrivateKey privateKey = createPrivateKey();
+        Pubkey pubkey = privateKey.getPubkey();
+        byte[] signature = security.getSignature(TEST_VALUE, privateKey);
+        byte[] r = Arrays.copyOfRange(signature, 4, 4 + signature[3]);
+        byte[] s = Arrays.copyOfRange(signature, 6 + r.length, 6 + r.length + signature[5 + r.length]);
+        byte[] body = concat(integer(r), integer(s));
+        byte[] unsignedR = r[0] == 0 ? Arrays.copyOfRange(r, 1, r.length) : r;
+
+        byte[][] variants = {
+                signature,
+                // superfluous leading zeros
+                sequence(concat(integer(concat(new byte[2], r)), integer(s))),
+                // long form lengths
+                concat(new byte[]{0x30, (byte) 0x81, (byte) body.length}, body),
+                sequence(concat(new byte[]{0x02, (byte) 0x81, (byte) r.length}, r, integer(s))),
+                // indefinite length
+                concat(new byte[]{0x30, (byte) 0x80}, body, new byte[2]),
+                // trailing data, within the sequence and after it
+                concat(signature, new byte[1]),
+                sequence(concat(body, integer(new byte[]{5}))),
+                // r without the zero that makes it positive, if it needs one
+                sequence(concat(integer(unsignedR), integer(s))),
+                // truncated
+                Arrays.copyOf(signature, signature.length - 1),
+                concat(new byte[]{0x30, (byte) 0x81}),
+                concat(new byte[]{0x30, (byte) 0x85, 0, 0, 0, 0, (byte) body.length}, body),
+        };
+        for (byte[] variant : variants) {
+            assertEquals(isValidForBouncycastle(variant, pubkey),
+                    security.isSignatureValid(TEST_VALUE, variant, pubkey));
+        }
+    }
+
+    private boolean isValidForBouncycastle(byte[] signature, Pubkey pubkey) {
+        try {
+            return bouncy.isSignatureValid(TEST_VALUE, signature, pubkey);
+        } catch (RuntimeException e) {
+            // thrown for signatures it can't decode at all
+            return false;
+        }
+    }
+
+    private static byte[] sequence(byte[] content) {
+        return concat(new byte[]{0x30, (byte) content.length}, content);
+    }
+
+    private static byte[] integer(byte[] value) {
+        return concat(new byte[]{0x02, (byte) value.length}, value);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ensurePointsNotOnCurveAreRejected() {
+        byte[] one = new byte[32];
+        one[31] = 1;
+        security.createPoint(one, one);
+    }
+
+    @Test
+    public void ensureEncryptionIsCompatible() {
+        byte[] key = security.randomBytes(32);
+        byte[] iv = security.randomBytes(16);
+        byte[] encrypted = security.crypt(true, TEST_VALUE, key, iv);
+        assertArrayEquals(TEST_VALUE, bouncy.crypt(false, encrypted, key, iv));
+    }
+
+    private PrivateKey createPrivateKey() {
+        byte[] signingKey = security.randomBytes(32);
+        byte[] encryptionKey = security.randomBytes(32);
+        return new PrivateKey(signingKey, encryptionKey,
+                security.createPubkey(Pubkey.LATEST_VERSION, 1, signingKey, encryptionKey, 1000, 1000));
+    }
+}
@@ -43,9 +43,10 @@ public class Application {
 
     public Application(String syncServer, int syncPort) {
         JdbcConfig jdbcConfig = new JdbcConfig();
+        JdbcInventory inventory = new JdbcInventory(jdbcConfig);
         ctx = new BitmessageContext.Builder()
                 .addressRepo(new JdbcAddressRepository(jdbcConfig))
-                .inventory(new JdbcInventory(jdbcConfig))
+                .inventory(inventory)
                 .nodeRegistry(new MemoryNodeRegistry())
                 .messageRepo(new JdbcMessageRepository(jdbcConfig))
                 .powRepo(new JdbcProofOfWorkRepository(jdbcConfig))
@@ -118,6 +119,7 @@ public class Application {
         LOG.info("Shutting down client");
         ctx.cleanup();
         ctx.shutdown();
+        inventory.close();
     }
 
     private void info() {
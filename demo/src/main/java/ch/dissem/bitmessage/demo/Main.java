@@ -46,9 +46,10 @@ public class Main {
         }
         if (options.exportWIF != null || options.importWIF != null) {
             JdbcConfig jdbcConfig = new JdbcConfig();
+            JdbcInventory inventory = new JdbcInventory(jdbcConfig);
             BitmessageContext ctx = new BitmessageContext.Builder()
                     .addressRepo(new JdbcAddressRepository(jdbcConfig))
-                    .inventory(new JdbcInventory(jdbcConfig))
+                    .inventory(inventory)
                     .nodeRegistry(new MemoryNodeRegistry())
                     .messageRepo(new JdbcMessageRepository(jdbcConfig))
                     .powRepo(new JdbcProofOfWorkRepository(jdbcConfig))
@@ -63,6 +64,7 @@ public class Main {
             if (options.importWIF != null) {
                 new WifImporter(ctx, options.importWIF).importAll();
             }
+            inventory.close();
         } else {
             new Application(options.syncServer, options.syncPort);
         }
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.extensions.pow;
+
+import ch.dissem.bitmessage.InternalContext;
+import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.entity.CustomMessage;
+import ch.dissem.bitmessage.exception.DecryptionFailedException;
+import ch.dissem.bitmessage.exception.NodeException;
+import ch.dissem.bitmessage.extensions.CryptoCustomMessage;
+import ch.dissem.bitmessage.ports.NetworkHandler;
+import ch.dissem.bitmessage.ports.ProofOfWorkEngine;
+import ch.dissem.bitmessage.utils.Bytes;
+import ch.dissem.bitmessage.utils.Encode;
+import ch.dissem.bitmessage.utils.Threads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static ch.dissem.bitmessage.extensions.pow.ProofOfWorkRequest.Request.*;
+import static ch.dissem.bitmessage.utils.Singleton.security;
+
+/**
+ * A proof of work engine that lets trusted worker nodes do the actual work, e.g. so a mobile client can use a server
+ * to do its proof of work. The worker nodes need to use a {@link ProofOfWorkCommandHandler}.
+ * <p>
+ * Every worker gets its own part of the nonces to search, the first nonce found by any of them is used and the
+ * other workers are told to cancel their calculation. As the requests are synchronous, the engine regularly polls
+ * the workers for their results.
+ * </p>
+ * <p>
+ * Every worker is polled on its own thread, so a slow or unreachable worker doesn't delay the others. A worker isn't
+ * polled again while it's still busy answering the previous poll.
+ * </p>
+ *
+ * @author Christian Basler
+ */
+public class DistributedPOWEngine implements ProofOfWorkEngine, InternalContext.ContextHolder {
+    private static final Logger LOG = LoggerFactory.getLogger(DistributedPOWEngine.class);
+    private static final long DEFAULT_POLL_INTERVAL = 5_000;
+
+    private final BitmessageAddress identity;
+    private final List<Worker> workers;
+    private final List<Job> jobs = new LinkedList<>();
+    private final Timer timer = new Timer("DistributedPOWEngine", true);
+    private final ExecutorService executor;
+    private NetworkHandler networkHandler;
+
+    /**
+     * @param identity used to sign and decrypt the communication with the workers
+     * @param workers  the nodes to do the proof of work
+     */
+    public DistributedPOWEngine(BitmessageAddress identity, List<Worker> workers) {
+        this(identity, workers, DEFAULT_POLL_INTERVAL);
+    }
+
+    /**
+     * @param identity     used to sign and decrypt the communication with the workers
+     * @param workers      the nodes to do the proof of work
+     * @param pollInterval time between asking the workers for results, in milliseconds
+     */
+    public DistributedPOWEngine(BitmessageAddress identity, List<Worker> workers, long pollInterval) {
+        if (workers.isEmpty()) throw new IllegalArgumentException("At least one worker is needed");
+        this.identity = identity;
+        this.workers = new ArrayList<>(workers);
+        this.executor = Threads.idleExecutor("DistributedPOWEngine worker", workers.size());
+        timer.schedule(new PollTask(), pollInterval, pollInterval);
+    }
+
+    @Override
+    public void calculateNonce(byte[] initialHash, byte[] target, Callback callback) {
+        synchronized (jobs) {
+            jobs.add(new Job(initialHash, target, callback));
+        }
+        // Hand out the new job right away instead of waiting for the next poll
+        timer.schedule(new PollTask(), 0);
+    }
+
+    /**
+     * Stops polling the workers. Unfinished jobs are dropped without calling their callbacks.
+     */
+    public void shutdown() {
+        timer.cancel();
+        executor.shutdownNow();
+    }
+
+    private void poll() {
+        for (int i = 0; i < workers.size(); i++) {
+            final Worker worker = workers.get(i);
+            final int index = i;
+            if (worker.polling.compareAndSet(false, true)) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            poll(worker, index);
+                        } finally {
+                            worker.polling.set(false);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private void poll(Worker worker, int index) {
+        List<Job> current;
+        synchronized (jobs) {
+            current = new ArrayList<>(jobs);
+        }
+        // Each worker starts at another point, so they won't search the same nonces
+        long startNonce = index * (Long.MAX_VALUE / workers.size());
+        for (Job job : current) {
+            if (!job.done) {
+                try {
+                    ProofOfWorkRequest response = send(worker, job.initialHash, CALCULATE,
+                            calculationData(job.target, startNonce));
+                    if (response.getRequest() == COMPLETE) {
+                        byte[] nonce = response.getData();
+                        if (isValid(job, nonce)) {
+                            complete(job, nonce, worker);
+                        } else {
+                            LOG.warn("Worker " + worker + " returned an invalid nonce");
+                        }
+                    }
+                } catch (IOException | DecryptionFailedException | RuntimeException e) {
+                    LOG.warn("Worker " + worker + " failed: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private void complete(final Job job, byte[] nonce, Worker finder) {
+        synchronized (jobs) {
+            if (job.done) return;
+            job.done = true;
+            jobs.remove(job);
+        }
+        job.callback.onNonceCalculated(job.initialHash, nonce);
+        for (final Worker worker : workers) {
+            if (worker == finder) continue;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        send(worker, job.initialHash, CANCEL, new byte[0]);
+                    } catch (IOException | DecryptionFailedException | RuntimeException e) {
+                        LOG.debug("Couldn't cancel calculation on worker " + worker, e);
+                    }
+                }
+            });
+        }
+    }
+
+    private boolean isValid(Job job, byte[] nonce) {
+        return nonce.length == 8 && !Bytes.lt(job.target, security().doubleSha512(nonce, job.initialHash), 8);
+    }
+
+    private byte[] calculationData(byte[] target, long startNonce) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+        out.write(target);
+        Encode.int64(startNonce, out);
+        return out.toByteArray();
+    }
+
+    private ProofOfWorkRequest send(Worker worker, byte[] initialHash, ProofOfWorkRequest.Request type, byte[] data)
+            throws IOException, DecryptionFailedException {
+        CryptoCustomMessage<ProofOfWorkRequest> request = new CryptoCustomMessage<>(
+                new ProofOfWorkRequest(identity, initialHash, type, data));
+        request.signAndEncrypt(identity, worker.address.getPubkey().getEncryptionKey());
+        CustomMessage response = networkHandler.send(worker.host, worker.port, request);
+        if (response.isError()) {
+            throw new NodeException("Error response: " + new String(response.getData(), "UTF-8"));
+        }
+        CryptoCustomMessage<ProofOfWorkRequest> cryptoResponse = CryptoCustomMessage.read(response,
+                new ProofOfWorkRequest.Reader(identity));
+        ProofOfWorkRequest result = cryptoResponse.decrypt(identity.getPrivateKey().getPrivateEncryptionKey());
+        if (!worker.address.equals(cryptoResponse.getSender())) {
+            throw new NodeException("Response wasn't signed by the worker but by " + cryptoResponse.getSender());
+        }
+        return result;
+    }
+
+    @Override
+    public void setContext(InternalContext context) {
+        this.networkHandler = context.getNetworkHandler();
+    }
+
+    /**
+     * A trusted node doing proof of work.
+     */
+    public static class Worker {
+        private final InetAddress host;
+        private final int port;
+        private final BitmessageAddress address;
+        private final AtomicBoolean polling = new AtomicBoolean();
+
+        /**
+         * @param host    of the worker node
+         * @param port    the worker node listens on
+         * @param address the worker's identity, its pubkey must be available
+         */
+        public Worker(InetAddress host, int port, BitmessageAddress address) {
+            if (address.getPubkey() == null) {
+                throw new IllegalArgumentException("The pubkey of the worker's address must be known");
+            }
+            this.host = host;
+            this.port = port;
+            this.address = address;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private static class Job {
+        private final byte[] initialHash;
+        private final byte[] target;
+        private final Callback callback;
+        private volatile boolean done;
+
+        private Job(byte[] initialHash, byte[] target, Callback callback) {
+            this.initialHash = initialHash;
+            this.target = target;
+            this.callback = callback;
+        }
+    }
+
+    private class PollTask extends TimerTask {
+        @Override
+        public void run() {
+            poll();
+        }
+    }
+}
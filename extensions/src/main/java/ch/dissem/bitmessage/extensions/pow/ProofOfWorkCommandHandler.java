@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.extensions.pow;
+
+import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.entity.CustomMessage;
+import ch.dissem.bitmessage.entity.MessagePayload;
+import ch.dissem.bitmessage.exception.DecryptionFailedException;
+import ch.dissem.bitmessage.extensions.CryptoCustomMessage;
+import ch.dissem.bitmessage.ports.CustomCommandHandler;
+import ch.dissem.bitmessage.ports.PrioritizedProofOfWorkEngine;
+import ch.dissem.bitmessage.ports.ProofOfWorkEngine;
+import ch.dissem.bitmessage.utils.Decode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import static ch.dissem.bitmessage.extensions.pow.ProofOfWorkRequest.Request.*;
+import static ch.dissem.bitmessage.utils.UnixTime.MINUTE;
+import static ch.dissem.bitmessage.utils.UnixTime.now;
+import static ch.dissem.bitmessage.utils.Strings.hex;
+
+/**
+ * Does the proof of work for other nodes, e.g. a weak client like a mobile phone. The requests are expected to be
+ * sent by a {@link DistributedPOWEngine} and are calculated with the local proof of work engine.
+ * <p>
+ * The client polls for the result by repeating its CALCULATE request, which is answered with CALCULATING until the
+ * nonce is found, and then once with COMPLETE containing the nonce.
+ * </p>
+ * <p>
+ * Only requests signed by one of the trusted clients are accepted. Jobs the client stopped asking for, e.g. because
+ * it went offline, are forgotten after a while, and cancelled if they're still being calculated.
+ * </p>
+ *
+ * @author Christian Basler
+ */
+public class ProofOfWorkCommandHandler implements CustomCommandHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(ProofOfWorkCommandHandler.class);
+    private static final long DEFAULT_JOB_EXPIRY = 10 * MINUTE;
+
+    private final BitmessageAddress identity;
+    private final ProofOfWorkEngine engine;
+    private final Set<BitmessageAddress> clients;
+    private final long jobExpiry;
+    /**
+     * The jobs by hex encoded initial hash.
+     */
+    private final Map<String, Job> jobs = new HashMap<>();
+
+    /**
+     * @param identity the identity the clients encrypt their requests for
+     * @param engine   to do the actual proof of work
+     * @param clients  the only addresses requests are accepted from
+     */
+    public ProofOfWorkCommandHandler(BitmessageAddress identity, ProofOfWorkEngine engine,
+                                     Collection<BitmessageAddress> clients) {
+        this(identity, engine, clients, DEFAULT_JOB_EXPIRY);
+    }
+
+    /**
+     * @param identity  the identity the clients encrypt their requests for
+     * @param engine    to do the actual proof of work
+     * @param clients   the only addresses requests are accepted from
+     * @param jobExpiry time in seconds after which a job the client didn't ask for anymore is dropped
+     */
+    public ProofOfWorkCommandHandler(BitmessageAddress identity, ProofOfWorkEngine engine,
+                                     Collection<BitmessageAddress> clients, long jobExpiry) {
+        this.identity = identity;
+        this.engine = engine;
+        this.clients = new HashSet<>(clients);
+        this.jobExpiry = jobExpiry;
+    }
+
+    @Override
+    public MessagePayload handle(CustomMessage message) {
+        if (!CryptoCustomMessage.COMMAND.equals(message.getCustomCommand())) {
+            return CustomMessage.error("Unknown command: " + message.getCustomCommand());
+        }
+        try {
+            CryptoCustomMessage<ProofOfWorkRequest> cryptoMessage = CryptoCustomMessage.read(message,
+                    new ProofOfWorkRequest.Reader(identity));
+            ProofOfWorkRequest request = cryptoMessage.decrypt(identity.getPrivateKey().getPrivateEncryptionKey());
+            if (!clients.contains(cryptoMessage.getSender())) {
+                LOG.info("Rejected proof of work request from untrusted client " + cryptoMessage.getSender());
+                return CustomMessage.error("Not a trusted client");
+            }
+
+            CryptoCustomMessage<ProofOfWorkRequest> response = new CryptoCustomMessage<>(handle(request));
+            response.signAndEncrypt(identity, cryptoMessage.getSender().getPubkey().getEncryptionKey());
+            return response;
+        } catch (IOException | DecryptionFailedException | RuntimeException e) {
+            LOG.debug(e.getMessage(), e);
+            return CustomMessage.error(e.getMessage());
+        }
+    }
+
+    private ProofOfWorkRequest handle(ProofOfWorkRequest request) throws IOException {
+        final String key = hex(request.getInitialHash()).toString();
+        removeExpiredJobs();
+        switch (request.getRequest()) {
+            case CALCULATE:
+                synchronized (jobs) {
+                    Job job = jobs.get(key);
+                    if (job != null) {
+                        if (job.nonce == null) {
+                            job.lastRequest = now();
+                            return response(request, CALCULATING, new byte[0]);
+                        }
+                        jobs.remove(key);
+                        return response(request, COMPLETE, job.nonce);
+                    }
+                    jobs.put(key, new Job(request.getInitialHash()));
+                }
+                calculate(key, request);
+                return response(request, CALCULATING, new byte[0]);
+            case CANCEL:
+                synchronized (jobs) {
+                    jobs.remove(key);
+                }
+                cancel(request.getInitialHash());
+                return response(request, CANCEL, new byte[0]);
+            default:
+                throw new IllegalArgumentException("Unexpected request: " + request.getRequest());
+        }
+    }
+
+    private void calculate(final String key, ProofOfWorkRequest request) throws IOException {
+        InputStream in = new ByteArrayInputStream(request.getData());
+        byte[] target = Decode.bytes(in, 8);
+        long startNonce = Decode.int64(in);
+        ProofOfWorkEngine.Callback callback = new ProofOfWorkEngine.Callback() {
+            @Override
+            public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                synchronized (jobs) {
+                    // The job might have been cancelled or expired in the meantime
+                    Job job = jobs.get(key);
+                    if (job != null) {
+                        job.nonce = nonce;
+                        job.lastRequest = now();
+                    }
+                }
+            }
+        };
+        if (engine instanceof PrioritizedProofOfWorkEngine) {
+            ((PrioritizedProofOfWorkEngine) engine).calculateNonce(request.getInitialHash(), target,
+                    PrioritizedProofOfWorkEngine.Priority.NORMAL, startNonce, callback);
+        } else {
+            engine.calculateNonce(request.getInitialHash(), target, callback);
+        }
+    }
+
+    private void removeExpiredJobs() {
+        List<Job> expired = new LinkedList<>();
+        synchronized (jobs) {
+            Iterator<Job> iterator = jobs.values().iterator();
+            while (iterator.hasNext()) {
+                Job job = iterator.next();
+                if (job.lastRequest < now() - jobExpiry) {
+                    iterator.remove();
+                    if (job.nonce == null) expired.add(job);
+                }
+            }
+        }
+        for (Job job : expired) {
+            LOG.debug("Dropping expired proof of work job " + hex(job.initialHash));
+            cancel(job.initialHash);
+        }
+    }
+
+    private void cancel(byte[] initialHash) {
+        if (engine instanceof PrioritizedProofOfWorkEngine) {
+            ((PrioritizedProofOfWorkEngine) engine).cancel(initialHash);
+        }
+    }
+
+    private ProofOfWorkRequest response(ProofOfWorkRequest request, ProofOfWorkRequest.Request type, byte[] data) {
+        return new ProofOfWorkRequest(identity, request.getInitialHash(), type, data);
+    }
+
+    private static class Job {
+        private final byte[] initialHash;
+        /**
+         * Null while it's still being calculated.
+         */
+        private byte[] nonce;
+        private long lastRequest = now();
+
+        private Job(byte[] initialHash) {
+            this.initialHash = initialHash;
+        }
+    }
+}
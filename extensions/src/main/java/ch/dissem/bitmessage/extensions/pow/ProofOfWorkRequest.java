@@ -119,6 +119,7 @@ public class ProofOfWorkRequest implements Streamable {
     public enum Request {
         CALCULATE,
         CALCULATING,
-        COMPLETE
+        COMPLETE,
+        CANCEL
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.extensions.pow;
+
+import ch.dissem.bitmessage.InternalContext;
+import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.entity.CustomMessage;
+import ch.dissem.bitmessage.entity.MessagePayload;
+import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
+import ch.dissem.bitmessage.extensions.CryptoCustomMessage;
+import ch.dissem.bitmessage.ports.*;
+import ch.dissem.bitmessage.utils.Bytes;
+import ch.dissem.bitmessage.utils.CallbackWaiter;
+import ch.dissem.bitmessage.utils.Encode;
+import ch.dissem.bitmessage.utils.TestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.ByteArrayInputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static ch.dissem.bitmessage.extensions.pow.ProofOfWorkRequest.Request.CALCULATE;
+
+import static ch.dissem.bitmessage.utils.Singleton.security;
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class DistributedPOWEngineTest extends TestBase {
+    private final List<PooledPOWEngine> localEngines = new ArrayList<>();
+    private final List<CustomCommandHandler> handlers = new ArrayList<>();
+    private final List<BitmessageAddress> workerIdentities = new ArrayList<>();
+    private final BitmessageAddress identity = new BitmessageAddress(new PrivateKey(false, 1, 1000, 1000));
+    private DistributedPOWEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        List<DistributedPOWEngine.Worker> workers = new ArrayList<>();
+        List<BitmessageAddress> clients = Collections.singletonList(new BitmessageAddress(identity.getAddress()));
+        for (int i = 0; i < 2; i++) {
+            BitmessageAddress workerIdentity = new BitmessageAddress(new PrivateKey(false, 1, 1000, 1000));
+            PooledPOWEngine localEngine = new PooledPOWEngine(1);
+            localEngines.add(localEngine);
+            workerIdentities.add(workerIdentity);
+            handlers.add(new ProofOfWorkCommandHandler(workerIdentity, localEngine, clients));
+            BitmessageAddress workerAddress = new BitmessageAddress(workerIdentity.getAddress());
+            workerAddress.setPubkey(workerIdentity.getPubkey());
+            workers.add(new DistributedPOWEngine.Worker(InetAddress.getLoopbackAddress(), i, workerAddress));
+        }
+        engine = new DistributedPOWEngine(identity, workers, 100);
+
+        // Instead of actually sending them, the requests are serialized and handled by the worker with the port as index
+        NetworkHandler networkHandler = mock(NetworkHandler.class);
+        when(networkHandler.send(any(InetAddress.class), anyInt(), any(CustomMessage.class))).thenAnswer(
+                new Answer<CustomMessage>() {
+                    @Override
+                    public CustomMessage answer(InvocationOnMock invocation) throws Throwable {
+                        int port = (int) invocation.getArguments()[1];
+                        MessagePayload response = handlers.get(port).handle(loopback(
+                                (MessagePayload) invocation.getArguments()[2]));
+                        return loopback(response);
+                    }
+                });
+        InternalContext ctx = mock(InternalContext.class);
+        when(ctx.getNetworkHandler()).thenReturn(networkHandler);
+        engine.setContext(ctx);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+        for (PooledPOWEngine localEngine : localEngines) {
+            localEngine.shutdown();
+        }
+    }
+
+    @Test(timeout = 90_000)
+    public void ensureNonceIsCalculatedByWorkers() throws Exception {
+        byte[] initialHash = security().sha512(new byte[]{1, 3, 6, 9});
+        byte[] target = {0, 0, -1, -1, -1, -1, -1, -1};
+
+        final CallbackWaiter<byte[]> waiter = new CallbackWaiter<>();
+        engine.calculateNonce(initialHash, target, new ProofOfWorkEngine.Callback() {
+            @Override
+            public void onNonceCalculated(byte[] initialHash, byte[] nonce) {
+                waiter.setValue(nonce);
+            }
+        });
+        byte[] nonce = waiter.waitForValue();
+        assertTrue(Bytes.lt(security().doubleSha512(nonce, initialHash), target, 8));
+    }
+
+    @Test
+    public void ensureUnknownCommandIsRejected() {
+        MessagePayload response = handlers.get(0).handle(new CustomMessage("UNKNOWN", new byte[0]));
+        assertTrue(((CustomMessage) response).isError());
+    }
+
+    @Test
+    public void ensureRequestsFromUntrustedClientsAreRejected() throws Exception {
+        BitmessageAddress stranger = new BitmessageAddress(new PrivateKey(false, 1, 1000, 1000));
+        MessagePayload response = handlers.get(0).handle(request(stranger, workerIdentities.get(0), new byte[64]));
+        assertTrue(((CustomMessage) response).isError());
+    }
+
+    @Test
+    public void ensureAbandonedJobsExpire() throws Exception {
+        BitmessageAddress worker = workerIdentities.get(0);
+        PrioritizedProofOfWorkEngine localEngine = mock(PrioritizedProofOfWorkEngine.class);
+        // Negative expiry, so a job expires on the next request even within the same second
+        CustomCommandHandler handler = new ProofOfWorkCommandHandler(worker, localEngine,
+                Collections.singletonList(identity), -1);
+        byte[] abandoned = security().sha512(new byte[]{1});
+        byte[] other = security().sha512(new byte[]{2});
+
+        assertFalse(((CustomMessage) handler.handle(request(identity, worker, abandoned))).isError());
+        verify(localEngine, never()).cancel(abandoned);
+        handler.handle(request(identity, worker, other));
+        verify(localEngine).cancel(abandoned);
+        verify(localEngine, times(2)).calculateNonce(any(byte[].class), any(byte[].class),
+                any(PrioritizedProofOfWorkEngine.Priority.class), anyLong(), any(ProofOfWorkEngine.Callback.class));
+    }
+
+    private static CustomMessage request(BitmessageAddress client, BitmessageAddress worker, byte[] initialHash)
+            throws Exception {
+        CryptoCustomMessage<ProofOfWorkRequest> request = new CryptoCustomMessage<>(
+                new ProofOfWorkRequest(client, initialHash, CALCULATE, new byte[16]));
+        request.signAndEncrypt(client, worker.getPubkey().getEncryptionKey());
+        return loopback(request);
+    }
+
+    private static CustomMessage loopback(MessagePayload message) throws Exception {
+        byte[] data = Encode.bytes(message);
+        return CustomMessage.read(new ByteArrayInputStream(data), data.length);
+    }
+}
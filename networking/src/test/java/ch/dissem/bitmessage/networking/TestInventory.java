@@ -55,6 +55,18 @@ public class TestInventory implements Inventory {
         return new ArrayList<>(inventory.values());
     }
 
+    @Override
+    public void getObjects(long stream, long version, ObjectCallback callback, ObjectType... types) {
+        for (ObjectMessage object : inventory.values()) {
+            if (!callback.onObject(object)) return;
+        }
+    }
+
+    @Override
+    public List<ObjectMessage> getObjectsByTag(byte[] tag, ObjectType... types) {
+        return new ArrayList<>(inventory.values());
+    }
+
     @Override
     public void storeObject(ObjectMessage object) {
         inventory.put(object.getInventoryVector(), object);
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.repository;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel keeping track of when items expire. Each item is put into the bucket of the tick its
+ * deadline falls into, so advancing the wheel only needs to look at the buckets of the elapsed ticks instead of
+ * all items. Items whose deadline is more than one rotation away stay in their bucket until their round comes.
+ *
+ * @param <T> the type of the items
+ */
+class ExpiryWheel<T> {
+    private final long tickLength;
+    private final List<List<Entry<T>>> buckets;
+    private long currentTick;
+
+    /**
+     * @param tickLength in seconds
+     * @param size       number of buckets
+     * @param now        the current Unix time in seconds
+     */
+    ExpiryWheel(long tickLength, int size, long now) {
+        this.tickLength = tickLength;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new LinkedList<Entry<T>>());
+        }
+        this.currentTick = now / tickLength - 1;
+    }
+
+    /**
+     * @param deadline Unix time in seconds after which the item is expired
+     */
+    synchronized void add(T item, long deadline) {
+        long tick = Math.max(deadline / tickLength, currentTick + 1);
+        buckets.get((int) (tick % buckets.size())).add(new Entry<>(item, deadline));
+    }
+
+    /**
+     * Advances the wheel to the given time and removes all items that expired by then.
+     *
+     * @param now the current Unix time in seconds
+     * @return the expired items
+     */
+    synchronized List<T> advance(long now) {
+        List<T> result = new LinkedList<>();
+        // Only ticks that are completely in the past can be processed
+        long target = now / tickLength - 1;
+        for (long tick = Math.max(currentTick + 1, target - buckets.size() + 1); tick <= target; tick++) {
+            Iterator<Entry<T>> iterator = buckets.get((int) (tick % buckets.size())).iterator();
+            while (iterator.hasNext()) {
+                Entry<T> entry = iterator.next();
+                if (entry.deadline <= now) {
+                    result.add(entry.item);
+                    iterator.remove();
+                }
+            }
+        }
+        if (target > currentTick) {
+            currentTick = target;
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        int size = 0;
+        for (List<Entry<T>> bucket : buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    private static class Entry<T> {
+        private final T item;
+        private final long deadline;
+
+        private Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
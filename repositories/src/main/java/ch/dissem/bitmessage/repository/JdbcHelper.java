@@ -76,6 +76,18 @@ public abstract class JdbcHelper {
         return streamList;
     }
 
+    /**
+     * @return a comma separated list of count JDBC parameter placeholders, for use in IN clauses
+     */
+    public static StringBuilder placeholders(int count) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) result.append(", ");
+            result.append('?');
+        }
+        return result;
+    }
+
     protected void writeBlob(PreparedStatement ps, int parameterIndex, Streamable data) throws SQLException, IOException {
         if (data != null) {
             ByteArrayOutputStream os = new ByteArrayOutputStream();
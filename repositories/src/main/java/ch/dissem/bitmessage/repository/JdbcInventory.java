@@ -17,29 +17,105 @@
 package ch.dissem.bitmessage.repository;
 
 import ch.dissem.bitmessage.entity.ObjectMessage;
+import ch.dissem.bitmessage.entity.payload.ObjectPayload;
 import ch.dissem.bitmessage.entity.payload.ObjectType;
+import ch.dissem.bitmessage.entity.payload.V4Pubkey;
+import ch.dissem.bitmessage.entity.payload.V5Broadcast;
 import ch.dissem.bitmessage.entity.valueobject.InventoryVector;
 import ch.dissem.bitmessage.factory.Factory;
 import ch.dissem.bitmessage.ports.Inventory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static ch.dissem.bitmessage.utils.UnixTime.MINUTE;
 import static ch.dissem.bitmessage.utils.UnixTime.now;
 
-public class JdbcInventory extends JdbcHelper implements Inventory {
+/**
+ * Inventory storing objects in the Inventory table. New objects are written behind: they're immediately available
+ * through the cache and {@link #getObject(InventoryVector)}, but only written to the database in batches, either
+ * when enough objects are pending or after the flush interval elapsed.
+ * <p>
+ * Expired objects are removed in the background. An {@link ExpiryWheel} keeps track of when cached objects expire,
+ * so each run only deletes the objects that expired since the last one, in small batches.
+ * </p>
+ * <p>
+ * Objects that can't be written, e.g. because the database isn't available, stay pending and are written with the
+ * next flush, or removed when they expire. {@link #close()} writes the pending objects and stops the background
+ * tasks, so it should be called when shutting down.
+ * </p>
+ */
+public class JdbcInventory extends JdbcHelper implements Inventory, Closeable {
     private static final Logger LOG = LoggerFactory.getLogger(JdbcInventory.class);
 
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+    public static final long DEFAULT_CLEANUP_INTERVAL = MINUTE * 1000;
+    private static final int CLEANUP_BATCH_SIZE = 100;
+
+    private static final String SELECT_CACHE = "SELECT hash, expires FROM Inventory WHERE stream = ? AND expires > ?";
+    private static final String SELECT_OBJECT = "SELECT data, version FROM Inventory WHERE hash = ?";
+    private static final String SELECT_OBJECTS = "SELECT data, version FROM Inventory WHERE 1=1";
+    private static final String SELECT_OBJECTS_BY_TAG = "SELECT data, version FROM Inventory WHERE tag = ?";
+    private static final String INSERT_OBJECT = "INSERT INTO Inventory (hash, stream, expires, data, type, version, tag) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String SELECT_EXPIRED = "SELECT hash FROM Inventory WHERE expires < ?";
+    private static final String DELETE_OBJECTS = "DELETE FROM Inventory WHERE hash IN (";
+
     private final Map<Long, Map<InventoryVector, Long>> cache = new ConcurrentHashMap<>();
+    private final Map<InventoryVector, ObjectMessage> pending = new LinkedHashMap<>();
+    private final Object flushLock = new Object();
+    private final ExpiryWheel<InventoryVector> expiryWheel = new ExpiryWheel<>(MINUTE, 512, now());
+    private final int batchSize;
+    private final Timer timer = new Timer("JdbcInventory", true);
 
     public JdbcInventory(JdbcConfig config) {
+        this(config, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    public JdbcInventory(JdbcConfig config, int batchSize, long flushInterval) {
+        this(config, batchSize, flushInterval, DEFAULT_CLEANUP_INTERVAL);
+    }
+
+    /**
+     * @param batchSize       number of pending objects that triggers a flush, 1 writes every object immediately
+     * @param flushInterval   maximum time in milliseconds an object stays pending, 0 disables time based flushing
+     * @param cleanupInterval time in milliseconds between removals of expired objects, 0 disables background
+     *                        cleanup (then {@link #cleanup()} must be called regularly)
+     */
+    public JdbcInventory(JdbcConfig config, int batchSize, long flushInterval, long cleanupInterval) {
         super(config);
+        if (batchSize < 1) throw new IllegalArgumentException("batchSize must be at least 1");
+        this.batchSize = batchSize;
+        if (batchSize > 1 && flushInterval > 0) {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (RuntimeException e) {
+                        // An exception would stop the timer, and with it all background tasks
+                        LOG.error("Couldn't flush pending objects", e);
+                    }
+                }
+            }, flushInterval, flushInterval);
+        }
+        if (cleanupInterval > 0) {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        removeExpired();
+                    } catch (RuntimeException e) {
+                        LOG.error("Couldn't remove expired objects", e);
+                    }
+                }
+            }, cleanupInterval, cleanupInterval);
+        }
     }
 
     @Override
@@ -61,12 +137,16 @@ public class JdbcInventory extends JdbcHelper implements Inventory {
                     result = new ConcurrentHashMap<>();
                     cache.put(stream, result);
 
-                    try (Connection connection = config.getConnection()) {
-                        Statement stmt = connection.createStatement();
-                        ResultSet rs = stmt.executeQuery("SELECT hash, expires FROM Inventory WHERE expires > "
-                                + now(-5 * MINUTE) + " AND stream = " + stream);
+                    try (Connection connection = config.getConnection();
+                         PreparedStatement ps = connection.prepareStatement(SELECT_CACHE)) {
+                        ps.setLong(1, stream);
+                        ps.setLong(2, now(-5 * MINUTE));
+                        ResultSet rs = ps.executeQuery();
                         while (rs.next()) {
-                            result.put(new InventoryVector(rs.getBytes("hash")), rs.getLong("expires"));
+                            InventoryVector iv = new InventoryVector(rs.getBytes("hash"));
+                            long expires = rs.getLong("expires");
+                            result.put(iv, expires);
+                            expiryWheel.add(iv, expires + 5 * MINUTE);
                         }
                     } catch (SQLException e) {
                         LOG.error(e.getMessage(), e);
@@ -87,9 +167,14 @@ public class JdbcInventory extends JdbcHelper implements Inventory {
 
     @Override
     public ObjectMessage getObject(InventoryVector vector) {
-        try (Connection connection = config.getConnection()) {
-            Statement stmt = connection.createStatement();
-            ResultSet rs = stmt.executeQuery("SELECT data, version FROM Inventory WHERE hash = X'" + vector + "'");
+        synchronized (pending) {
+            ObjectMessage object = pending.get(vector);
+            if (object != null) return object;
+        }
+        try (Connection connection = config.getConnection();
+             PreparedStatement ps = connection.prepareStatement(SELECT_OBJECT)) {
+            ps.setBytes(1, vector.getHash());
+            ResultSet rs = ps.executeQuery();
             if (rs.next()) {
                 Blob data = rs.getBlob("data");
                 return Factory.getObjectMessage(rs.getInt("version"), data.getBinaryStream(), (int) data.length());
@@ -105,23 +190,70 @@ public class JdbcInventory extends JdbcHelper implements Inventory {
 
     @Override
     public List<ObjectMessage> getObjects(long stream, long version, ObjectType... types) {
-        try (Connection connection = config.getConnection()) {
-            StringBuilder query = new StringBuilder("SELECT data, version FROM Inventory WHERE 1=1");
+        List<ObjectMessage> result = new LinkedList<>();
+        getObjects(stream, version, object -> result.add(object), types);
+        return result;
+    }
+
+    @Override
+    public void getObjects(long stream, long version, ObjectCallback callback, ObjectType... types) {
+        flush();
+        StringBuilder query = new StringBuilder(SELECT_OBJECTS);
+        if (stream > 0) {
+            query.append(" AND stream = ?");
+        }
+        if (types.length > 0) {
+            query.append(" AND type IN (").append(placeholders(types.length)).append(")");
+        }
+        if (version > 0) {
+            query.append(" AND version = ?");
+        }
+        try (Connection connection = config.getConnection();
+             PreparedStatement ps = connection.prepareStatement(query.toString())) {
+            int i = 1;
             if (stream > 0) {
-                query.append(" AND stream = ").append(stream);
+                ps.setLong(i++, stream);
+            }
+            for (ObjectType type : types) {
+                ps.setLong(i++, type.getNumber());
             }
             if (version > 0) {
-                query.append(" AND version = ").append(version);
+                ps.setLong(i, version);
             }
-            if (types.length > 0) {
-                query.append(" AND type IN (").append(join(types)).append(")");
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Blob data = rs.getBlob("data");
+                    ObjectMessage object = Factory.getObjectMessage(rs.getInt("version"), data.getBinaryStream(),
+                            (int) data.length());
+                    if (!callback.onObject(object)) return;
+                }
+            }
+        } catch (Exception e) {
+            LOG.error(e.getMessage(), e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public List<ObjectMessage> getObjectsByTag(byte[] tag, ObjectType... types) {
+        flush();
+        StringBuilder query = new StringBuilder(SELECT_OBJECTS_BY_TAG);
+        if (types.length > 0) {
+            query.append(" AND type IN (").append(placeholders(types.length)).append(")");
+        }
+        try (Connection connection = config.getConnection();
+             PreparedStatement ps = connection.prepareStatement(query.toString())) {
+            ps.setBytes(1, tag);
+            int i = 2;
+            for (ObjectType type : types) {
+                ps.setLong(i++, type.getNumber());
             }
-            Statement stmt = connection.createStatement();
-            ResultSet rs = stmt.executeQuery(query.toString());
             List<ObjectMessage> result = new LinkedList<>();
-            while (rs.next()) {
-                Blob data = rs.getBlob("data");
-                result.add(Factory.getObjectMessage(rs.getInt("version"), data.getBinaryStream(), (int) data.length()));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Blob data = rs.getBlob("data");
+                    result.add(Factory.getObjectMessage(rs.getInt("version"), data.getBinaryStream(), (int) data.length()));
+                }
             }
             return result;
         } catch (Exception e) {
@@ -132,26 +264,116 @@ public class JdbcInventory extends JdbcHelper implements Inventory {
 
     @Override
     public void storeObject(ObjectMessage object) {
-        if (getCache(object.getStream()).containsKey(object.getInventoryVector()))
+        InventoryVector iv = object.getInventoryVector();
+        Map<InventoryVector, Long> streamCache = getCache(object.getStream());
+        if (streamCache.containsKey(iv))
             return;
 
+        LOG.trace("Storing object " + iv);
+        boolean flushNeeded;
+        synchronized (pending) {
+            pending.put(iv, object);
+            flushNeeded = pending.size() >= batchSize;
+        }
+        streamCache.put(iv, object.getExpiresTime());
+        expiryWheel.add(iv, object.getExpiresTime() + 5 * MINUTE);
+        if (flushNeeded) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all pending objects to the database within one transaction. Objects that couldn't be written stay
+     * pending.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            List<ObjectMessage> objects;
+            synchronized (pending) {
+                if (pending.isEmpty()) return;
+                objects = new ArrayList<>(pending.values());
+            }
+            List<ObjectMessage> done = write(objects);
+            synchronized (pending) {
+                for (ObjectMessage object : done) {
+                    pending.remove(object.getInventoryVector());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the objects that are stored now, or that can never be stored, all others must be tried again
+     */
+    private List<ObjectMessage> write(List<ObjectMessage> objects) {
         try (Connection connection = config.getConnection()) {
-            PreparedStatement ps = connection.prepareStatement("INSERT INTO Inventory (hash, stream, expires, data, type, version) VALUES (?, ?, ?, ?, ?, ?)");
-            InventoryVector iv = object.getInventoryVector();
-            LOG.trace("Storing object " + iv);
-            ps.setBytes(1, iv.getHash());
-            ps.setLong(2, object.getStream());
-            ps.setLong(3, object.getExpiresTime());
-            writeBlob(ps, 4, object);
-            ps.setLong(5, object.getType());
-            ps.setLong(6, object.getVersion());
-            ps.executeUpdate();
-            getCache(object.getStream()).put(iv, object.getExpiresTime());
+            try {
+                connection.setAutoCommit(false);
+                insert(connection, objects);
+                connection.commit();
+                return objects;
+            } catch (SQLException | IOException e) {
+                // Most probably one of the objects was already stored, so we fall back to one object at a time
+                connection.rollback();
+                connection.setAutoCommit(true);
+                LOG.debug("Batch insert failed, storing objects one by one", e);
+            }
+            List<ObjectMessage> done = new ArrayList<>(objects.size());
+            for (ObjectMessage object : objects) {
+                try {
+                    insert(connection, Collections.singletonList(object));
+                    done.add(object);
+                } catch (SQLException e) {
+                    if (isConstraintViolation(e)) {
+                        LOG.debug("Object " + object.getInventoryVector() + " was already stored", e);
+                        done.add(object);
+                    } else {
+                        LOG.warn("Couldn't store object " + object.getInventoryVector() + ", trying again later", e);
+                    }
+                } catch (IOException e) {
+                    LOG.error("Couldn't serialize object " + object.getInventoryVector() + ", dropping it", e);
+                    done.add(object);
+                }
+            }
+            return done;
         } catch (SQLException e) {
-            LOG.debug("Error storing object of type " + object.getPayload().getClass().getSimpleName(), e);
-        } catch (Exception e) {
-            LOG.error(e.getMessage(), e);
+            LOG.error("Couldn't store pending objects, trying again later", e);
+            return Collections.emptyList();
+        }
+    }
+
+    private static boolean isConstraintViolation(SQLException e) {
+        // SQL state class 23 is "integrity constraint violation", e.g. a duplicate key
+        return e.getSQLState() != null && e.getSQLState().startsWith("23");
+    }
+
+    private void insert(Connection connection, List<ObjectMessage> objects) throws SQLException, IOException {
+        try (PreparedStatement ps = connection.prepareStatement(INSERT_OBJECT)) {
+            for (ObjectMessage object : objects) {
+                ps.setBytes(1, object.getInventoryVector().getHash());
+                ps.setLong(2, object.getStream());
+                ps.setLong(3, object.getExpiresTime());
+                writeBlob(ps, 4, object);
+                ps.setLong(5, object.getType());
+                ps.setLong(6, object.getVersion());
+                ps.setBytes(7, getTag(object.getPayload()));
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * @return the tag of version 4 pubkeys and version 5 broadcasts, null for all other payloads
+     */
+    public static byte[] getTag(ObjectPayload payload) {
+        if (payload instanceof V4Pubkey) {
+            return ((V4Pubkey) payload).getTag();
+        }
+        if (payload instanceof V5Broadcast) {
+            return ((V5Broadcast) payload).getTag();
         }
+        return null;
     }
 
     @Override
@@ -162,13 +384,73 @@ public class JdbcInventory extends JdbcHelper implements Inventory {
 
     @Override
     public void cleanup() {
+        flush();
+        try (Connection connection = config.getConnection();
+             PreparedStatement ps = connection.prepareStatement(SELECT_EXPIRED)) {
+            ps.setLong(1, now(-5 * MINUTE));
+            ps.setMaxRows(CLEANUP_BATCH_SIZE);
+            List<InventoryVector> expired;
+            do {
+                expired = new ArrayList<>(CLEANUP_BATCH_SIZE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        expired.add(new InventoryVector(rs.getBytes("hash")));
+                    }
+                }
+                delete(connection, expired);
+            } while (expired.size() == CLEANUP_BATCH_SIZE);
+        } catch (SQLException e) {
+            LOG.debug(e.getMessage(), e);
+        }
+        removeExpired();
+    }
+
+    /**
+     * Removes the objects that expired since the last run from the cache and the database.
+     */
+    void removeExpired() {
+        List<InventoryVector> expired = new ArrayList<>(expiryWheel.advance(now()));
+        if (expired.isEmpty()) return;
+
+        for (InventoryVector iv : expired) {
+            for (Map<InventoryVector, Long> c : cache.values()) {
+                c.remove(iv);
+            }
+        }
+        synchronized (pending) {
+            for (InventoryVector iv : expired) {
+                pending.remove(iv);
+            }
+        }
         try (Connection connection = config.getConnection()) {
-            connection.createStatement().executeUpdate("DELETE FROM Inventory WHERE expires < " + now(-5 * MINUTE));
+            for (int i = 0; i < expired.size(); i += CLEANUP_BATCH_SIZE) {
+                delete(connection, expired.subList(i, Math.min(i + CLEANUP_BATCH_SIZE, expired.size())));
+            }
         } catch (SQLException e) {
             LOG.debug(e.getMessage(), e);
         }
-        for (Map<InventoryVector, Long> c : cache.values()) {
-            c.entrySet().removeIf(e -> e.getValue() < now(-5 * MINUTE));
+        LOG.debug("Removed " + expired.size() + " expired objects");
+    }
+
+    private void delete(Connection connection, List<InventoryVector> objects) throws SQLException {
+        if (objects.isEmpty()) return;
+        try (PreparedStatement ps = connection.prepareStatement(DELETE_OBJECTS + placeholders(objects.size()) + ")")) {
+            int i = 1;
+            for (InventoryVector iv : objects) {
+                ps.setBytes(i++, iv.getHash());
+            }
+            ps.executeUpdate();
         }
     }
+
+    /**
+     * Stops flushing and removing expired objects in the background, and writes the pending objects. The inventory
+     * can still be used afterwards, but objects are only written when enough of them are pending or on
+     * {@link #flush()}, and expired ones only removed on {@link #cleanup()}.
+     */
+    @Override
+    public void close() {
+        timer.cancel();
+        flush();
+    }
 }
@@ -26,7 +26,7 @@ public class JdbcProofOfWorkRepository extends JdbcHelper implements ProofOfWork
     @Override
     public Item getItem(byte[] initialHash) {
         try (Connection connection = config.getConnection()) {
-            PreparedStatement ps = connection.prepareStatement("SELECT data, version, nonce_trials_per_byte, extra_bytes FROM POW WHERE initial_hash=?");
+            PreparedStatement ps = connection.prepareStatement("SELECT data, version, nonce_trials_per_byte, extra_bytes, checkpoint FROM POW WHERE initial_hash=?");
             ps.setBytes(1, initialHash);
             ResultSet rs = ps.executeQuery();
             if (rs.next()) {
@@ -34,7 +34,8 @@ public class JdbcProofOfWorkRepository extends JdbcHelper implements ProofOfWork
                 return new Item(
                         Factory.getObjectMessage(rs.getInt("version"), data.getBinaryStream(), (int) data.length()),
                         rs.getLong("nonce_trials_per_byte"),
-                        rs.getLong("extra_bytes")
+                        rs.getLong("extra_bytes"),
+                        rs.getLong("checkpoint")
                 );
             } else {
                 throw new RuntimeException("Object requested that we don't have. Initial hash: " + Strings.hex(initialHash));
@@ -90,4 +91,38 @@ public class JdbcProofOfWorkRepository extends JdbcHelper implements ProofOfWork
             LOG.debug(e.getMessage(), e);
         }
     }
+
+    @Override
+    public void removeObjects(List<byte[]> initialHashes) {
+        try (Connection connection = config.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement ps = connection.prepareStatement("DELETE FROM POW WHERE initial_hash=?");
+                for (byte[] initialHash : initialHashes) {
+                    ps.setBytes(1, initialHash);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } catch (SQLException e) {
+            LOG.debug(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void putCheckpoint(byte[] initialHash, long nonce) {
+        try (Connection connection = config.getConnection()) {
+            PreparedStatement ps = connection.prepareStatement("UPDATE POW SET checkpoint=? WHERE initial_hash=?");
+            ps.setLong(1, nonce);
+            ps.setBytes(2, initialHash);
+            ps.executeUpdate();
+        } catch (SQLException e) {
+            // Losing a checkpoint only means some nonces will be tried again
+            LOG.warn(e.getMessage(), e);
+        }
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package db.migration;
+
+import ch.dissem.bitmessage.entity.ObjectMessage;
+import ch.dissem.bitmessage.entity.payload.ObjectType;
+import ch.dissem.bitmessage.factory.Factory;
+import ch.dissem.bitmessage.repository.JdbcInventory;
+import org.flywaydb.core.api.migration.jdbc.JdbcMigration;
+
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * Sets the tag of pubkeys and broadcasts that were stored before the tag column existed. This can't be done in
+ * SQL, as the tag must be read from the serialized object.
+ */
+public class V2_4__Fill_inventory_tag implements JdbcMigration {
+    @Override
+    public void migrate(Connection connection) throws Exception {
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT hash, data, version FROM Inventory WHERE tag IS NULL AND (" +
+                        "(type = " + ObjectType.PUBKEY.getNumber() + " AND version = 4) OR " +
+                        "(type = " + ObjectType.BROADCAST.getNumber() + " AND version = 5))");
+             PreparedStatement update = connection.prepareStatement("UPDATE Inventory SET tag = ? WHERE hash = ?")) {
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    Blob data = rs.getBlob("data");
+                    ObjectMessage object = Factory.getObjectMessage(rs.getInt("version"), data.getBinaryStream(),
+                            (int) data.length());
+                    if (object == null) continue;
+                    byte[] tag = JdbcInventory.getTag(object.getPayload());
+                    if (tag != null) {
+                        update.setBytes(1, tag);
+                        update.setBytes(2, rs.getBytes("hash"));
+                        update.addBatch();
+                    }
+                }
+            }
+            update.executeBatch();
+        }
+    }
+}
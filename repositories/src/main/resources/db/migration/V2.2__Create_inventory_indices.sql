@@ -0,0 +1,3 @@
+CREATE INDEX idx_inventory_stream_expires ON Inventory (stream, expires);
+CREATE INDEX idx_inventory_stream_type_version ON Inventory (stream, type, version);
+CREATE INDEX idx_inventory_expires ON Inventory (expires);
@@ -0,0 +1,3 @@
+ALTER TABLE Inventory ADD COLUMN tag BINARY(32);
+
+CREATE INDEX idx_inventory_tag ON Inventory (tag);
@@ -0,0 +1 @@
+ALTER TABLE POW ADD COLUMN checkpoint BIGINT NOT NULL DEFAULT 0;
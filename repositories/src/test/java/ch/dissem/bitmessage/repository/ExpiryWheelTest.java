@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.repository;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiryWheelTest {
+    private static final long START = 1_000_000;
+
+    @Test
+    public void ensureItemsExpireOnlyAfterTheirDeadline() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(60, 8, START);
+        wheel.add("soon", START + 100);
+        wheel.add("later", START + 300);
+
+        assertTrue(wheel.advance(START + 99).isEmpty());
+        List<String> expired = wheel.advance(START + 200);
+        assertEquals(1, expired.size());
+        assertEquals("soon", expired.get(0));
+        assertEquals(1, wheel.size());
+    }
+
+    @Test
+    public void ensureItemsFurtherThanOneRotationAwayAreKept() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(60, 8, START);
+        wheel.add("far", START + 20 * 60);
+
+        assertTrue(wheel.advance(START + 10 * 60).isEmpty());
+        assertEquals(1, wheel.advance(START + 21 * 60).size());
+    }
+
+    @Test
+    public void ensureAlreadyExpiredItemsAreRemovedWithTheNextTick() {
+        ExpiryWheel<String> wheel = new ExpiryWheel<>(60, 8, START);
+        wheel.add("expired", START - 1000);
+
+        assertEquals(1, wheel.advance(START + 2 * 60).size());
+        assertEquals(0, wheel.size());
+    }
+}
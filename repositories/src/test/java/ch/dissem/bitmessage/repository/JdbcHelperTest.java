@@ -26,4 +26,10 @@ public class JdbcHelperTest {
         long[] test = {1L, 2L};
         assertEquals("1, 2", JdbcHelper.join(test).toString());
     }
+
+    @Test
+    public void ensurePlaceholdersMatchCount() {
+        assertEquals("?, ?, ?", JdbcHelper.placeholders(3).toString());
+        assertEquals("", JdbcHelper.placeholders(0).toString());
+    }
 }
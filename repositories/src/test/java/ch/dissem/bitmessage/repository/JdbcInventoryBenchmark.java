@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.repository;
+
+import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.entity.ObjectMessage;
+import ch.dissem.bitmessage.entity.payload.GetPubkey;
+import ch.dissem.bitmessage.entity.payload.ObjectPayload;
+import ch.dissem.bitmessage.entity.payload.ObjectType;
+import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
+import ch.dissem.bitmessage.utils.Encode;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.List;
+import java.util.Random;
+
+import static ch.dissem.bitmessage.utils.UnixTime.DAY;
+import static ch.dissem.bitmessage.utils.UnixTime.now;
+
+/**
+ * Measures query latency of the {@link JdbcInventory} on a large database. This isn't run with the normal tests,
+ * use <code>gradle :repositories:benchmark</code> to run it. The number of rows can be set with the system
+ * property <code>benchmark.rows</code> and defaults to one million.
+ */
+public class JdbcInventoryBenchmark extends TestBase {
+    private static final int ROWS = Integer.getInteger("benchmark.rows", 1_000_000);
+    private static final int BATCH_SIZE = 10_000;
+
+    private static File directory;
+    private static JdbcConfig config;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "jabit-benchmark-" + now());
+        config = new JdbcConfig("jdbc:h2:" + directory.getAbsolutePath() + "/inventory", "sa", null);
+
+        PrivateKey privateKey = new PrivateKey(false, 1, 1000, 1000);
+        ObjectMessage pubkey = getObjectMessage(privateKey.getPubkey());
+        pubkey.sign(privateKey);
+        pubkey.encrypt(privateKey.getPubkey().getEncryptionKey());
+        byte[] pubkeyData = Encode.bytes(pubkey);
+        byte[] getPubkeyData = Encode.bytes(getObjectMessage(new GetPubkey(
+                new BitmessageAddress("BM-2cW7cD5cDQJDNkE7ibmyTxfvGAmnPqa9Vt"))));
+
+        long start = System.currentTimeMillis();
+        Random random = new Random(42);
+        try (Connection connection = config.getConnection();
+             PreparedStatement ps = connection.prepareStatement(
+                     "INSERT INTO Inventory (hash, stream, expires, data, type, version) VALUES (?, ?, ?, ?, ?, ?)")) {
+            connection.setAutoCommit(false);
+            for (int i = 0; i < ROWS; i++) {
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                boolean isPubkey = i % 4 == 0;
+                ps.setBytes(1, hash);
+                ps.setLong(2, 1 + i % 3);
+                // Objects expire evenly distributed between a week ago and in 28 days
+                ps.setLong(3, now(-7 * DAY) + random.nextInt((int) (35 * DAY)));
+                ps.setBytes(4, isPubkey ? pubkeyData : getPubkeyData);
+                ps.setLong(5, isPubkey ? ObjectType.PUBKEY.getNumber() : ObjectType.GET_PUBKEY.getNumber());
+                ps.setLong(6, 4);
+                ps.addBatch();
+                if (i % BATCH_SIZE == BATCH_SIZE - 1) {
+                    ps.executeBatch();
+                    connection.commit();
+                }
+            }
+            ps.executeBatch();
+            connection.commit();
+        }
+        System.out.println("Inserted " + ROWS + " rows in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void benchmarkGetObjectsAndCleanup() {
+        JdbcInventory inventory = new JdbcInventory(config);
+
+        long start = System.currentTimeMillis();
+        List<ObjectMessage> objects = inventory.getObjects(1, 4, ObjectType.PUBKEY);
+        System.out.println("getObjects(PUBKEY) returned " + objects.size() + " objects in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        start = System.currentTimeMillis();
+        inventory.getInventory(1);
+        System.out.println("Loading the inventory cache took " + (System.currentTimeMillis() - start) + "ms");
+
+        start = System.currentTimeMillis();
+        inventory.cleanup();
+        System.out.println("cleanup took " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static ObjectMessage getObjectMessage(ObjectPayload payload) {
+        return new ObjectMessage.Builder()
+                .nonce(new byte[8])
+                .expiresTime(now(+28 * DAY))
+                .stream(1)
+                .payload(payload)
+                .build();
+    }
+}
@@ -21,22 +21,27 @@ import ch.dissem.bitmessage.entity.ObjectMessage;
 import ch.dissem.bitmessage.entity.payload.GetPubkey;
 import ch.dissem.bitmessage.entity.payload.ObjectPayload;
 import ch.dissem.bitmessage.entity.valueobject.InventoryVector;
-import ch.dissem.bitmessage.ports.Inventory;
+import ch.dissem.bitmessage.entity.valueobject.PrivateKey;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static ch.dissem.bitmessage.entity.payload.ObjectType.GET_PUBKEY;
 import static ch.dissem.bitmessage.entity.payload.ObjectType.MSG;
+import static ch.dissem.bitmessage.entity.payload.ObjectType.PUBKEY;
 import static ch.dissem.bitmessage.utils.UnixTime.DAY;
 import static ch.dissem.bitmessage.utils.UnixTime.now;
 import static org.junit.Assert.*;
 
 public class JdbcInventoryTest extends TestBase {
     private TestJdbcConfig config;
-    private Inventory inventory;
+    private JdbcInventory inventory;
 
     private InventoryVector inventoryVector1;
     private InventoryVector inventoryVector2;
@@ -62,6 +67,12 @@ public class JdbcInventoryTest extends TestBase {
         inventory.storeObject(ignore);
     }
 
+    @After
+    public void tearDown() {
+        // Otherwise the pending objects would be written by the timer, possibly while another test resets the database
+        inventory.close();
+    }
+
     @Test
     public void testGetInventory() throws Exception {
         List<InventoryVector> inventoryVectors = inventory.getInventory(1);
@@ -102,6 +113,29 @@ public class JdbcInventoryTest extends TestBase {
         assertEquals(0, objects.size());
     }
 
+    @Test
+    public void testGetObjectsStopsWhenCallbackReturnsFalse() throws Exception {
+        final List<ObjectMessage> objects = new LinkedList<>();
+        inventory.getObjects(1, 4, object -> {
+            objects.add(object);
+            return false;
+        }, GET_PUBKEY);
+        assertEquals(1, objects.size());
+    }
+
+    @Test
+    public void testGetObjectsByTag() throws Exception {
+        BitmessageAddress identity = new BitmessageAddress(new PrivateKey(false, 1, 1000, 1000));
+        ObjectMessage pubkey = getObjectMessage(1, 300, identity.getPubkey());
+        pubkey.sign(identity.getPrivateKey());
+        pubkey.encrypt(identity.getPubkey());
+        inventory.storeObject(pubkey);
+
+        assertEquals(1, inventory.getObjectsByTag(identity.getTag(), PUBKEY).size());
+        assertEquals(0, inventory.getObjectsByTag(identity.getTag(), MSG).size());
+        assertEquals(0, inventory.getObjectsByTag(new byte[32]).size());
+    }
+
     @Test
     public void testStoreObject() throws Exception {
         ObjectMessage object = getObjectMessage(5, 0, getGetPubkey());
@@ -110,6 +144,60 @@ public class JdbcInventoryTest extends TestBase {
         assertNotNull(inventory.getObject(object.getInventoryVector()));
     }
 
+    @Test
+    public void testStoredObjectsArePersistedWhenFlushed() throws Exception {
+        JdbcInventory batchingInventory = new JdbcInventory(config, 10, 0);
+        ObjectMessage object = getObjectMessage(5, 300, getGetPubkey());
+        batchingInventory.storeObject(object);
+
+        assertNotNull(batchingInventory.getObject(object.getInventoryVector()));
+        assertNull(new JdbcInventory(config).getObject(object.getInventoryVector()));
+
+        batchingInventory.flush();
+
+        assertNotNull(new JdbcInventory(config).getObject(object.getInventoryVector()));
+    }
+
+    @Test
+    public void ensureObjectsStayPendingIfTheyCantBeWritten() throws Exception {
+        AtomicBoolean available = new AtomicBoolean(true);
+        JdbcInventory batchingInventory = new JdbcInventory(new TestJdbcConfig() {
+            @Override
+            public Connection getConnection() throws SQLException {
+                if (!available.get()) throw new SQLException("Database is gone");
+                return super.getConnection();
+            }
+        }, 10, 0);
+        ObjectMessage object = getObjectMessage(5, 300, getGetPubkey());
+        batchingInventory.storeObject(object);
+
+        available.set(false);
+        batchingInventory.flush();
+        assertNotNull(batchingInventory.getObject(object.getInventoryVector()));
+
+        available.set(true);
+        assertNull(new JdbcInventory(config).getObject(object.getInventoryVector()));
+        batchingInventory.close();
+        assertNotNull(new JdbcInventory(config).getObject(object.getInventoryVector()));
+    }
+
+    @Test
+    public void ensureAlreadyStoredObjectsDontBlockTheBatch() throws Exception {
+        JdbcInventory batchingInventory = new JdbcInventory(config, 10, 0);
+        // the cache of stream 5 is loaded before the object is stored, so it doesn't know about it
+        batchingInventory.getInventory(5);
+        ObjectMessage stored = getObjectMessage(5, 300, getGetPubkey());
+        inventory.storeObject(stored);
+        inventory.flush();
+
+        ObjectMessage object = getObjectMessage(6, 300, getGetPubkey());
+        batchingInventory.storeObject(stored);
+        batchingInventory.storeObject(object);
+        batchingInventory.close();
+
+        assertNotNull(new JdbcInventory(config).getObject(object.getInventoryVector()));
+    }
+
     @Test
     public void testContains() {
         ObjectMessage object = getObjectMessage(5, 0, getGetPubkey());
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Christian Basler
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.dissem.bitmessage.repository;
+
+import ch.dissem.bitmessage.entity.BitmessageAddress;
+import ch.dissem.bitmessage.entity.ObjectMessage;
+import ch.dissem.bitmessage.entity.payload.GetPubkey;
+import ch.dissem.bitmessage.ports.ProofOfWorkRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static ch.dissem.bitmessage.utils.Singleton.security;
+import static ch.dissem.bitmessage.utils.UnixTime.now;
+import static org.junit.Assert.*;
+
+public class JdbcProofOfWorkRepositoryTest extends TestBase {
+    private ProofOfWorkRepository repo;
+    private byte[] initialHash;
+
+    @Before
+    public void setUp() throws Exception {
+        TestJdbcConfig config = new TestJdbcConfig();
+        config.reset();
+
+        repo = new JdbcProofOfWorkRepository(config);
+
+        ObjectMessage object = new ObjectMessage.Builder()
+                .nonce(new byte[8])
+                .expiresTime(now(+300))
+                .stream(1)
+                .payload(new GetPubkey(new BitmessageAddress("BM-2cW7cD5cDQJDNkE7ibmyTxfvGAmnPqa9Vt")))
+                .build();
+        repo.putObject(object, 1000, 1000);
+        initialHash = security().getInitialHash(object);
+    }
+
+    @Test
+    public void ensureItemIsStored() {
+        assertEquals(1, repo.getItems().size());
+        ProofOfWorkRepository.Item item = repo.getItem(initialHash);
+        assertEquals(1000, item.nonceTrialsPerByte);
+        assertEquals(1000, item.extraBytes);
+        assertEquals(0, item.checkpoint);
+    }
+
+    @Test
+    public void ensureCheckpointIsStored() {
+        repo.putCheckpoint(initialHash, 1 << 20);
+        assertEquals(1 << 20, repo.getItem(initialHash).checkpoint);
+    }
+
+    @Test
+    public void ensureItemIsRemoved() {
+        repo.removeObject(initialHash);
+        assertTrue(repo.getItems().isEmpty());
+    }
+
+    @Test
+    public void ensureItemsAreRemovedTogether() {
+        ObjectMessage object = new ObjectMessage.Builder()
+                .nonce(new byte[8])
+                .expiresTime(now(+600))
+                .stream(1)
+                .payload(new GetPubkey(new BitmessageAddress("BM-2cW7cD5cDQJDNkE7ibmyTxfvGAmnPqa9Vt")))
+                .build();
+        repo.putObject(object, 1000, 1000);
+        assertEquals(2, repo.getItems().size());
+
+        repo.removeObjects(Arrays.asList(initialHash, security().getInitialHash(object)));
+        assertTrue(repo.getItems().isEmpty());
+    }
+}